@@ -0,0 +1,32 @@
+#!/bin/sh
+# Creates an AppCDS archive for the headless entry point, so the JVM maps the
+# classes of a conversion from the archive instead of loading and verifying
+# them one by one. Run it in the release directory with a PDF file that has a
+# PDR file next to it. The archive only works with the same JDK (10 or newer)
+# and the same jar location, so create it where the release is installed.
+#
+#   ./appcds.sh book.pdf
+#   java -XX:SharedArchiveFile=kindle-annotator.jsa -cp kindle-annotator-<version>.jar \
+#        de.berber.kindle.annotator.HeadlessMain -i book.pdf
+
+if [ $# -ne 1 ]; then
+	echo "Usage: $0 <PDF file with a PDR file>"
+	exit 1
+fi
+
+SAMPLE=`cd \`dirname "$1"\` && pwd`/`basename "$1"`
+cd `dirname $0`
+JAR=`pwd`/`ls kindle-annotator-*.jar | head -n 1`
+WORK=`mktemp -d`
+
+# record the classes loaded by a complete conversion
+java -XX:DumpLoadedClassList=kindle-annotator.classlist -cp $JAR \
+	de.berber.kindle.annotator.HeadlessMain -f -i "$SAMPLE" -o $WORK || exit 1
+rm -rf $WORK
+
+# archive them
+java -Xshare:dump -XX:SharedClassListFile=kindle-annotator.classlist \
+	-XX:SharedArchiveFile=kindle-annotator.jsa -cp $JAR || exit 1
+
+echo "Start the headless converter with"
+echo "  java -XX:SharedArchiveFile=`pwd`/kindle-annotator.jsa -cp $JAR de.berber.kindle.annotator.HeadlessMain ..."
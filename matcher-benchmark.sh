@@ -0,0 +1,11 @@
+#!/bin/sh
+# Compares the comment matcher with the hash map merge it replaced, using the
+# markings and comments generated by MatcherBenchmark. Without arguments
+# a small and a large input are measured. Run it in the release directory.
+#
+#   ./matcher-benchmark.sh [markings comments pages]
+
+cd `dirname $0`
+CP=`ls *.jar | tr '\n' ':'`
+
+java -cp "$CP" de.berber.kindle.annotator.lib.MatcherBenchmark "$@"
@@ -18,5 +18,6 @@ cp ${HOME}/.m2/repository/args4j/args4j/2.0.12/args4j-2.0.12.jar $TARGET
 cp ${HOME}/.m2/repository/commons-configuration/commons-configuration/1.6/commons-configuration-1.6.jar $TARGET
 cp ${HOME}/.m2/repository/commons-lang/commons-lang/2.4/commons-lang-2.4.jar $TARGET
 cp ${HOME}/.m2/repository/commons-collections/commons-collections/3.2.1/commons-collections-3.2.1.jar $TARGET
+cp appcds.sh startup-benchmark.sh matcher-benchmark.sh $TARGET
 
 zip -r9 kindle-annotations-$VERSION.zip $TARGET
\ No newline at end of file
@@ -17,6 +17,7 @@ package de.berber.kindle.annotator;
 
 import javax.annotation.Nonnull;
 
+import de.berber.kindle.annotator.lib.Settings;
 import de.berber.kindle.annotator.model.WorkingList;
 
 /**
@@ -35,9 +36,15 @@ public abstract class AbstractMain {
 	 */
 	protected Options options;
 	
-	public AbstractMain(final @Nonnull Options options, final @Nonnull WorkingList model) {
-		this.options = options;
-		this.model   = model;
+	/**
+	 * The annotator settings.
+	 */
+	protected Settings settings;
+	
+	public AbstractMain(final @Nonnull Options options, final @Nonnull Settings settings, final @Nonnull WorkingList model) {
+		this.options  = options;
+		this.settings = settings;
+		this.model    = model;
 	}
 
 	/**
@@ -16,13 +16,17 @@
 package de.berber.kindle.annotator;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.annotation.Nonnull;
 
+import de.berber.kindle.annotator.controller.PerformanceReport;
+import de.berber.kindle.annotator.controller.Watcher;
 import de.berber.kindle.annotator.controller.WorkCollector;
-import de.berber.kindle.annotator.model.Task;
+import de.berber.kindle.annotator.lib.Settings;
 import de.berber.kindle.annotator.model.WorkingList;
-import de.berber.kindle.annotator.model.WorkingListListener;
 
 /**
  * The batch command line main program.
@@ -31,40 +35,71 @@ import de.berber.kindle.annotator.model.WorkingListListener;
  * 
  * @author Bernhard J. Berger
  */
-public class BatchMain extends AbstractMain implements WorkingListListener {
+public class BatchMain extends AbstractMain {
+	/**
+	 * Number of slowest files listed in the statistics.
+	 */
+	private static final int SLOWEST_FILES = 10;
 
-	private boolean worklistFinished = false;
-
-	public BatchMain(final @Nonnull Options options, final @Nonnull WorkingList model) {
-		super(options, model);
-		
-		model.addListener(this);
+	public BatchMain(final @Nonnull Options options, final @Nonnull Settings settings, final @Nonnull WorkingList model) {
+		super(options, settings, model);
 	}
 
 	@Override
 	public void run() {
-		final File inputFile = new File(options.input); // TODO Check 
-		final File outputFile = new File(options.output); // TODO Check 
-		final WorkCollector collector = new WorkCollector(inputFile, outputFile, model);
+		if(options.input.isEmpty()) {
+			System.err.println("There is no input file.");
+			return;
+		}
+		
+		final List<File> inputFiles = new ArrayList<File>();
+		for(final String input : options.input) {
+			inputFiles.add(new File(input)); // TODO Check 
+		}
+		final File outputFile = options.output == null ? null : new File(options.output); // TODO Check 
+		final WorkCollector collector = new WorkCollector(settings, inputFiles, outputFile, model, options.force, options.recursive);
+		final PerformanceReport report = options.watch ? null : new PerformanceReport(model);
+		
+		// watch before collecting, so no change gets lost in between
+		Watcher watcher = null;
+		if(options.watch) {
+			try {
+				watcher = new Watcher(collector, model, Math.max(0, options.watchDelay));
+			} catch(IOException e) {
+				System.err.println("Cannot watch input: " + e.getMessage());
+				return;
+			}
+		}
 
 		collector.run();
 		
-		while(!worklistFinished) {
+		if(collector.getNumberOfSkippedTasks() > 0) {
+			System.out.println("Skipped " + collector.getNumberOfSkippedTasks() + " up-to-date files.");
+		}
+		
+		if(collector.getNumberOfEmptyTasks() > 0) {
+			System.out.println("Skipped " + collector.getNumberOfEmptyTasks() + " files without annotations.");
+		}
+		
+		if(watcher != null) {
+			System.out.println("Watching for changes.");
+			watcher.run();
+			return;
+		}
+		
+		// the collector has finished, so the completion covers all its tasks
+		model.getCompletion().join();
+		
+		if(options.statistics) {
+			report.printSummary(System.out, SLOWEST_FILES);
+		}
+		
+		if(options.report != null) {
 			try {
-				Thread.sleep(200);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				report.write(new File(options.report));
+			} catch(IOException e) {
+				System.err.println("Cannot write report: " + e.getMessage());
 			}
 		}
 	}
-
-	public void taskAdded(Task task) {
-	}
-
-	public void modelCleared() {
-	}
-
-	public void completedWorklist() {
-		worklistFinished = true;
-	}
 }
\ No newline at end of file
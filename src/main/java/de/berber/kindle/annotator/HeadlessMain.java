@@ -0,0 +1,351 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.ExampleMode;
+
+import de.berber.kindle.annotator.controller.Daemon;
+import de.berber.kindle.annotator.controller.DaemonClient;
+import de.berber.kindle.annotator.controller.NotesExporter;
+import de.berber.kindle.annotator.controller.NotesIndexer;
+import de.berber.kindle.annotator.controller.WorkQueue;
+import de.berber.kindle.annotator.index.NoteIndex;
+import de.berber.kindle.annotator.index.SearchHit;
+import de.berber.kindle.annotator.index.SearchResult;
+import de.berber.kindle.annotator.lib.Settings;
+import de.berber.kindle.annotator.model.WorkingList;
+
+/**
+ * Entry point for batch runs, the notes export and index, the daemon and its client. It never refers to
+ *   the graphical user interface, so a JVM started with this class does not
+ *   load Swing, and AWT runs headless for the few classes PDFBox needs. Use
+ *   it for per-file invocations whose startup time matters, optionally with
+ *   the class data sharing archive created by {@code appcds.sh}.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class HeadlessMain {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(HeadlessMain.class);
+
+	/**
+	 * Converts the files given at the command line like {@link Main} does
+	 * with {@code --nogui}. For command line parameters see the {@see
+	 * Options} class.
+	 * 
+	 * @param args
+	 *            List of command line parameters.
+	 */
+	public static void main(String[] args) {
+		final Options options = parseArguments(args);
+		
+		if (options != null) {
+			options.noGUI = true;
+			run(options);
+		}
+	}
+
+	/**
+	 * Configures logging and reads the command line.
+	 * 
+	 * @return The options or {@code null} if there is nothing more to do.
+	 */
+	static @Nullable Options parseArguments(final @Nonnull String[] args) {
+		// configure logging
+		final PatternLayout layout = new PatternLayout(
+				"%d{ISO8601} %-5p [%t] %c: %m%n");
+		final ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+		Logger.getRootLogger().addAppender(consoleAppender);
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		// read commandline
+		final Options options = new Options();
+		final CmdLineParser parser = new CmdLineParser(options);
+		parser.setUsageWidth(80);
+
+		try {
+			// parse the arguments.
+			parser.parseArgument(args);
+
+			if (options.help) {
+				parser.printUsage(System.err);
+				return null;
+			}
+		} catch (CmdLineException e) {
+			// if there's a problem in the command line,
+			// you'll get this exception. this will report
+			// an error message.
+			System.err.println(e.getMessage());
+			System.err.println("Usage:");
+			// print the list of available options
+			parser.printUsage(System.err);
+			System.err.println();
+
+			// print option sample. This is useful some time
+			System.err.println("  Example: java -jar <jar> "
+					+ parser.printExample(ExampleMode.ALL));
+
+			return null;
+		}
+		
+		return options;
+	}
+
+	/**
+	 * Runs a batch conversion, the notes export, the notes index, the daemon
+	 * or forwards the conversion to the daemon.
+	 */
+	static void run(final @Nonnull Options options) {
+		// PDFBox pages refer to AWT colours, but there is never a display
+		System.setProperty("java.awt.headless", "true");
+		
+		try {
+			if (options.search != null) {
+				// searching does not need the settings
+				searchIndex(options);
+				return;
+			}
+			
+			// only batch runs are forwarded
+			if (options.remote && !options.watch && options.export == null && options.index == null && !options.daemon
+					&& forwardToDaemon(options)) {
+				return;
+			}
+
+			final Settings settings;
+			try {
+				settings = SettingsLoader.load(options);
+			} catch (IllegalArgumentException e) {
+				LOG.error("Invalid configuration: " + e.getMessage());
+				return;
+			}
+
+			if (options.export != null) {
+				exportNotes(options, settings);
+				return;
+			}
+
+			if (options.index != null) {
+				updateIndex(options, settings);
+				return;
+			}
+
+			if (options.daemon) {
+				final Daemon daemon;
+				try {
+					daemon = new Daemon(settings, options.port);
+				} catch (IOException e) {
+					LOG.error("Cannot start daemon: " + e.getMessage());
+					return;
+				}
+				
+				// the server keeps running after main returns
+				daemon.run();
+				System.out.println("Accepting jobs on " + daemon.getAddress());
+				return;
+			}
+
+			final WorkingList model = new WorkingList();
+			final WorkQueue queue = new WorkQueue(settings, model);
+
+			new BatchMain(options, settings, model).run();
+			queue.stop();
+
+			if (options.statistics) {
+				System.out.print(queue.getStatistics());
+			}
+		} catch (Exception ex) {
+			LOG.error("Error while executing Kindle Annotator. Please report a bug.");
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the notes of the input files to the output file or the console.
+	 */
+	private static void exportNotes(final @Nonnull Options options, final @Nonnull Settings settings) throws IOException {
+		if (options.input.isEmpty()) {
+			System.err.println("There is no input file.");
+			return;
+		}
+		
+		final List<File> inputFiles = new ArrayList<File>();
+		for (final String input : options.input) {
+			inputFiles.add(new File(input));
+		}
+		
+		final NotesExporter exporter = new NotesExporter(settings, options.export, options.recursive);
+		final Writer out = new BufferedWriter(new OutputStreamWriter(options.output == null
+				? System.out : new FileOutputStream(options.output), "UTF-8"));
+		try {
+			exporter.export(inputFiles, out);
+		} finally {
+			if (options.output == null) {
+				out.flush();
+			} else {
+				out.close();
+			}
+		}
+		
+		if (exporter.getNumberOfFailedBooks() > 0) {
+			System.err.println("Cannot read " + exporter.getNumberOfFailedBooks() + " PDR files.");
+		}
+		
+		if (options.statistics) {
+			System.err.println("Exported " + exporter.getNumberOfNotes() + " notes of "
+					+ exporter.getNumberOfBooks() + " books.");
+		}
+	}
+
+	/**
+	 * Adds the notes of the input files to the index.
+	 */
+	private static void updateIndex(final @Nonnull Options options, final @Nonnull Settings settings) throws IOException {
+		if (options.input.isEmpty()) {
+			System.err.println("There is no input file.");
+			return;
+		}
+		
+		final List<File> inputFiles = new ArrayList<File>();
+		for (final String input : options.input) {
+			inputFiles.add(new File(input));
+		}
+		
+		final NoteIndex index;
+		try {
+			index = new NoteIndex(new File(options.index), true);
+		} catch (IOException e) {
+			System.err.println("Cannot open index: " + e.getMessage());
+			return;
+		}
+		
+		final NotesIndexer indexer = new NotesIndexer(settings, index, options.recursive, options.indexMarkings, options.force);
+		try {
+			indexer.update(inputFiles);
+		} finally {
+			index.close();
+		}
+		
+		if (indexer.getNumberOfFailedBooks() > 0) {
+			System.err.println("Cannot read " + indexer.getNumberOfFailedBooks() + " PDR files.");
+		}
+		
+		if (options.statistics) {
+			System.err.println("Indexed " + indexer.getNumberOfIndexedBooks() + " books, "
+					+ indexer.getNumberOfUnchangedBooks() + " unchanged, "
+					+ indexer.getNumberOfRemovedBooks() + " removed, "
+					+ index.getNumberOfBooks() + " books in the index.");
+		}
+	}
+
+	/**
+	 * Prints the notes of the index matching the query.
+	 */
+	private static void searchIndex(final @Nonnull Options options) throws IOException {
+		if (options.index == null) {
+			System.err.println("There is no index to search, use --index.");
+			return;
+		}
+		
+		final File directory = new File(options.index);
+		if (!directory.isDirectory()) {
+			System.err.println("There is no index in " + directory);
+			return;
+		}
+		
+		final long start = System.nanoTime();
+		final SearchResult result = new NoteIndex(directory, false).search(options.search, Math.max(0, options.limit));
+		final long time = System.nanoTime() - start;
+		
+		final StringBuilder out = new StringBuilder();
+		for (final SearchHit hit : result.getHits()) {
+			out.append(hit).append('\n');
+		}
+		
+		final int more = result.getNumberOfMatches() - result.getHits().size();
+		if (more > 0) {
+			out.append(more).append(" more\n");
+		}
+		System.out.print(out);
+		
+		if (options.statistics) {
+			System.err.println("Found " + result.getNumberOfMatches() + " notes in "
+					+ (time / 1000000) + " ms.");
+		}
+	}
+
+	/**
+	 * Lets a running daemon convert the files and prints its result. The
+	 *   daemon converts with its own configuration and writes no reports, so
+	 *   runs with a configuration file or a report are not forwarded.
+	 * 
+	 * @return {@code false} if the files have to be converted locally.
+	 */
+	private static boolean forwardToDaemon(final Options options) {
+		if (options.config != null || options.report != null) {
+			LOG.warn("The daemon cannot honour -c and --report, converting locally.");
+			return false;
+		}
+		
+		if (options.input.isEmpty()) {
+			System.err.println("There is no input file.");
+			return true;
+		}
+		
+		final List<File> inputFiles = new ArrayList<File>();
+		for (final String input : options.input) {
+			inputFiles.add(new File(input));
+		}
+		final File outputFile = options.output == null ? null : new File(options.output);
+		final DaemonClient client = new DaemonClient(options.port);
+		
+		try {
+			System.out.print(client.submit(inputFiles, outputFile, options.force, options.recursive));
+			
+			if (options.statistics) {
+				System.out.print(client.getStatistics());
+			}
+		} catch (ConnectException e) {
+			LOG.warn("There is no daemon on port " + options.port + ", converting locally.");
+			return false;
+		} catch (IOException e) {
+			System.err.println("The daemon rejected the job: " + e.getMessage());
+		}
+		
+		return true;
+	}
+}
@@ -15,8 +15,14 @@
  */
 package de.berber.kindle.annotator;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kohsuke.args4j.Option;
 
+import de.berber.kindle.annotator.controller.Daemon;
+import de.berber.kindle.annotator.lib.NotesWriter;
+
 /**
  * All available command line options
  * 
@@ -29,12 +35,54 @@ public class Options {
 	@Option(name="-c", usage="Specify a configuration properties file", aliases={"--config"})
 	public String config = null; 
 	
-	@Option(name="-i", usage="Specify an input PDF file or an input directory.", aliases={"--input"})
-	public String input = null;
+	@Option(name="-i", usage="Specify an input PDF file or an input directory. May be given several times.", aliases={"--input"})
+	public List<String> input = new ArrayList<String>();
+
+	@Option(name="-r", usage="Search input directories recursively.", aliases={"--recursive"})
+	public boolean recursive = false;
 
 	@Option(name="-o", usage="Specify an output PDF file or an output directory.", aliases={"--output"})
 	public String output = null;
 	
 	@Option(name="-n", usage="Do not show graphical user interface.", aliases={"--nogui"})
 	public boolean noGUI = false;
+	
+	@Option(name="-f", usage="Convert all files, even if they are up to date.", aliases={"--force"})
+	public boolean force = false;
+	
+	@Option(name="-s", usage="Print statistics after a batch run.", aliases={"--statistics"})
+	public boolean statistics = false;
+	
+	@Option(name="--report", usage="Write the timings of all files of a batch run to a CSV file, or a JSON file if the name ends with .json.")
+	public String report = null;
+	
+	@Option(name="-w", usage="Keep running and convert files again as soon as their PDR file changes.", aliases={"--watch"})
+	public boolean watch = false;
+	
+	@Option(name="--watch-delay", usage="Milliseconds a PDR file must not change before it is converted in watch mode, at least 2000.")
+	public int watchDelay = 2000;
+	
+	@Option(name="--export", usage="Write the notes of the PDR files to the output file or the console instead of annotating the PDF files.")
+	public NotesWriter.Format export = null;
+	
+	@Option(name="--daemon", usage="Keep running and accept conversion jobs on the loopback interface.")
+	public boolean daemon = false;
+	
+	@Option(name="--remote", usage="Let a running daemon convert the files of a batch run with its configuration. Converts them locally if there is no daemon or if -c or --report is given.")
+	public boolean remote = false;
+	
+	@Option(name="--port", usage="Port of the daemon.")
+	public int port = Daemon.DEFAULT_PORT;
+	
+	@Option(name="--index", usage="Add the notes of the PDR files to the full-text index in this directory, or search it with --search.")
+	public String index = null;
+	
+	@Option(name="--index-markings", usage="Also index the text of the PDF files under markings.")
+	public boolean indexMarkings = false;
+	
+	@Option(name="--search", usage="Print the notes of the index containing all words of the query. A trailing * matches word prefixes.")
+	public String search = null;
+	
+	@Option(name="--limit", usage="Maximal number of notes printed by --search.")
+	public int limit = 20;
 }
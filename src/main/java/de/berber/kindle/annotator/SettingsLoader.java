@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.log4j.Logger;
+
+import de.berber.kindle.annotator.lib.AnnotationStyle;
+import de.berber.kindle.annotator.lib.Settings;
+
+/**
+ * Reads the configuration and compiles it into the immutable settings used
+ *   by all workers. The defaults are plain properties, so commons
+ *   configuration is only loaded for a configuration file given at the
+ *   command line.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class SettingsLoader {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(SettingsLoader.class);
+	
+	/**
+	 * Resource containing the default configuration.
+	 */
+	private static final String DEFAULT_CONFIGURATION = "de/berber/kindle/annotator/PDFAnnotator.default";
+	
+	private SettingsLoader() {
+	}
+
+	/**
+	 * Reads the default configuration and the configuration file specified
+	 *   in {@code options}, whose values take precedence.
+	 * 
+	 * @throws IllegalArgumentException If a value is invalid.
+	 * @throws IOException If the defaults cannot be read.
+	 * @throws ConfigurationException If the configuration file cannot be
+	 *   read.
+	 */
+	static @Nonnull Settings load(final @Nonnull Options options) throws IOException, ConfigurationException {
+		final Properties configuration = new Properties();
+		
+		final InputStream input = SettingsLoader.class.getClassLoader().getResourceAsStream(DEFAULT_CONFIGURATION);
+		if(input == null) {
+			throw new IOException("Missing default configuration " + DEFAULT_CONFIGURATION);
+		}
+		
+		try {
+			configuration.load(input);
+		} finally {
+			input.close();
+		}
+		
+		if(options.config != null) {
+			final File configFile = new File(options.config);
+			
+			if(!configFile.exists() || !configFile.canRead()) {
+				LOG.error("Specified configuration file does not exist.");
+			} else {
+				readConfigurationFile(configFile, configuration);
+			}
+		}
+		
+		return compileSettings(configuration);
+	}
+	
+	/**
+	 * Reads a configuration file with commons configuration, which resolves
+	 *   variables and includes, and adds its values to {@code configuration}.
+	 */
+	private static void readConfigurationFile(final @Nonnull File configFile, final @Nonnull Properties configuration)
+			throws ConfigurationException {
+		final PropertiesConfiguration userConfiguration = new PropertiesConfiguration(configFile);
+		
+		for(final Iterator<?> keys = userConfiguration.getKeys(); keys.hasNext(); ) {
+			final String key = (String) keys.next();
+			final String value = userConfiguration.getString(key);
+			
+			if(value != null) {
+				configuration.setProperty(key, value);
+			}
+		}
+	}
+
+	/**
+	 * Compiles the configuration into the immutable settings used by all
+	 * workers.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If a value is invalid.
+	 */
+	static Settings compileSettings(final Properties cc) {
+		final String scratchDirectory = getString(cc, "scratchDirectory", "");
+
+		return new Settings.Builder()
+				.setBookmarkStyle(compileStyle(cc, "bookmark"))
+				.setMarkingStyle(compileStyle(cc, "markings"))
+				.setCommentStyle(compileStyle(cc, "comments"))
+				.setCommentMergeTolerance(getDouble(cc, "comments.mergeTolerance",
+						Settings.DEFAULT.getCommentMergeTolerance()))
+				.setDumpDebugFile(getBoolean(cc, "dumpDebugFile", false))
+				.setIncrementalUpdate(getBoolean(cc, "incrementalUpdate", false))
+				.setXfdfOutput(getBoolean(cc, "xfdfOutput", false))
+				.setLowMemory(getBoolean(cc, "lowMemory", false))
+				.setScratchDirectory(scratchDirectory.length() == 0 ? null : new File(scratchDirectory))
+				.setReadThreads(compileThreads(cc, "pipeline.readThreads"))
+				.setLoadThreads(compileThreads(cc, "pipeline.loadThreads"))
+				.setAnnotateThreads(compileThreads(cc, "pipeline.annotateThreads"))
+				.setWriteThreads(compileThreads(cc, "pipeline.writeThreads"))
+				.setStageQueueCapacity(getInt(cc, "pipeline.queueCapacity", 2))
+				.setVirtualThreads(getBoolean(cc, "pipeline.virtualThreads", false))
+				.setMemoryBudget(compileMemoryBudget(cc))
+				.build();
+	}
+
+	/**
+	 * Reads the memory budget in megabytes. Values less than one stand for
+	 * 60 percent of the maximal heap size.
+	 */
+	private static long compileMemoryBudget(final Properties cc) {
+		final long budget = getLong(cc, "memory.budget", 0);
+
+		return budget > 0 ? budget << 20 : Settings.DEFAULT.getMemoryBudget();
+	}
+
+	/**
+	 * Reads a number of threads. Values less than one stand for the number of
+	 * available processors.
+	 */
+	private static int compileThreads(final Properties cc, final String key) {
+		final int threads = getInt(cc, key, 0);
+
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Compiles the style of the annotations configured with {@code prefix}.
+	 */
+	private static AnnotationStyle compileStyle(final Properties cc, final String prefix) {
+		return new AnnotationStyle(
+				getString(cc, prefix + ".color", AnnotationStyle.DEFAULT_COLOR),
+				getFloat(cc, prefix + ".opacity", AnnotationStyle.DEFAULT_OPACITY));
+	}
+
+	private static String getString(final Properties cc, final String key, final String defaultValue) {
+		final String value = cc.getProperty(key);
+
+		return value == null ? defaultValue : value.trim();
+	}
+
+	private static int getInt(final Properties cc, final String key, final int defaultValue) {
+		final String value = getString(cc, key, "");
+
+		try {
+			return value.length() == 0 ? defaultValue : Integer.parseInt(value);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("'" + key + "' is not a number: " + value);
+		}
+	}
+
+	private static long getLong(final Properties cc, final String key, final long defaultValue) {
+		final String value = getString(cc, key, "");
+
+		try {
+			return value.length() == 0 ? defaultValue : Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("'" + key + "' is not a number: " + value);
+		}
+	}
+
+	private static float getFloat(final Properties cc, final String key, final float defaultValue) {
+		final String value = getString(cc, key, "");
+
+		try {
+			return value.length() == 0 ? defaultValue : Float.parseFloat(value);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("'" + key + "' is not a number: " + value);
+		}
+	}
+
+	private static double getDouble(final Properties cc, final String key, final double defaultValue) {
+		final String value = getString(cc, key, "");
+
+		try {
+			return value.length() == 0 ? defaultValue : Double.parseDouble(value);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("'" + key + "' is not a number: " + value);
+		}
+	}
+
+	/**
+	 * Reads a boolean. Like commons configuration it accepts {@code true},
+	 * {@code yes} and {@code on} as well as their opposites.
+	 */
+	private static boolean getBoolean(final Properties cc, final String key, final boolean defaultValue) {
+		final String value = getString(cc, key, "");
+
+		if(value.length() == 0) {
+			return defaultValue;
+		} else if(value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("on")) {
+			return true;
+		} else if(value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equalsIgnoreCase("off")) {
+			return false;
+		}
+
+		throw new IllegalArgumentException("'" + key + "' is not a boolean: " + value);
+	}
+}
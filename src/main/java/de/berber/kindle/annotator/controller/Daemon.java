@@ -0,0 +1,447 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.berber.kindle.annotator.lib.Settings;
+import de.berber.kindle.annotator.model.WorkingList;
+
+/**
+ * Keeps a work queue resident and accepts conversion jobs on the loopback
+ *   interface, so clients do not pay for starting a JVM and loading PDFBox
+ *   for every book.
+ * 
+ * {@code POST /jobs} takes the form encoded parameters {@code input} (may be
+ *   given several times), {@code output}, {@code force} and
+ *   {@code recursive}, converts the files like a batch run and answers with
+ *   a JSON object describing the result of each file. {@code GET /statistics}
+ *   returns the statistics of the pipeline.
+ *   
+ * All jobs share the pipeline and run concurrently, except for jobs whose
+ *   output directories are the same or nested. They may write the same
+ *   files and manifests and run one after the other.
+ *   
+ * Every request has to carry the random token the daemon writes to a file
+ *   only its user can read, see {@link #getTokenFile}. Requests of web
+ *   pages, recognised by their {@code Origin} header or a foreign
+ *   {@code Host} header, are rejected.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class Daemon implements Runnable {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(Daemon.class);
+	
+	/**
+	 * Default port of the daemon.
+	 */
+	public static final int DEFAULT_PORT = 7891;
+	
+	/**
+	 * Path of the job resource.
+	 */
+	static final String JOBS_PATH = "/jobs";
+	
+	/**
+	 * Path of the statistics resource.
+	 */
+	static final String STATISTICS_PATH = "/statistics";
+	
+	/**
+	 * Character set of all requests and responses.
+	 */
+	static final String CHARSET = "UTF-8";
+	
+	/**
+	 * Header carrying the token of the daemon. Browsers do not send custom
+	 *   headers without asking the daemon first, which it does not answer.
+	 */
+	static final String TOKEN_HEADER = "X-Kindle-Annotator-Token";
+	
+	/**
+	 * Number of random bytes of the token.
+	 */
+	private static final int TOKEN_SIZE = 32;
+	
+	/**
+	 * Host names a local client may use.
+	 */
+	private static final Set<String> LOCAL_HOSTS = new HashSet<String>(Arrays.asList("127.0.0.1", "localhost", "[::1]"));
+	
+	/**
+	 * The work queue converting the tasks of all jobs.
+	 */
+	private final WorkQueue queue;
+	
+	/**
+	 * The annotator settings.
+	 */
+	private final Settings settings;
+	
+	/**
+	 * The HTTP server.
+	 */
+	private final HttpServer server;
+	
+	/**
+	 * Output directories of the jobs that are currently running.
+	 */
+	private final Set<Path> activeOutputs = new HashSet<Path>();
+	
+	/**
+	 * Token every request has to present.
+	 */
+	private final String token;
+	
+	/**
+	 * Creates a daemon listening on {@code port} of the loopback interface.
+	 * 
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public Daemon(final @Nonnull Settings settings, final @Nonnegative int port) throws IOException {
+		this.settings = settings;
+		queue = new WorkQueue(settings);
+		
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		token = createToken(server.getAddress().getPort());
+		server.createContext(JOBS_PATH, new HttpHandler() {
+			public void handle(final @Nonnull HttpExchange exchange) throws IOException {
+				if(isAuthorized(exchange)) {
+					handleJob(exchange);
+				}
+			}
+		});
+		server.createContext(STATISTICS_PATH, new HttpHandler() {
+			public void handle(final @Nonnull HttpExchange exchange) throws IOException {
+				if(isAuthorized(exchange)) {
+					send(exchange, 200, "text/plain", queue.getStatistics());
+				}
+			}
+		});
+		// every job waits for its conversion
+		server.setExecutor(Executors.newCachedThreadPool());
+	}
+
+	/**
+	 * Starts accepting jobs. The daemon runs until the process ends.
+	 */
+	public void run() {
+		server.start();
+		LOG.info("Accepting jobs on " + server.getAddress());
+	}
+	
+	/**
+	 * @return The address the daemon listens on.
+	 */
+	public @Nonnull InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	
+	/**
+	 * @return The file containing the token of the daemon on {@code port}.
+	 */
+	static @Nonnull File getTokenFile(final @Nonnegative int port) {
+		return new File(System.getProperty("user.home"), ".kindle-annotator-daemon-" + port + ".token");
+	}
+	
+	/**
+	 * Creates a random token and writes it to the token file, readable by
+	 *   the current user only.
+	 */
+	private static @Nonnull String createToken(final @Nonnegative int port) throws IOException {
+		final byte[] bytes = new byte[TOKEN_SIZE];
+		new SecureRandom().nextBytes(bytes);
+		
+		final StringBuilder result = new StringBuilder();
+		for(final byte value : bytes) {
+			result.append(String.format(Locale.ROOT, "%02x", value & 0xff));
+		}
+		
+		final File tokenFile = getTokenFile(port);
+		final Path path = tokenFile.toPath();
+		// a new file, an existing one may be readable by others
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch(UnsupportedOperationException e) {
+			Files.createFile(path);
+			if(!tokenFile.setReadable(false, false) || !tokenFile.setReadable(true, true)) {
+				throw new IOException("Cannot restrict access to " + tokenFile);
+			}
+		}
+		tokenFile.deleteOnExit();
+		
+		Files.write(path, result.toString().getBytes(CHARSET));
+		return result.toString();
+	}
+	
+	/**
+	 * Rejects requests without the token and requests of web pages.
+	 * 
+	 * @return {@code true} if the request may be handled.
+	 */
+	private boolean isAuthorized(final @Nonnull HttpExchange exchange) throws IOException {
+		final String origin = exchange.getRequestHeaders().getFirst("Origin");
+		final String host = exchange.getRequestHeaders().getFirst("Host");
+		final String requestToken = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+		
+		if(origin != null || !isLocalHost(host)) {
+			LOG.warn("Rejected request from " + (origin != null ? origin : host));
+			send(exchange, 403, "text/plain", "Requests of other hosts are not accepted.\n");
+			return false;
+		}
+		
+		if(requestToken == null || !MessageDigest.isEqual(token.getBytes(CHARSET), requestToken.getBytes(CHARSET))) {
+			send(exchange, 403, "text/plain", "Missing or wrong token, see " + getTokenFile(getAddress().getPort()) + ".\n");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return {@code true} if {@code host}, a host header with an optional
+	 *   port, names the loopback interface.
+	 */
+	private static boolean isLocalHost(final @Nullable String host) {
+		if(host == null) {
+			return false;
+		}
+		
+		// the colons of an IPv6 address are enclosed in brackets
+		final int portSeparator = host.lastIndexOf(':');
+		final String name = portSeparator < 0 || host.indexOf(']', portSeparator) >= 0 ? host : host.substring(0, portSeparator);
+		
+		return LOCAL_HOSTS.contains(name.toLowerCase(Locale.ROOT));
+	}
+	
+	/**
+	 * Converts the files of a single job and sends the result.
+	 */
+	private void handleJob(final @Nonnull HttpExchange exchange) throws IOException {
+		if(!"POST".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, "text/plain", "Jobs have to be posted.\n");
+			return;
+		}
+		
+		final Map<String, List<String>> parameters = parseParameters(readBody(exchange.getRequestBody()));
+		final List<File> inputFiles = new ArrayList<File>();
+		for(final String input : getValues(parameters, "input")) {
+			inputFiles.add(new File(input));
+		}
+		final String output = getValue(parameters, "output");
+		final File outputFile = output == null ? null : new File(output);
+		final boolean force = Boolean.parseBoolean(getValue(parameters, "force"));
+		final boolean recursive = Boolean.parseBoolean(getValue(parameters, "recursive"));
+		
+		// the manifests of the outputs are read once the other jobs are done
+		final Set<Path> outputs;
+		try {
+			outputs = getOutputs(inputFiles, outputFile);
+		} catch(IllegalArgumentException e) {
+			send(exchange, 400, "text/plain", e.getMessage() + "\n");
+			return;
+		}
+		
+		try {
+			acquire(outputs);
+		} catch(InterruptedException e) {
+			send(exchange, 503, "text/plain", "Interrupted while waiting for another job.\n");
+			return;
+		}
+		
+		final WorkingList model = new WorkingList();
+		final PerformanceReport report = new PerformanceReport(model);
+		final WorkCollector collector;
+		try {
+			try {
+				collector = new WorkCollector(settings, inputFiles, outputFile, model, force, recursive);
+			} catch(IllegalArgumentException e) {
+				send(exchange, 400, "text/plain", e.getMessage() + "\n");
+				return;
+			}
+			
+			model.addListener(queue);
+			collector.run();
+			model.getCompletion().join();
+		} finally {
+			release(outputs);
+		}
+		
+		final StringWriter result = new StringWriter();
+		final PrintWriter out = new PrintWriter(result);
+		final int failed = model.getNumberOfFailedTasks();
+		out.println("{\"converted\": " + (model.getNumberOfCompletedTasks() - failed)
+				+ ", \"failed\": " + failed
+				+ ", \"skipped\": " + collector.getNumberOfSkippedTasks()
+				+ ", \"empty\": " + collector.getNumberOfEmptyTasks()
+				+ ", \"files\":");
+		report.writeJSON(out);
+		out.println("}");
+		out.flush();
+		
+		LOG.info("Finished job for " + inputFiles);
+		send(exchange, 200, "application/json", result.toString());
+	}
+	
+	/**
+	 * @return The directories keeping the manifests of a job. The job writes
+	 *   files in these directories and their sub directories only.
+	 * 
+	 * @throws IllegalArgumentException If an input or the output is invalid.
+	 */
+	private static Set<Path> getOutputs(final @Nonnull List<File> inputFiles, final @Nullable File outputFile) {
+		final Set<Path> result = new HashSet<Path>();
+		for(final File inputFile : inputFiles) {
+			result.add(WorkCollector.getOutputDirectory(inputFile, outputFile).toPath().normalize());
+		}
+		return result;
+	}
+	
+	/**
+	 * Waits until no other job writes to {@code outputs}, their parents or
+	 *   their sub directories and claims them.
+	 */
+	private synchronized void acquire(final @Nonnull Set<Path> outputs) throws InterruptedException {
+		while(isActive(outputs)) {
+			wait();
+		}
+		
+		activeOutputs.addAll(outputs);
+	}
+	
+	/**
+	 * @return {@code true} if a running job writes to one of {@code outputs},
+	 *   a parent or a sub directory of them.
+	 */
+	private synchronized boolean isActive(final @Nonnull Set<Path> outputs) {
+		for(final Path activeOutput : activeOutputs) {
+			for(final Path output : outputs) {
+				if(activeOutput.startsWith(output) || output.startsWith(activeOutput)) {
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	private synchronized void release(final @Nonnull Set<Path> outputs) {
+		activeOutputs.removeAll(outputs);
+		notifyAll();
+	}
+	
+	private static @Nonnull String readBody(final @Nonnull InputStream input) throws IOException {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		
+		for(int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+			body.write(buffer, 0, read);
+		}
+		
+		return body.toString(CHARSET);
+	}
+	
+	/**
+	 * Parses a form encoded body.
+	 */
+	private static @Nonnull Map<String, List<String>> parseParameters(final @Nonnull String body) throws IOException {
+		final Map<String, List<String>> result = new HashMap<String, List<String>>();
+		
+		for(final String parameter : body.split("&")) {
+			if(parameter.length() == 0) {
+				continue;
+			}
+			
+			final int separator = parameter.indexOf('=');
+			final String name = URLDecoder.decode(separator < 0 ? parameter : parameter.substring(0, separator), CHARSET);
+			final String value = separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), CHARSET);
+			
+			List<String> values = result.get(name);
+			if(values == null) {
+				values = new ArrayList<String>();
+				result.put(name, values);
+			}
+			values.add(value);
+		}
+		
+		return result;
+	}
+	
+	private static @Nonnull List<String> getValues(final @Nonnull Map<String, List<String>> parameters, final @Nonnull String name) {
+		final List<String> values = parameters.get(name);
+		
+		return values == null ? Collections.<String>emptyList() : values;
+	}
+	
+	private static String getValue(final @Nonnull Map<String, List<String>> parameters, final @Nonnull String name) {
+		final List<String> values = getValues(parameters, name);
+		
+		return values.isEmpty() ? null : values.get(0);
+	}
+	
+	private static void send(final @Nonnull HttpExchange exchange, final int status,
+			final @Nonnull String contentType, final @Nonnull String body) throws IOException {
+		final byte[] bytes = body.getBytes(CHARSET);
+		
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=" + CHARSET);
+		exchange.sendResponseHeaders(status, bytes.length);
+		
+		final OutputStream output = exchange.getResponseBody();
+		try {
+			output.write(bytes);
+		} finally {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Forwards conversion jobs to a running {@link Daemon}.
+ * 
+ * @author Bernhard J. Berger
+ */
+public final class DaemonClient {
+	/**
+	 * Port of the daemon.
+	 */
+	private final int port;
+
+	public DaemonClient(final @Nonnegative int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Lets the daemon convert {@code inputFiles} like a batch run and waits
+	 *   for the result. Relative paths are resolved against the current
+	 *   directory, not the one of the daemon.
+	 * 
+	 * @return The JSON result of the job.
+	 * 
+	 * @throws ConnectException If there is no daemon.
+	 * @throws IOException If the daemon rejects the job.
+	 */
+	public @Nonnull String submit(final @Nonnull List<File> inputFiles, final @Nullable File outputFile,
+			final boolean force, final boolean recursive) throws IOException {
+		final StringBuilder body = new StringBuilder();
+		for(final File inputFile : inputFiles) {
+			appendParameter(body, "input", inputFile.getAbsolutePath());
+		}
+		if(outputFile != null) {
+			appendParameter(body, "output", outputFile.getAbsolutePath());
+		}
+		appendParameter(body, "force", Boolean.toString(force));
+		appendParameter(body, "recursive", Boolean.toString(recursive));
+		
+		final HttpURLConnection connection = open(Daemon.JOBS_PATH);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=" + Daemon.CHARSET);
+		connection.setDoOutput(true);
+		
+		final OutputStream output = connection.getOutputStream();
+		try {
+			output.write(body.toString().getBytes(Daemon.CHARSET));
+		} finally {
+			output.close();
+		}
+		
+		return readResponse(connection);
+	}
+
+	/**
+	 * @return The statistics of the pipeline of the daemon.
+	 * 
+	 * @throws ConnectException If there is no daemon.
+	 */
+	public @Nonnull String getStatistics() throws IOException {
+		return readResponse(open(Daemon.STATISTICS_PATH));
+	}
+
+	private @Nonnull HttpURLConnection open(final @Nonnull String path) throws IOException {
+		final String host = InetAddress.getLoopbackAddress().getHostAddress();
+		final URL url = new URL("http", host.indexOf(':') < 0 ? host : "[" + host + "]", port, path);
+		
+		final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty(Daemon.TOKEN_HEADER, readToken());
+		// conversions may take as long as they need
+		connection.setReadTimeout(0);
+		return connection;
+	}
+
+	/**
+	 * @return The token the daemon wrote for the current user.
+	 * 
+	 * @throws ConnectException If there is no token file.
+	 */
+	private @Nonnull String readToken() throws IOException {
+		final File tokenFile = Daemon.getTokenFile(port);
+		if(!tokenFile.isFile()) {
+			throw new ConnectException("There is no token file " + tokenFile);
+		}
+		
+		return new String(Files.readAllBytes(tokenFile.toPath()), Daemon.CHARSET).trim();
+	}
+
+	private static @Nonnull String readResponse(final @Nonnull HttpURLConnection connection) throws IOException {
+		final int status = connection.getResponseCode();
+		final InputStream input = status == HttpURLConnection.HTTP_OK ? connection.getInputStream() : connection.getErrorStream();
+		
+		final ByteArrayOutputStream response = new ByteArrayOutputStream();
+		if(input != null) {
+			try {
+				final byte[] buffer = new byte[4096];
+				for(int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+					response.write(buffer, 0, read);
+				}
+			} finally {
+				input.close();
+			}
+		}
+		
+		final String result = response.toString(Daemon.CHARSET);
+		if(status != HttpURLConnection.HTTP_OK) {
+			throw new IOException(result.trim().length() == 0 ? "HTTP status " + status : result.trim());
+		}
+		
+		return result;
+	}
+
+	private static void appendParameter(final @Nonnull StringBuilder body, final @Nonnull String name,
+			final @Nonnull String value) throws IOException {
+		if(body.length() > 0) {
+			body.append('&');
+		}
+		
+		body.append(URLEncoder.encode(name, Daemon.CHARSET)).append('=').append(URLEncoder.encode(value, Daemon.CHARSET));
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+import de.berber.kindle.annotator.lib.PDFAnnotator;
+import de.berber.kindle.annotator.model.State;
+import de.berber.kindle.annotator.model.Task;
+import de.berber.kindle.annotator.model.TaskListener;
+
+/**
+ * The manifest remembers the state of the input PDF, the input PDR and the
+ *   produced output of every successful conversion. A conversion whose
+ *   inputs did not change and whose output is still untouched is up to date
+ *   and does not have to be repeated. The output is the annotated PDF file
+ *   or, if XFDF files are written, the XFDF file next to it. Entries are
+ *   keyed by the output and carry the output mode, so a conversion in the
+ *   other mode is never up to date.
+ *   
+ * A file is considered unchanged if its size and its modification time are
+ *   the same as recorded. If only the modification time differs, the content
+ *   hash decides.
+ *   
+ * The manifest is stored as a properties file in the output directory. It
+ *   listens to the tasks of its collector and is written as soon as the
+ *   collector and all of its tasks are finished. The files of a finished
+ *   task are examined by the {@link WorkQueue}, see
+ *   {@link #getFileStates}, the manifest only stores the result.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class Manifest implements TaskListener {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(Manifest.class);
+
+	/**
+	 * Name of the manifest file in the output directory.
+	 */
+	public static final String FILE_NAME = ".kindle-annotator.manifest";
+
+	/**
+	 * Algorithm used for content hashes.
+	 */
+	private static final String HASH_ALGORITHM = "SHA-1";
+
+	/**
+	 * Coarsest resolution of file modification times in milliseconds, as
+	 *   found on FAT file systems. A PDR file modified less than this before
+	 *   its conversion started may have changed during the conversion.
+	 */
+	static final long MODIFICATION_TIME_RESOLUTION = 2000;
+
+	/**
+	 * Output mode of conversions writing PDF files, the first field of an
+	 *   entry.
+	 */
+	private static final String PDF_MODE = "pdf";
+
+	/**
+	 * Output mode of conversions writing XFDF files.
+	 */
+	private static final String XFDF_MODE = "xfdf";
+
+	/**
+	 * Number of fields of an entry, the mode and three file states.
+	 */
+	private static final int ENTRY_FIELDS = 10;
+
+	/**
+	 * The manifest file.
+	 */
+	private final File manifestFile;
+
+	/**
+	 * Set if the conversions write XFDF files instead of PDF files.
+	 */
+	private final boolean xfdfOutput;
+
+	/**
+	 * Recorded entries keyed by the absolute path of the output file.
+	 */
+	private final Properties entries = new Properties();
+
+	/**
+	 * Number of watched tasks that are not finished yet.
+	 */
+	private int numberOfPendingTasks = 0;
+
+	/**
+	 * Set if the collector will not add further tasks.
+	 */
+	private boolean collectorFinished = false;
+
+	/**
+	 * Set if entries changed since loading the manifest.
+	 */
+	private boolean modified = false;
+
+	/**
+	 * Creates a manifest for the given output directory and loads the
+	 *   entries of a previous run if there are any.
+	 * 
+	 * @param xfdfOutput Set if the conversions write XFDF files.
+	 */
+	public Manifest(final @Nonnull File outputDirectory, final boolean xfdfOutput) {
+		this.manifestFile = new File(outputDirectory, FILE_NAME);
+		this.xfdfOutput = xfdfOutput;
+		
+		if(manifestFile.isFile()) {
+			InputStream input = null;
+			try {
+				input = new FileInputStream(manifestFile);
+				entries.load(input);
+			} catch(IOException e) {
+				LOG.warn("Cannot read manifest " + manifestFile + ", all files will be converted");
+				entries.clear();
+			} finally {
+				close(input);
+			}
+		}
+	}
+
+	/**
+	 * Checks if the conversion of {@code pdfFile} into {@code outputFile} is
+	 *   up to date. The files are examined without holding the lock of the
+	 *   manifest, so several collector threads may check files at once.
+	 */
+	public boolean isUpToDate(final @Nonnull File pdfFile, final @Nonnull File pdrFile, final @Nonnull File outputFile) {
+		final File writtenFile = getWrittenFile(outputFile, xfdfOutput);
+		final String entry;
+		synchronized(this) {
+			entry = entries.getProperty(getKey(writtenFile));
+		}
+		
+		if(entry == null || !writtenFile.isFile()) {
+			return false;
+		}
+		
+		final String[] fields = entry.split(" ");
+		if(fields.length != ENTRY_FIELDS || !fields[0].equals(getMode(xfdfOutput))) {
+			return false;
+		}
+		
+		return matches(pdfFile, fields, 1)
+				&& matches(pdrFile, fields, 4)
+				&& matches(writtenFile, fields, 7);
+	}
+
+	/**
+	 * Announces a task that will report its state changes to the manifest.
+	 *   The manifest will not be written before it is finished.
+	 */
+	public synchronized void expectTask() {
+		numberOfPendingTasks += 1;
+	}
+
+	/**
+	 * The collector will not add further tasks.
+	 */
+	public void collectorFinished() {
+		synchronized(this) {
+			collectorFinished = true;
+		}
+		saveIfComplete();
+	}
+
+	/**
+	 * Records successful conversions and forgets failed ones.
+	 */
+	public void stateChange(final @Nonnull Task task,
+			                final @Nonnull State oldState,
+			                final @Nonnull State newState) {
+		if(newState == State.FINISHED) {
+			record(task);
+		} else if(newState == State.ERROR || newState == State.ABORTED) {
+			forget(task);
+		} else {
+			return;
+		}
+		
+		synchronized(this) {
+			numberOfPendingTasks -= 1;
+		}
+		saveIfComplete();
+	}
+
+	/**
+	 * Records the file states determined when {@code task} finished.
+	 */
+	private void record(final @Nonnull Task task) {
+		final String entry = task.getFileStates();
+		
+		if(entry == null || !entry.startsWith(getMode(xfdfOutput) + " ")) {
+			forget(task);
+			return;
+		}
+		
+		synchronized(this) {
+			entries.setProperty(getKey(getWrittenFile(task.getOutputFile(), xfdfOutput)), entry);
+			modified = true;
+		}
+	}
+
+	/**
+	 * Determines the current state of the files of the finished
+	 *   {@code task}, which is the entry of the task. The files are read
+	 *   completely, so this is done by the worker finishing the task. If the
+	 *   PDR file may have changed while the task was running, there is no
+	 *   entry, the manifest must not claim the newer state to be converted.
+	 *   
+	 * @param xfdfOutput Set if the conversion wrote an XFDF file.
+	 * 
+	 * @return The entry or {@code null} if the task has to be forgotten.
+	 */
+	static @Nullable String getFileStates(final @Nonnull Task task, final boolean xfdfOutput) {
+		final File pdfFile = task.getInputFile();
+		final File outputFile = getWrittenFile(task.getOutputFile(), xfdfOutput);
+		
+		if(!outputFile.isFile()) {
+			// nothing has been written, e.g. there were no annotations
+			return null;
+		}
+		
+		try {
+			final String pdfState = getState(pdfFile);
+			final File pdrFile = WorkCollector.getPDRFile(pdfFile);
+			if(pdrFile.lastModified() + MODIFICATION_TIME_RESOLUTION > task.getStartTime()) {
+				LOG.info("PDR file changed during conversion of " + task);
+				return null;
+			}
+			
+			final String pdrState = getState(pdrFile);
+			// the output state equals the input state for in-place conversions
+			final String outputState = outputFile.equals(pdfFile) ? pdfState : getState(outputFile);
+			
+			return getMode(xfdfOutput) + " " + pdfState + " " + pdrState + " " + outputState;
+		} catch(IOException e) {
+			LOG.warn("Cannot record " + task + " in manifest");
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the entry of {@code task}.
+	 */
+	private synchronized void forget(final @Nonnull Task task) {
+		if(entries.remove(getKey(getWrittenFile(task.getOutputFile(), xfdfOutput))) != null) {
+			modified = true;
+		}
+	}
+
+	/**
+	 * Writes the manifest if the collector and all of its tasks are finished.
+	 */
+	private synchronized void saveIfComplete() {
+		if(!collectorFinished || numberOfPendingTasks != 0 || !modified) {
+			return;
+		}
+		
+		// write to a temporary file first to never leave a broken manifest
+		final File temporaryFile = new File(manifestFile.getParentFile(), FILE_NAME + ".tmp");
+		OutputStream output = null;
+		try {
+			output = new FileOutputStream(temporaryFile);
+			entries.store(output, "Kindle annotator manifest: output mode, pdf, pdr and output as size, mtime, hash");
+			output.close();
+			output = null;
+			
+			if(manifestFile.exists() && !manifestFile.delete() || !temporaryFile.renameTo(manifestFile)) {
+				throw new IOException("Cannot replace " + manifestFile);
+			}
+			modified = false;
+		} catch(IOException e) {
+			LOG.error("Cannot write manifest " + manifestFile);
+		} finally {
+			close(output);
+		}
+	}
+
+	/**
+	 * Checks if {@code file} matches the state recorded at {@code offset} in
+	 *   {@code fields}.
+	 */
+	private static boolean matches(final @Nonnull File file, final @Nonnull String[] fields, final int offset) {
+		try {
+			if(file.length() != Long.parseLong(fields[offset])) {
+				return false;
+			}
+			
+			if(file.lastModified() == Long.parseLong(fields[offset + 1])) {
+				return true;
+			}
+			
+			// touched or copied files are still unchanged if the content is
+			return getHash(file).equals(fields[offset + 2]);
+		} catch(NumberFormatException e) {
+			return false;
+		} catch(IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns size, modification time and content hash of {@code file}.
+	 */
+	private static @Nonnull String getState(final @Nonnull File file) throws IOException {
+		return file.length() + " " + file.lastModified() + " " + getHash(file);
+	}
+
+	/**
+	 * Calculates the content hash of {@code file} as hex string.
+	 */
+	private static @Nonnull String getHash(final @Nonnull File file) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("Hash algorithm " + HASH_ALGORITHM + " is not available");
+		}
+		
+		final FileInputStream input = new FileInputStream(file);
+		try {
+			final FileChannel channel = input.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			while(channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			input.close();
+		}
+		
+		final StringBuilder result = new StringBuilder();
+		for(final byte value : digest.digest()) {
+			result.append(Character.forDigit((value >> 4) & 0xf, 16));
+			result.append(Character.forDigit(value & 0xf, 16));
+		}
+		
+		return result.toString();
+	}
+
+	/**
+	 * Returns the file the conversion to {@code outputFile} writes.
+	 */
+	static @Nonnull File getWrittenFile(final @Nonnull File outputFile, final boolean xfdfOutput) {
+		return xfdfOutput ? PDFAnnotator.getXfdfFile(outputFile) : outputFile;
+	}
+
+	/**
+	 * Returns the output mode recorded in the entries.
+	 */
+	private static @Nonnull String getMode(final boolean xfdfOutput) {
+		return xfdfOutput ? XFDF_MODE : PDF_MODE;
+	}
+
+	/**
+	 * Returns the key of {@code outputFile}.
+	 */
+	private static @Nonnull String getKey(final @Nonnull File outputFile) {
+		return outputFile.getAbsolutePath();
+	}
+
+	/**
+	 * Closes a stream and ignores errors.
+	 */
+	private static void close(final @Nullable Closeable stream) {
+		if(stream != null) {
+			try {
+				stream.close();
+			} catch(IOException e) {
+				LOG.warn("Error while closing manifest stream");
+			}
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Admission control for conversions based on their estimated heap footprint.
+ *   A conversion may start if its estimate fits into the remaining budget.
+ *   Conversions that do not fit have to wait, but later conversions that
+ *   fit may overtake them a limited number of times. A conversion larger
+ *   than the whole budget is admitted as soon as nothing else is running.
+ *   
+ * The budget is the queue in front of the stage loading the documents.
+ *   Conversions wait in the queue, not in a worker of the stage, and
+ *   {@link #take()} only returns conversions whose memory has been granted.
+ *   So a large conversion waiting for memory never keeps a worker from
+ *   loading the small conversions behind it. The queue is unbounded, the
+ *   waiting conversions only hold their annotations.
+ *   
+ * @author Bernhard J. Berger
+ */
+public class MemoryBudget<T extends MemoryBudget.Claim> extends AbstractQueue<T> implements BlockingQueue<T> {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(MemoryBudget.class);
+
+	/**
+	 * Number of times a waiting conversion may be overtaken before all later
+	 *   conversions have to wait for it.
+	 */
+	static final int MAX_OVERTAKES = 8;
+
+	/**
+	 * A job claiming memory.
+	 */
+	public interface Claim {
+		/**
+		 * @return The estimated memory of the job in bytes.
+		 */
+		public @Nonnegative long getEstimatedMemory();
+		
+		/**
+		 * Called when the job is admitted.
+		 * 
+		 * @param amount The granted amount that has to be released again.
+		 *   Amounts larger than the budget are reduced to the budget.
+		 */
+		public void setGrantedMemory(final @Nonnegative long amount);
+	}
+
+	/**
+	 * A job waiting for budget.
+	 */
+	private static final class Waiter<T> {
+		private final T job;
+		private final long amount;
+		private int overtakes = 0;
+
+		Waiter(final T job, final long amount) {
+			this.job = job;
+			this.amount = amount;
+		}
+	}
+
+	/**
+	 * The budget in bytes.
+	 */
+	private final long budget;
+
+	/**
+	 * Bytes currently granted.
+	 */
+	private long used = 0;
+
+	/**
+	 * Waiting jobs in arrival order.
+	 */
+	private final LinkedList<Waiter<T>> waiters = new LinkedList<Waiter<T>>();
+
+	/**
+	 * Creates a budget of {@code budget} bytes.
+	 */
+	public MemoryBudget(final @Nonnegative long budget) {
+		assert budget > 0;
+		this.budget = budget;
+	}
+
+	/**
+	 * @return The budget in bytes.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Adds a job waiting for its memory. The queue is unbounded, so the job
+	 *   is always added.
+	 */
+	public synchronized boolean offer(final @Nonnull T job) {
+		final long amount = job.getEstimatedMemory();
+		if(amount > budget) {
+			LOG.warn("Estimated memory of " + (amount >> 20) + " MB exceeds the budget of " + (budget >> 20) + " MB, running conversion alone");
+		}
+		
+		waiters.add(new Waiter<T>(job, Math.min(amount, budget)));
+		notifyAll();
+		return true;
+	}
+
+	public void put(final @Nonnull T job) {
+		offer(job);
+	}
+
+	public boolean offer(final @Nonnull T job, final long timeout, final @Nonnull TimeUnit unit) {
+		return offer(job);
+	}
+
+	/**
+	 * Waits until a job may be admitted and grants its memory.
+	 */
+	public synchronized @Nonnull T take() throws InterruptedException {
+		T job = admit();
+		while(job == null) {
+			wait();
+			job = admit();
+		}
+		
+		return job;
+	}
+
+	public synchronized @Nullable T poll(final long timeout, final @Nonnull TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		
+		T job = admit();
+		for(long remaining = deadline - System.nanoTime(); job == null && remaining > 0; remaining = deadline - System.nanoTime()) {
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			job = admit();
+		}
+		
+		return job;
+	}
+
+	/**
+	 * @return A job that may be admitted, whose memory has been granted, or
+	 *   {@code null}.
+	 */
+	public synchronized @Nullable T poll() {
+		return admit();
+	}
+
+	/**
+	 * @return The job that would be admitted next without granting its
+	 *   memory or {@code null}.
+	 */
+	public synchronized @Nullable T peek() {
+		final Waiter<T> waiter = findAdmissible();
+		
+		return waiter == null ? null : waiter.job;
+	}
+
+	/**
+	 * Releases {@code amount} bytes granted to a job.
+	 */
+	public synchronized void release(final @Nonnegative long amount) {
+		used -= amount;
+		assert used >= 0;
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of waiting jobs.
+	 */
+	public synchronized int size() {
+		return waiters.size();
+	}
+
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Iterates over a copy of the waiting jobs.
+	 */
+	public synchronized @Nonnull Iterator<T> iterator() {
+		final List<T> jobs = new ArrayList<T>(waiters.size());
+		for(final Waiter<T> waiter : waiters) {
+			jobs.add(waiter.job);
+		}
+		
+		return jobs.iterator();
+	}
+
+	public int drainTo(final @Nonnull Collection<? super T> collection) {
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Moves the jobs that may be admitted to {@code collection}.
+	 */
+	public synchronized int drainTo(final @Nonnull Collection<? super T> collection, final int maxElements) {
+		int count = 0;
+		
+		for(T job = count < maxElements ? admit() : null; job != null; job = count < maxElements ? admit() : null) {
+			collection.add(job);
+			count += 1;
+		}
+		
+		return count;
+	}
+
+	/**
+	 * Removes the first job that may be admitted from the waiting jobs and
+	 *   grants its memory.
+	 * 
+	 * @return The job or {@code null} if no job may be admitted.
+	 */
+	private @Nullable T admit() {
+		final Waiter<T> waiter = findAdmissible();
+		if(waiter == null) {
+			return null;
+		}
+		
+		// everybody waiting in front of the job has been overtaken once more
+		for(final Waiter<T> other : waiters) {
+			if(other == waiter) {
+				break;
+			}
+			other.overtakes += 1;
+		}
+		waiters.remove(waiter);
+		used += waiter.amount;
+		notifyAll();
+		
+		waiter.job.setGrantedMemory(waiter.amount);
+		return waiter.job;
+	}
+
+	/**
+	 * Finds the first waiting job that fits into the budget and is not
+	 *   behind a job that has been overtaken too often.
+	 */
+	private @Nullable Waiter<T> findAdmissible() {
+		for(final Waiter<T> waiter : waiters) {
+			if(fits(waiter.amount)) {
+				return waiter;
+			}
+			
+			if(waiter.overtakes >= MAX_OVERTAKES) {
+				return null;
+			}
+		}
+		
+		return null;
+	}
+
+	/**
+	 * Checks if {@code amount} bytes are available. If nothing is in use,
+	 *   everything fits.
+	 */
+	private boolean fits(final long amount) {
+		return used == 0 || used + amount <= budget;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+import de.berber.kindle.annotator.lib.KindleAnnotationReader;
+import de.berber.kindle.annotator.lib.NotesWriter;
+import de.berber.kindle.annotator.lib.NotesWriter.Format;
+import de.berber.kindle.annotator.lib.Settings;
+
+/**
+ * Exports the notes of PDR files without opening their PDF files. The PDR
+ *   files are read in parallel, but the notes of each book are written in
+ *   one piece and in the order the books were found.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class NotesExporter extends ParallelBookReader<NotesExporter.Book> {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(NotesExporter.class);
+	
+	/**
+	 * The notes of a single book.
+	 */
+	static final class Book {
+		private final StringBuilder notes = new StringBuilder();
+		private int numberOfNotes = 0;
+	}
+	
+	/**
+	 * The annotator settings.
+	 */
+	private final Settings settings;
+	
+	/**
+	 * The output format.
+	 */
+	private final Format format;
+	
+	/**
+	 * The output of the running export.
+	 */
+	private Writer out = null;
+	
+	private int numberOfBooks = 0;
+	private long numberOfNotes = 0;
+
+	public NotesExporter(final @Nonnull Settings settings, final @Nonnull Format format, final boolean recursive) {
+		super(recursive);
+		this.settings = settings;
+		this.format = format;
+	}
+
+	/**
+	 * Writes the notes of all PDR files belonging to {@code inputFiles} to
+	 *   {@code out}. Inputs may be PDF files, PDR files or directories.
+	 * 
+	 * @throws IOException If writing fails.
+	 */
+	public void export(final @Nonnull List<File> inputFiles, final @Nonnull Writer out) throws IOException {
+		this.out = out;
+		
+		try {
+			out.write(format.getHeader());
+			readBooks(inputFiles);
+			out.flush();
+		} finally {
+			this.out = null;
+		}
+	}
+	
+	/**
+	 * @return The number of books whose notes were exported.
+	 */
+	public int getNumberOfBooks() {
+		return numberOfBooks;
+	}
+	
+	/**
+	 * @return The number of exported notes.
+	 */
+	public long getNumberOfNotes() {
+		return numberOfNotes;
+	}
+	
+	/**
+	 * Reads the notes of {@code pdrFile}.
+	 */
+	@Override
+	protected @Nullable Book read(final @Nonnull File pdrFile) {
+		final Book book = new Book();
+		final File pdfFile = getPDFFile(pdrFile);
+		
+		final NotesWriter writer = new NotesWriter(book.notes, format, pdfFile.getPath());
+		if(!new KindleAnnotationReader(settings, pdfFile).read(writer)) {
+			LOG.warn("Cannot read PDR file " + pdrFile + ", skipping its notes");
+			return null;
+		}
+		book.numberOfNotes = writer.getNumberOfNotes();
+		
+		return book;
+	}
+	
+	/**
+	 * Writes the notes of the next book.
+	 */
+	@Override
+	protected void add(final @Nonnull Book book) throws IOException {
+		out.append(book.notes);
+		numberOfBooks += 1;
+		numberOfNotes += book.numberOfNotes;
+	}
+}
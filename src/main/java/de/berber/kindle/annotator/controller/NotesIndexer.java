@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+import de.berber.kindle.annotator.index.BookNotes;
+import de.berber.kindle.annotator.index.NoteIndex;
+import de.berber.kindle.annotator.lib.KindleAnnotationReader;
+import de.berber.kindle.annotator.lib.MarkingTextExtractor;
+import de.berber.kindle.annotator.lib.Settings;
+
+/**
+ * Updates a {@link NoteIndex} with the notes of PDR files. Only books whose
+ *   PDR file changed since they were indexed are read, books whose PDR file
+ *   was deleted are removed from the index. Like {@link NotesExporter} the
+ *   PDR files are read in parallel and added to the index in the order they
+ *   were found.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class NotesIndexer extends ParallelBookReader<BookNotes> {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(NotesIndexer.class);
+	
+	/**
+	 * The annotator settings.
+	 */
+	private final Settings settings;
+	
+	/**
+	 * The updated index.
+	 */
+	private final NoteIndex index;
+	
+	/**
+	 * Index the text of the PDF files under markings.
+	 */
+	private final boolean markingText;
+	
+	/**
+	 * Index all books, even if they are up to date.
+	 */
+	private final boolean force;
+	
+	private int numberOfIndexedBooks = 0;
+	private int numberOfUnchangedBooks = 0;
+	private int numberOfRemovedBooks = 0;
+
+	public NotesIndexer(final @Nonnull Settings settings, final @Nonnull NoteIndex index,
+			final boolean recursive, final boolean markingText, final boolean force) {
+		super(recursive);
+		this.settings = settings;
+		this.index = index;
+		this.markingText = markingText;
+		this.force = force;
+	}
+
+	/**
+	 * Indexes the PDR files belonging to {@code inputFiles}, removes deleted
+	 *   books and commits the index. Inputs may be PDF files, PDR files or
+	 *   directories.
+	 * 
+	 * @throws IOException If the index cannot be written.
+	 */
+	public void update(final @Nonnull List<File> inputFiles) throws IOException {
+		readBooks(inputFiles);
+		
+		numberOfRemovedBooks = index.removeMissingBooks();
+		index.commit();
+	}
+	
+	/**
+	 * @return The number of books (re-)indexed.
+	 */
+	public int getNumberOfIndexedBooks() {
+		return numberOfIndexedBooks;
+	}
+	
+	/**
+	 * @return The number of books skipped because they are up to date.
+	 */
+	public int getNumberOfUnchangedBooks() {
+		return numberOfUnchangedBooks;
+	}
+	
+	/**
+	 * @return The number of books removed because their PDR file is gone.
+	 */
+	public int getNumberOfRemovedBooks() {
+		return numberOfRemovedBooks;
+	}
+	
+	/**
+	 * Skips books that are up to date.
+	 */
+	@Override
+	protected boolean accept(final @Nonnull File pdrFile) {
+		if(!force && index.isUpToDate(pdrFile, markingText)) {
+			numberOfUnchangedBooks += 1;
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Reads the notes of {@code pdrFile} and, if requested, the text under
+	 *   its markings.
+	 */
+	@Override
+	protected @Nullable BookNotes read(final @Nonnull File pdrFile) {
+		final BookNotes notes = new BookNotes(settings, pdrFile);
+		final File pdfFile = getPDFFile(pdrFile);
+		
+		if(!new KindleAnnotationReader(settings, pdfFile).read(notes)) {
+			LOG.warn("Cannot read PDR file " + pdrFile + ", keeping its indexed notes");
+			return null;
+		}
+		
+		if(markingText && !notes.getMarkings().isEmpty()) {
+			try {
+				notes.setMarkingTexts(new MarkingTextExtractor(pdfFile).extract(notes.getMarkings()));
+			} catch(IOException e) {
+				LOG.warn("Cannot read the marked text of " + pdfFile + ": " + e.getMessage());
+			}
+		} else if(markingText) {
+			notes.setMarkingTexts(new String[0]);
+		}
+		
+		return notes;
+	}
+	
+	/**
+	 * Adds the next book to the index.
+	 */
+	@Override
+	protected void add(final @Nonnull BookNotes notes) throws IOException {
+		index.add(notes);
+		numberOfIndexedBooks += 1;
+	}
+}
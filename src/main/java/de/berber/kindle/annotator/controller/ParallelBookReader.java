@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the PDR files of books in parallel and hands the books on in the
+ *   order they were found, so the result does not depend on the timing of
+ *   the reader threads. Directories are searched like the
+ *   {@link WorkCollector} does, links to directories are never followed.
+ *   Subclasses decide how a book is read and what happens to it.
+ * 
+ * @param <B> The type of a read book.
+ * 
+ * @author Bernhard J. Berger
+ */
+public abstract class ParallelBookReader<B> {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(ParallelBookReader.class);
+	
+	/**
+	 * Number of threads reading PDR files.
+	 */
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Number of books that may be read ahead of the book handed on next.
+	 */
+	private static final int READ_AHEAD = 16 * THREADS;
+	
+	/**
+	 * Search the sub directories of input directories.
+	 */
+	private final boolean recursive;
+	
+	/**
+	 * Books that are being read, in order.
+	 */
+	private final ArrayDeque<Future<B>> pendingBooks = new ArrayDeque<Future<B>>();
+	
+	/**
+	 * The threads reading the books.
+	 */
+	private ExecutorService executor = null;
+	
+	private int numberOfFailedBooks = 0;
+
+	protected ParallelBookReader(final boolean recursive) {
+		this.recursive = recursive;
+	}
+
+	/**
+	 * Reads the PDR files belonging to {@code inputFiles} and hands the
+	 *   books to {@link #add} in order. Inputs may be PDF files, PDR files or
+	 *   directories.
+	 * 
+	 * @throws IOException If {@link #add} fails.
+	 */
+	protected final void readBooks(final @Nonnull List<File> inputFiles) throws IOException {
+		executor = Executors.newFixedThreadPool(THREADS);
+		
+		try {
+			for(final File inputFile : inputFiles) {
+				if(inputFile.isDirectory()) {
+					addDirectory(inputFile.toPath());
+				} else {
+					final File pdrFile = getPDRFile(inputFile);
+					
+					if(pdrFile == null) {
+						LOG.error("Input file is neither a PDF nor a PDR file: " + inputFile);
+					} else if(!pdrFile.isFile()) {
+						LOG.warn("There is no PDR file for: " + inputFile);
+					} else {
+						addBook(pdrFile);
+					}
+				}
+			}
+			
+			while(!pendingBooks.isEmpty()) {
+				addNextBook();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * @return The number of PDR files that could not be read.
+	 */
+	public int getNumberOfFailedBooks() {
+		return numberOfFailedBooks;
+	}
+
+	/**
+	 * Decides if {@code pdrFile} has to be read at all. Called in order on
+	 *   the thread reading the books.
+	 */
+	protected boolean accept(final @Nonnull File pdrFile) {
+		return true;
+	}
+
+	/**
+	 * Reads the book of {@code pdrFile} on a reader thread.
+	 * 
+	 * @return The book or {@code null} if the PDR file cannot be read.
+	 */
+	protected abstract @Nullable B read(final @Nonnull File pdrFile);
+
+	/**
+	 * Handles the next book in order on the thread reading the books.
+	 * 
+	 * @throws IOException If the book cannot be handled, this stops reading.
+	 */
+	protected abstract void add(final @Nonnull B book) throws IOException;
+
+	/**
+	 * @return The PDF file next to {@code pdrFile}, which the
+	 *   {@link de.berber.kindle.annotator.lib.KindleAnnotationReader}
+	 *   expects.
+	 */
+	protected static @Nonnull File getPDFFile(final @Nonnull File pdrFile) {
+		final String path = pdrFile.getPath();
+		
+		return new File(path.substring(0, path.length() - 4) + ".pdf");
+	}
+
+	/**
+	 * @return The PDR file belonging to {@code inputFile} or {@code null} if
+	 *   it is neither a PDF nor a PDR file.
+	 */
+	private static @Nullable File getPDRFile(final @Nonnull File inputFile) {
+		final String name = inputFile.getName().toLowerCase();
+		
+		if(name.endsWith(".pdr")) {
+			return inputFile;
+		} else if(name.endsWith(".pdf")) {
+			return WorkCollector.getPDRFile(inputFile);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Adds the PDR files of {@code directory} in the order of their names.
+	 */
+	private void addDirectory(final @Nonnull Path directory) throws IOException {
+		final List<Path> entries = new ArrayList<Path>();
+		try {
+			final DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+			try {
+				for(final Path entry : stream) {
+					entries.add(entry);
+				}
+			} catch(DirectoryIteratorException e) {
+				// keep the entries listed so far
+				LOG.error("Cannot list all of directory " + directory + ": " + e.getCause().getMessage());
+			} finally {
+				stream.close();
+			}
+		} catch(IOException e) {
+			LOG.error("Cannot list directory " + directory + ": " + e.getMessage());
+			return;
+		}
+		
+		Collections.sort(entries);
+		for(final Path entry : entries) {
+			final BasicFileAttributes attributes = WorkCollector.readAttributes(entry);
+			
+			if(attributes == null) {
+				continue;
+			} else if(attributes.isDirectory()) {
+				if(recursive) {
+					addDirectory(entry);
+				}
+			} else if(entry.getFileName().toString().toLowerCase().endsWith(".pdr")) {
+				addBook(entry.toFile());
+			}
+		}
+	}
+	
+	/**
+	 * Starts reading {@code pdrFile} if it is accepted. Finished books are
+	 *   handed on while too many books are pending.
+	 */
+	private void addBook(final @Nonnull File pdrFile) throws IOException {
+		if(!accept(pdrFile)) {
+			return;
+		}
+		
+		while(pendingBooks.size() >= READ_AHEAD) {
+			addNextBook();
+		}
+		
+		pendingBooks.add(executor.submit(new Callable<B>() {
+			public B call() {
+				return read(pdrFile);
+			}
+		}));
+	}
+	
+	/**
+	 * Waits for the next book in order and hands it on.
+	 */
+	private void addNextBook() throws IOException {
+		final B book;
+		try {
+			book = pendingBooks.remove().get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading notes");
+		} catch(ExecutionException e) {
+			LOG.error("Cannot read notes", e.getCause());
+			numberOfFailedBooks += 1;
+			return;
+		}
+		
+		if(book == null) {
+			numberOfFailedBooks += 1;
+			return;
+		}
+		
+		add(book);
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import de.berber.kindle.annotator.lib.Quoting;
+import de.berber.kindle.annotator.model.Task;
+import de.berber.kindle.annotator.model.TaskStatistics;
+import de.berber.kindle.annotator.model.TaskStatistics.Phase;
+import de.berber.kindle.annotator.model.WorkingList;
+import de.berber.kindle.annotator.model.WorkingListListener;
+
+/**
+ * Collects the statistics of all tasks of a working list. At the end of a
+ *   batch it prints a summary with percentiles per phase, the slowest files
+ *   and the overall throughput, and writes a report of all files as CSV or
+ *   JSON.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class PerformanceReport implements WorkingListListener {
+	/**
+	 * Orders tasks by descending total time.
+	 */
+	private static final Comparator<Task> BY_DESCENDING_TIME = new Comparator<Task>() {
+		public int compare(final Task first, final Task second) {
+			final long firstTime = first.getStatistics().getTotalTime();
+			final long secondTime = second.getStatistics().getTotalTime();
+			
+			return firstTime > secondTime ? -1 : (firstTime < secondTime ? 1 : 0);
+		}
+	};
+
+	/**
+	 * All tasks of the working list.
+	 */
+	private final List<Task> tasks = new ArrayList<Task>();
+
+	/**
+	 * Creates a report and registers it at {@code model}.
+	 */
+	public PerformanceReport(final @Nonnull WorkingList model) {
+		model.addListener(this);
+	}
+
+	/**
+	 * Prints the summary of all converted tasks.
+	 * 
+	 * @param numberOfSlowestFiles Number of slowest files to list.
+	 */
+	public void printSummary(final @Nonnull PrintStream out, final @Nonnegative int numberOfSlowestFiles) {
+		final List<Task> converted = getConvertedTasks();
+		if(converted.isEmpty()) {
+			out.println("No files converted.");
+			return;
+		}
+		
+		long firstStart = Long.MAX_VALUE;
+		long lastEnd = Long.MIN_VALUE;
+		long inputBytes = 0;
+		for(final Task task : converted) {
+			final TaskStatistics statistics = task.getStatistics();
+			firstStart = Math.min(firstStart, statistics.getStartNanos());
+			lastEnd = Math.max(lastEnd, statistics.getEndNanos());
+			inputBytes += statistics.getInputBytes();
+		}
+		
+		final double seconds = Math.max(1, lastEnd - firstStart) / 1e9;
+		out.println(String.format(Locale.ROOT, "Converted %d files in %.1f s: %.1f files/s, %.1f MB/s",
+				converted.size(), seconds, converted.size() / seconds, inputBytes / seconds / (1 << 20)));
+		
+		out.println(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s", "phase", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		for(final Phase phase : Phase.values()) {
+			final long[] times = new long[converted.size()];
+			for(int index = 0; index < times.length; ++index) {
+				times[index] = converted.get(index).getStatistics().getTime(phase);
+			}
+			printPercentiles(out, phase.name().toLowerCase(), times);
+		}
+		
+		final long[] totalTimes = new long[converted.size()];
+		for(int index = 0; index < totalTimes.length; ++index) {
+			totalTimes[index] = converted.get(index).getStatistics().getTotalTime();
+		}
+		printPercentiles(out, "total", totalTimes);
+		
+		Collections.sort(converted, BY_DESCENDING_TIME);
+		out.println("Slowest files:");
+		for(final Task task : converted.subList(0, Math.min(numberOfSlowestFiles, converted.size()))) {
+			final TaskStatistics statistics = task.getStatistics();
+			out.println(String.format(Locale.ROOT, "%10.1f ms  %s (%.1f MB, %d annotations)",
+					statistics.getTotalTime() / 1e6, task.getInputFile(),
+					statistics.getInputBytes() / (double) (1 << 20), statistics.getNumberOfAnnotations()));
+		}
+	}
+
+	/**
+	 * Writes the statistics of all converted tasks to {@code file}. Files
+	 *   ending with {@code .json} get a JSON array, all others CSV.
+	 * 
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void write(final @Nonnull File file) throws IOException {
+		final boolean json = file.getName().toLowerCase().endsWith(".json");
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		
+		try {
+			if(json) {
+				writeJSON(out);
+			} else {
+				writeCSV(out);
+			}
+		} finally {
+			out.close();
+		}
+		
+		if(out.checkError()) {
+			throw new IOException("Cannot write " + file);
+		}
+	}
+
+	private void writeCSV(final @Nonnull PrintWriter out) {
+		out.println("input,output,state,parse_ms,load_ms,annotate_ms,save_ms,total_ms,input_bytes,output_bytes,bookmarks,markings,comments");
+		
+		for(final Task task : getConvertedTasks()) {
+			final TaskStatistics statistics = task.getStatistics();
+			
+			out.print(Quoting.quoteCSV(task.getInputFile().toString()));
+			out.print(',');
+			out.print(Quoting.quoteCSV(task.getOutputFile().toString()));
+			out.print(',');
+			out.print(task.getState());
+			for(final Phase phase : Phase.values()) {
+				out.print(',');
+				out.print(toMillis(statistics.getTime(phase)));
+			}
+			out.print(',');
+			out.print(toMillis(statistics.getTotalTime()));
+			out.println("," + statistics.getInputBytes() + "," + statistics.getOutputBytes()
+					+ "," + statistics.getNumberOfBookmarks() + "," + statistics.getNumberOfMarkings()
+					+ "," + statistics.getNumberOfComments());
+		}
+	}
+
+	/**
+	 * Writes the statistics of all converted tasks as a JSON array.
+	 */
+	void writeJSON(final @Nonnull PrintWriter out) {
+		out.println("[");
+		
+		boolean first = true;
+		for(final Task task : getConvertedTasks()) {
+			final TaskStatistics statistics = task.getStatistics();
+			
+			if(!first) {
+				out.println(",");
+			}
+			first = false;
+			
+			out.print("  {\"input\": " + Quoting.quoteJSON(task.getInputFile().toString()));
+			out.print(", \"output\": " + Quoting.quoteJSON(task.getOutputFile().toString()));
+			out.print(", \"state\": \"" + task.getState() + "\"");
+			for(final Phase phase : Phase.values()) {
+				out.print(", \"" + phase.name().toLowerCase() + "_ms\": " + toMillis(statistics.getTime(phase)));
+			}
+			out.print(", \"total_ms\": " + toMillis(statistics.getTotalTime()));
+			out.print(", \"input_bytes\": " + statistics.getInputBytes());
+			out.print(", \"output_bytes\": " + statistics.getOutputBytes());
+			out.print(", \"bookmarks\": " + statistics.getNumberOfBookmarks());
+			out.print(", \"markings\": " + statistics.getNumberOfMarkings());
+			out.print(", \"comments\": " + statistics.getNumberOfComments() + "}");
+		}
+		
+		out.println();
+		out.println("]");
+	}
+
+	/**
+	 * @return All tasks that ran to their end.
+	 */
+	private synchronized List<Task> getConvertedTasks() {
+		final List<Task> result = new ArrayList<Task>();
+		for(final Task task : tasks) {
+			if(task.getStatistics().isComplete()) {
+				result.add(task);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Prints the 50th, 95th and 99th percentile and the maximum of
+	 *   {@code times} using the nearest rank.
+	 */
+	private static void printPercentiles(final @Nonnull PrintStream out, final @Nonnull String name, final @Nonnull long[] times) {
+		Arrays.sort(times);
+		
+		out.println(String.format(Locale.ROOT, "%-10s %10.1f %10.1f %10.1f %10.1f", name,
+				percentile(times, 50) / 1e6, percentile(times, 95) / 1e6,
+				percentile(times, 99) / 1e6, times[times.length - 1] / 1e6));
+	}
+
+	private static long percentile(final @Nonnull long[] sortedValues, final @Nonnegative int percent) {
+		final int rank = (int) Math.ceil(percent / 100.0 * sortedValues.length);
+		
+		return sortedValues[Math.max(0, rank - 1)];
+	}
+
+	private static String toMillis(final long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	public synchronized void taskAdded(final @Nonnull Task task) {
+		tasks.add(task);
+	}
+
+	public synchronized void modelCleared() {
+		tasks.clear();
+	}
+
+	/**
+	 * Nothing to do in this case.
+	 */
+	public void completedWorklist() {
+	}
+}
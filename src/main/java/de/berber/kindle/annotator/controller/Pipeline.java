@@ -0,0 +1,285 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pipeline of stages. Every stage has its own queue and its own worker
+ *   threads, a job travels through the stages in the order they were added.
+ *   The queues in front of all stages but the first are bounded unless a
+ *   stage brings its own queue, a stage that produces faster than its
+ *   successor consumes is blocked. This limits
+ *   the number of jobs in between two stages while I/O-bound and CPU-bound
+ *   stages work on different jobs at the same time.
+ *   
+ * @author Bernhard J. Berger
+ */
+public class Pipeline<T> {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(Pipeline.class);
+
+	/**
+	 * The work done by one stage.
+	 */
+	public interface Stage<T> {
+		/**
+		 * Processes {@code job}.
+		 * 
+		 * @return {@code true} if the job shall be passed to the next stage,
+		 *   {@code false} if it is finished.
+		 */
+		boolean process(final @Nonnull T job);
+	}
+
+	/**
+	 * A stage with its queue, its workers and its statistics.
+	 */
+	private final class StageRunner implements Runnable {
+		private final String name;
+		private final Stage<T> stage;
+		private final BlockingQueue<T> queue;
+		private final List<Thread> workers = new ArrayList<Thread>();
+		private StageRunner next = null;
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicLong numberOfJobs = new AtomicLong();
+
+		StageRunner(final @Nonnull String name, final @Nonnull Stage<T> stage, final @Nonnull BlockingQueue<T> queue) {
+			this.name = name;
+			this.stage = stage;
+			this.queue = queue;
+		}
+
+		public void run() {
+			while(true) {
+				final T job;
+				try {
+					job = queue.take();
+				} catch (InterruptedException e) {
+					return; // pipeline has been stopped
+				}
+				
+				final long start = System.nanoTime();
+				boolean forward = false;
+				try {
+					forward = stage.process(job);
+				} catch(RuntimeException e) {
+					LOG.error("Unexpected error in stage " + name, e);
+				} finally {
+					busyNanos.addAndGet(System.nanoTime() - start);
+					numberOfJobs.incrementAndGet();
+				}
+				
+				if(forward && next != null) {
+					try {
+						next.queue.put(job);
+					} catch (InterruptedException e) {
+						LOG.error("Stage " + name + " was interrupted, dropping job " + job);
+						finished();
+						return;
+					}
+				} else {
+					finished();
+				}
+			}
+		}
+	}
+
+	/**
+	 * All stages in processing order.
+	 */
+	private final List<StageRunner> stages = new ArrayList<StageRunner>();
+
+	/**
+	 * Number of jobs that are in the pipeline.
+	 */
+	private final AtomicInteger numberOfPendingJobs = new AtomicInteger();
+
+	/**
+	 * Start time of the pipeline.
+	 */
+	private long startNanos = 0;
+
+	/**
+	 * Stop time of the pipeline or {@code 0} if it is running.
+	 */
+	private long stopNanos = 0;
+
+	/**
+	 * Adds a new stage at the end of the pipeline. Stages can only be added
+	 *   before the pipeline is started.
+	 * 
+	 * @param name Name of the stage used in thread names and statistics.
+	 * @param stage The work done by the stage.
+	 * @param numberOfThreads Number of worker threads.
+	 * @param queueCapacity Capacity of the queue in front of the stage. The
+	 *   queue of the first stage is unbounded.
+	 * @param virtualThreads Use virtual threads for the workers if the Java
+	 *   runtime supports them.
+	 */
+	public synchronized void addStage(final @Nonnull String name, final @Nonnull Stage<T> stage,
+			final @Nonnegative int numberOfThreads, final @Nonnegative int queueCapacity,
+			final boolean virtualThreads) {
+		assert queueCapacity > 0;
+		
+		addStage(name, stage, numberOfThreads, stages.isEmpty()
+				? new LinkedBlockingQueue<T>()
+				: new ArrayBlockingQueue<T>(queueCapacity), virtualThreads);
+	}
+
+	/**
+	 * Adds a new stage at the end of the pipeline that takes its jobs from
+	 *   {@code queue}, e.g. a queue deciding which job may be processed next.
+	 *   Stages can only be added before the pipeline is started.
+	 */
+	public synchronized void addStage(final @Nonnull String name, final @Nonnull Stage<T> stage,
+			final @Nonnegative int numberOfThreads, final @Nonnull BlockingQueue<T> queue,
+			final boolean virtualThreads) {
+		assert startNanos == 0 : "Pipeline is already running";
+		assert numberOfThreads > 0;
+		
+		final StageRunner runner = new StageRunner(name, stage, queue);
+		
+		ThreadFactory factory = virtualThreads ? createVirtualThreadFactory() : null;
+		if(virtualThreads && factory == null) {
+			LOG.warn("Virtual threads are not supported, using platform threads for stage " + name);
+		}
+		
+		for(int index = 0; index < numberOfThreads; ++index) {
+			final Thread worker = factory != null ? factory.newThread(runner) : new Thread(runner);
+			worker.setName("pipeline-" + name + "-" + index);
+			worker.setDaemon(true);
+			runner.workers.add(worker);
+		}
+		
+		if(!stages.isEmpty()) {
+			stages.get(stages.size() - 1).next = runner;
+		}
+		stages.add(runner);
+	}
+
+	/**
+	 * Starts the worker threads of all stages.
+	 */
+	public synchronized void start() {
+		assert !stages.isEmpty();
+		
+		startNanos = System.nanoTime();
+		for(final StageRunner stage : stages) {
+			for(final Thread worker : stage.workers) {
+				worker.start();
+			}
+		}
+	}
+
+	/**
+	 * Adds a job to the queue of the first stage.
+	 */
+	public void submit(final @Nonnull T job) {
+		numberOfPendingJobs.incrementAndGet();
+		stages.get(0).queue.add(job);
+	}
+
+	/**
+	 * Waits until all submitted jobs passed the pipeline and stops the worker
+	 *   threads.
+	 */
+	public void stop() {
+		synchronized(numberOfPendingJobs) {
+			while(numberOfPendingJobs.get() > 0) {
+				try {
+					numberOfPendingJobs.wait();
+				} catch (InterruptedException e) {
+					LOG.error("Thread was interrupted");
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		
+		synchronized(this) {
+			for(final StageRunner stage : stages) {
+				for(final Thread worker : stage.workers) {
+					worker.interrupt();
+				}
+			}
+			stopNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Returns a report of the number of processed jobs and the utilisation
+	 *   of all stages. The utilisation is the time the workers of a stage
+	 *   spent on jobs relative to the time the pipeline was running.
+	 */
+	public synchronized @Nonnull String getStatistics() {
+		final long elapsedNanos = Math.max(1, (stopNanos != 0 ? stopNanos : System.nanoTime()) - startNanos);
+		final StringBuilder result = new StringBuilder();
+		
+		for(final StageRunner stage : stages) {
+			final long busyNanos = stage.busyNanos.get();
+			result.append(String.format("%-10s %3d threads %6d jobs %9.1f ms busy %5.1f%% utilisation%n",
+					stage.name, stage.workers.size(), stage.numberOfJobs.get(),
+					busyNanos / 1e6, 100.0 * busyNanos / ((double) elapsedNanos * stage.workers.size())));
+		}
+		
+		return result.toString();
+	}
+
+	/**
+	 * A job left the pipeline.
+	 */
+	private void finished() {
+		if(numberOfPendingJobs.decrementAndGet() == 0) {
+			synchronized(numberOfPendingJobs) {
+				numberOfPendingJobs.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Creates a factory for virtual threads using reflection, virtual threads
+	 *   are available since Java 21.
+	 * 
+	 * @return The factory or {@code null} if virtual threads are not supported.
+	 */
+	private static @Nullable ThreadFactory createVirtualThreadFactory() {
+		try {
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			final Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.controller;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+import de.berber.kindle.annotator.model.Task;
+import de.berber.kindle.annotator.model.WorkingList;
+import de.berber.kindle.annotator.model.WorkingListListener;
+
+/**
+ * Watches the input of a {@link WorkCollector} and converts a PDF file again
+ *   as soon as its PDR file changes. A Kindle writes a PDR file several times
+ *   while syncing, therefore a file is converted after it did not change for
+ *   a quiet period. A file whose previous conversion is still running waits
+ *   for it to finish.
+ *   
+ * The watcher runs until its thread is interrupted.
+ *
+ * @author Bernhard J. Berger
+ */
+public class Watcher implements Runnable, WorkingListListener {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(Watcher.class);
+
+	/**
+	 * The collector that creates the tasks.
+	 */
+	private final WorkCollector collector;
+
+	/**
+	 * The internal data model.
+	 */
+	private final WorkingList workingList;
+
+	/**
+	 * Time in milliseconds a PDR file must not change before it is converted.
+	 */
+	private final long quietPeriod;
+
+	/**
+	 * The watch service of the default file system.
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * All watched directories.
+	 */
+	private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+	/**
+	 * Changed PDR files and the time they will be quiet. Only used by the
+	 *   watcher thread.
+	 */
+	private final Map<Path, Long> changedFiles = new HashMap<Path, Long>();
+
+	/**
+	 * Unfinished tasks by their absolute input file.
+	 */
+	private final Map<File, Task> unfinishedTasks = new ConcurrentHashMap<File, Task>();
+
+	/**
+	 * Creates a watcher for the inputs of {@code collector} and registers all
+	 *   directories. The watcher should be created before the collector runs,
+	 *   so no change gets lost in between.
+	 * 
+	 * @param quietPeriod Time in milliseconds a PDR file must not change
+	 *   before it is converted. Shorter periods than the modification time
+	 *   resolution of the manifest are raised to it, otherwise the manifest
+	 *   would forget every converted file.
+	 * 
+	 * @throws IOException If the directories cannot be watched.
+	 */
+	public Watcher(final @Nonnull WorkCollector collector,
+			       final @Nonnull WorkingList model,
+			       final @Nonnegative long quietPeriod) throws IOException {
+		this.collector = collector;
+		this.workingList = model;
+		this.quietPeriod = Math.max(quietPeriod, Manifest.MODIFICATION_TIME_RESOLUTION);
+		if(quietPeriod < Manifest.MODIFICATION_TIME_RESOLUTION) {
+			LOG.warn("Watch delay raised to " + Manifest.MODIFICATION_TIME_RESOLUTION + " ms");
+		}
+		this.watchService = FileSystems.getDefault().newWatchService();
+		
+		for(final File inputFile : collector.getInputFiles()) {
+			final Path path = inputFile.getAbsoluteFile().toPath();
+			
+			if(inputFile.isFile()) {
+				register(path.getParent());
+			} else if(collector.isRecursive()) {
+				registerTree(path);
+			} else {
+				register(path);
+			}
+		}
+		
+		model.addListener(this);
+	}
+
+	/**
+	 * Waits for changes and converts the changed files.
+	 */
+	public void run() {
+		LOG.info("Watching " + directories.size() + " directories");
+		
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				final WatchKey key = nextKey();
+				
+				if(key != null) {
+					processEvents(key);
+				}
+				
+				convertQuietFiles();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			workingList.removeListener(this);
+			
+			try {
+				watchService.close();
+			} catch(IOException e) {
+				LOG.warn("Cannot close watch service");
+			}
+		}
+	}
+
+	/**
+	 * Waits for the next key until the first changed file becomes quiet.
+	 * 
+	 * @return The signalled key or {@code null} if there was none.
+	 */
+	private WatchKey nextKey() throws InterruptedException {
+		if(changedFiles.isEmpty()) {
+			return watchService.take();
+		}
+		
+		long firstQuietTime = Long.MAX_VALUE;
+		for(final long quietTime : changedFiles.values()) {
+			firstQuietTime = Math.min(firstQuietTime, quietTime);
+		}
+		
+		final long delay = firstQuietTime - System.currentTimeMillis();
+		return delay > 0 ? watchService.poll(delay, TimeUnit.MILLISECONDS) : watchService.poll();
+	}
+
+	/**
+	 * Remembers all changed PDR files of the directory of {@code key}.
+	 */
+	private void processEvents(final @Nonnull WatchKey key) {
+		final Path directory = directories.get(key);
+		
+		for(final WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == OVERFLOW) {
+				// events got lost, check all files of this directory
+				LOG.warn("Lost changes in " + directory);
+				changedDirectory(directory);
+				continue;
+			}
+			
+			final Path file = directory.resolve((Path) event.context());
+			if(event.kind() == ENTRY_CREATE && collector.isRecursive() && Files.isDirectory(file)) {
+				registerTree(file);
+				changedDirectory(file);
+			} else if(file.getFileName().toString().endsWith(".pdr")) {
+				changed(file);
+			}
+		}
+		
+		if(!key.reset()) {
+			LOG.info("Stopped watching " + directory);
+			directories.remove(key);
+		}
+	}
+
+	/**
+	 * Converts all PDR files that did not change for the quiet period.
+	 */
+	private void convertQuietFiles() {
+		final long now = System.currentTimeMillis();
+		
+		for(final Iterator<Map.Entry<Path, Long>> iterator = changedFiles.entrySet().iterator(); iterator.hasNext(); ) {
+			final Map.Entry<Path, Long> entry = iterator.next();
+			if(entry.getValue() > now) {
+				continue;
+			}
+			
+			final String pdrFile = entry.getKey().toString();
+			final File pdfFile = new File(pdrFile.substring(0, pdrFile.length() - 4) + ".pdf");
+			
+			if(unfinishedTasks.containsKey(pdfFile)) {
+				// try again as soon as the running conversion should be done
+				entry.setValue(now + quietPeriod);
+				continue;
+			}
+			
+			iterator.remove();
+			LOG.info("PDR file changed: " + pdrFile);
+			collector.addChangedFile(pdfFile);
+		}
+	}
+
+	/**
+	 * The PDR file {@code file} changed, it will be converted after the quiet
+	 *   period.
+	 */
+	private void changed(final @Nonnull Path file) {
+		changedFiles.put(file, System.currentTimeMillis() + quietPeriod);
+	}
+
+	/**
+	 * Treats all PDR files in {@code directory} as changed. Unchanged files
+	 *   are skipped by the manifest.
+	 */
+	private void changedDirectory(final @Nonnull Path directory) {
+		try {
+			final DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.pdr");
+			
+			try {
+				for(final Path entry : entries) {
+					changed(entry);
+				}
+			} finally {
+				entries.close();
+			}
+		} catch(IOException e) {
+			LOG.warn("Cannot search directory " + directory + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Watches {@code directory} and all of its sub directories. Links to
+	 *   directories are not followed.
+	 */
+	private void registerTree(final @Nonnull Path directory) {
+		try {
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(final Path subdirectory, final BasicFileAttributes attributes) {
+					register(subdirectory);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+					LOG.warn("Cannot watch " + file + ": " + e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch(IOException e) {
+			LOG.warn("Cannot watch " + directory + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Watches {@code directory} for created and modified files.
+	 */
+	private void register(final @Nonnull Path directory) {
+		try {
+			directories.put(directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), directory);
+		} catch(IOException e) {
+			LOG.warn("Cannot watch " + directory + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Remembers the task until it is finished.
+	 */
+	public void taskAdded(final @Nonnull Task task) {
+		final File inputFile = task.getInputFile().getAbsoluteFile();
+		
+		unfinishedTasks.put(inputFile, task);
+		task.getCompletion().thenRun(new Runnable() {
+			public void run() {
+				unfinishedTasks.remove(inputFile, task);
+			}
+		});
+	}
+
+	/**
+	 * Forget all tasks.
+	 */
+	public void modelCleared() {
+		unfinishedTasks.clear();
+	}
+
+	/**
+	 * Nothing to do in this case.
+	 */
+	public void completedWorklist() {
+	}
+}
@@ -16,14 +16,43 @@
 package de.berber.kindle.annotator.controller;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.log4j.Logger;
 
+import de.berber.kindle.annotator.lib.KindleAnnotationReader;
+import de.berber.kindle.annotator.lib.PdrSummary;
+import de.berber.kindle.annotator.lib.Settings;
 import de.berber.kindle.annotator.model.WorkingList;
 
 /**
  * Thread to collect all PDF files we want to convert. The files that are
- *   found, will be added to the model.
+ *   found, will be added to the model while the search is still running.
+ *   Directories are searched in parallel and, if requested, recursively.
+ *   Files without annotations are dropped and the remaining files of a
+ *   directory are added in the order of their estimated costs, the most
+ *   expensive file first, so that a big book does not finish last.
  *
  * @author Bernhard J. Berger
  */
@@ -34,25 +63,115 @@ public class WorkCollector implements Runnable {
 	private final static Logger LOG = Logger.getLogger(WorkCollector.class);
 
 	/**
-	 * The target file or directory.
+	 * Number of directories that are searched in parallel. Listing a
+	 *   directory mostly waits for the file system, therefore we use more
+	 *   threads than there are processors.
 	 */
-	private final File outputFile;
-	
+	private static final int DISCOVERY_THREADS = Math.max(8, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * An input file or directory together with its target.
+	 */
+	private static final class Root {
+		private final File inputFile;
+		private final File outputFile;
+		
+		/**
+		 * The manifest of the output directory, shared by all roots with the
+		 *   same output directory.
+		 */
+		private final Manifest manifest;
+
+		Root(final File inputFile, final File outputFile, final Manifest manifest) {
+			this.inputFile = inputFile;
+			this.outputFile = outputFile;
+			this.manifest = manifest;
+		}
+		
+		/**
+		 * Returns the output file for {@code pdfFile} found below the input
+		 *   directory. The directory structure is kept.
+		 */
+		File getOutputFile(final Path pdfFile) {
+			final Path relativePath = inputFile.getAbsoluteFile().toPath().relativize(pdfFile.toAbsolutePath());
+			
+			return outputFile.toPath().resolve(relativePath).toFile();
+		}
+	}
+
 	/**
-	 * The input file or directory.
+	 * A file that will be converted.
 	 */
-	private final File inputFile;
+	private static final class Candidate {
+		private final Root root;
+		private final File inputFile;
+		private final File outputFile;
+		
+		/**
+		 * Estimated costs of the conversion.
+		 */
+		private final long cost;
+
+		Candidate(final Root root, final File inputFile, final File outputFile, final long cost) {
+			this.root = root;
+			this.inputFile = inputFile;
+			this.outputFile = outputFile;
+			this.cost = cost;
+		}
+	}
+
+	/**
+	 * Orders candidates by descending costs.
+	 */
+	private static final Comparator<Candidate> BY_DESCENDING_COST = new Comparator<Candidate>() {
+		public int compare(final Candidate first, final Candidate second) {
+			return first.cost > second.cost ? -1 : (first.cost < second.cost ? 1 : 0);
+		}
+	};
+
+	/**
+	 * The input files and directories.
+	 */
+	private final List<Root> roots = new ArrayList<Root>();
 	
 	/**
 	 * The internal data model.
 	 */
 	private final WorkingList workingList;
 
+	/**
+	 * Convert all files, even if they are up to date.
+	 */
+	private final boolean force;
+
+	/**
+	 * Search sub directories of the input directories, too.
+	 */
+	private final boolean recursive;
+
+	/**
+	 * All output files of the tasks found so far.
+	 */
+	private final Set<File> outputFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	/**
+	 * Number of up-to-date files that were skipped.
+	 */
+	private final AtomicInteger numberOfSkippedTasks = new AtomicInteger();
+
+	/**
+	 * Number of files without annotations that were skipped.
+	 */
+	private final AtomicInteger numberOfEmptyTasks = new AtomicInteger();
+
 	/**
 	 * Creates a {@code WorkCollector} and initializes the necessary fields.
 	 *   The constructor also does the needed parameter checks and will throw
 	 *   an {@link IllegalParameterException} if there is a problem.
 	 * 
+	 * @param settings The annotator settings, deciding which files the
+	 *   conversions write.
+	 * 
 	 * @param inputFile The input file or directory. The input file must exist
 	 *   and be readable for the user.
 	 *   
@@ -65,12 +184,86 @@ public class WorkCollector implements Runnable {
 	 * 
 	 * @param model The internal data model to fill.
 	 */
-	public WorkCollector(final File inputFile, File outputFile, final WorkingList model) {
+	public WorkCollector(final @Nonnull Settings settings, final File inputFile, final File outputFile, final WorkingList model) {
+		this(settings, inputFile, outputFile, model, false);
+	}
+
+	/**
+	 * Creates a {@code WorkCollector} like
+	 *   {@link #WorkCollector(Settings, File, File, WorkingList)}. Files
+	 *   whose PDF and PDR did not change since the last conversion and whose
+	 *   output still exists are skipped, unless {@code force} is set.
+	 */
+	public WorkCollector(final @Nonnull Settings settings, final File inputFile, final File outputFile,
+			final WorkingList model, final boolean force) {
+		this(settings, Collections.singletonList(inputFile), outputFile, model, force, false);
+	}
+
+	/**
+	 * Creates a {@code WorkCollector} for several input files and
+	 *   directories. If there is more than one input, {@code outputFile} has
+	 *   to be {@code null} or a directory. Files found in sub directories are
+	 *   written to the same sub directories of the output directory.
+	 * 
+	 * @param recursive Search the sub directories of input directories.
+	 */
+	public WorkCollector(final @Nonnull Settings settings, final @Nonnull List<File> inputFiles, final @Nullable File outputFile,
+			final @Nonnull WorkingList model, final boolean force, final boolean recursive) {
+		if(inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("There is no input file");
+		} else if(inputFiles.size() > 1 && outputFile != null && !outputFile.isDirectory()) {
+			throw new IllegalArgumentException("Output file has got to be a directory for several input files.");
+		}
+		
+		final Map<File, Manifest> manifests = new HashMap<File, Manifest>();
+		for(final File inputFile : inputFiles) {
+			final File target = getOutputFile(inputFile, outputFile);
+			final File outputDirectory = getDirectory(target);
+			
+			Manifest manifest = manifests.get(outputDirectory);
+			if(manifest == null) {
+				manifest = new Manifest(outputDirectory, settings.isXfdfOutput());
+				manifests.put(outputDirectory, manifest);
+			}
+			
+			LOG.info("Converting " +  inputFile + " to " + target);
+			roots.add(new Root(inputFile, target, manifest));
+		}
+		
+		this.force = force;
+		this.recursive = recursive;
+		this.workingList = model;
+		model.collectorStarts();
+	}
+
+	/**
+	 * Returns the directory keeping the manifest of the conversion of
+	 *   {@code inputFile} into {@code outputFile}. Other conversions into
+	 *   this directory or its sub directories may write the same files.
+	 * 
+	 * @throws IllegalArgumentException If the input or the output is invalid.
+	 */
+	static @Nonnull File getOutputDirectory(final @Nonnull File inputFile, final @Nullable File outputFile) {
+		return getDirectory(getOutputFile(inputFile, outputFile));
+	}
+
+	/**
+	 * Returns the absolute directory of a target file or the target
+	 *   directory itself.
+	 */
+	private static @Nonnull File getDirectory(final @Nonnull File target) {
+		return (target.isDirectory() ? target : target.getAbsoluteFile().getParentFile()).getAbsoluteFile();
+	}
+
+	/**
+	 * Checks the input file and determines the target of its conversion.
+	 */
+	private static File getOutputFile(final File inputFile, File outputFile) {
 		// ensure that the input file exists
 		if(!inputFile.exists()) {
-			throw new IllegalArgumentException("Input file does not exist");
+			throw new IllegalArgumentException("Input file does not exist: " + inputFile);
 		} else if(!inputFile.canRead()) {
-			throw new IllegalArgumentException("Cannot read input file.");
+			throw new IllegalArgumentException("Cannot read input file: " + inputFile);
 		}
 		
 		// check validity of input
@@ -92,19 +285,16 @@ public class WorkCollector implements Runnable {
 					throw new IllegalArgumentException("Cannot write output file " + outputFile);
 				}
 			} else if(outputFile.isDirectory()) {
-				 outputFile = new File(inputFile + File.separator + inputFile.getName());
+				 outputFile = new File(outputFile, inputFile.getName());
 				 
 				 if(outputFile.exists()) {
-					 LOG.info("Target file " + outputFile + "already exists. Operation will erease it.");
-				 }
-				 
-				 if(!outputFile.canWrite()) {
-						throw new IllegalArgumentException("Cannot write output file " + outputFile);
+					 LOG.info("Target file " + outputFile + " already exists. Operation will erease it.");
+					 
+					 if(!outputFile.canWrite()) {
+						 throw new IllegalArgumentException("Cannot write output file " + outputFile);
+					 }
 				 }
 			}
-
-			this.inputFile  = inputFile;
-			this.outputFile = outputFile;
 		} else {
 			if(!inputFile.isDirectory()) {
 				throw new IllegalArgumentException("Input file is not a directory: " + inputFile);
@@ -118,100 +308,355 @@ public class WorkCollector implements Runnable {
 			} else if(!outputFile.isDirectory()) {
 				throw new IllegalArgumentException("Output file has got to be a directory.");
 			}
-			
-			this.inputFile  = inputFile;
-			this.outputFile = outputFile;
 		}
-		LOG.info("Converting " +  this.inputFile + " to " + this.outputFile);
 		
-		this.workingList = model;
-		model.collectorStarts();
+		return outputFile;
 	}
 	
 	/**
-	 * Checks if there is a PDR file for the given PDF file.
+	 * Returns the PDR file that belongs to the given PDF file.
+	 */
+	static File getPDRFile(final File pdfFile) {
+		return new File(pdfFile.toString().substring(0, pdfFile.toString().lastIndexOf('.')) + ".pdr");
+	}
+
+	/**
+	 * Checks if there is a readable PDR file for the given PDF file.
 	 */
 	private static boolean existsPDR(final File pdfFile) {
-		final File pdrFile = new File(pdfFile.toString().substring(0, pdfFile.toString().lastIndexOf('.')) + ".pdr");
+		final File pdrFile = getPDRFile(pdfFile);
 		
 		LOG.info("Checking for PDR file " +  pdrFile + " for class " + pdfFile);
 
-		boolean result = pdrFile.exists();
-		
-		if(result) {
-			result = pdrFile.canRead();
-			
-			if(!result) {
-				LOG.warn("Cannot read PDR file : " + pdrFile);
-			}
-		} else {
+		if(!pdrFile.exists()) {
 			LOG.warn("There is no PDR file for: " + pdfFile);
+			return false;
+		} else if(!pdrFile.canRead()) {
+			LOG.warn("Cannot read PDR file : " + pdrFile);
+			return false;
 		}
 		
-		return pdrFile.exists();
+		return true;
 	}
 
 	/**
 	 * Collects all input files and adds them to the working queue.
 	 */
 	public void run() {
-		if(inputFile.isFile()) {
-			// process a single file if we can find a PDR file.
-			if(existsPDR(inputFile)) {
-				addTask(inputFile, outputFile);
+		final ForkJoinPool pool = new ForkJoinPool(DISCOVERY_THREADS);
+		
+		try {
+			final List<ForkJoinTask<Void>> searches = new ArrayList<ForkJoinTask<Void>>();
+			
+			for(final Root root : roots) {
+				if(root.inputFile.isFile()) {
+					// process a single file if we can find a PDR file.
+					if(existsPDR(root.inputFile) && claimOutputFile(root.inputFile, root.outputFile)) {
+						final Candidate candidate = createCandidate(root, root.inputFile, root.outputFile, root.inputFile.length());
+						
+						if(candidate != null) {
+							addTasks(Collections.singletonList(candidate));
+						}
+					}
+				} else {
+					searches.add(pool.submit(new DirectorySearch(root, root.inputFile.toPath())));
+				}
 			}
-		} else {
-			assert inputFile.isDirectory() : "Just an internal consistency check.";
 			
-			final File [] inputFiles = inputFile.listFiles();
+			for(final ForkJoinTask<Void> search : searches) {
+				search.join();
+			}
+		} finally {
+			pool.shutdown();
 			
-			// TODO Make the search recursive
-			for(int index = 0; index < inputFiles.length; ++index) {
-				final File currentFile = inputFiles[index];
-				
-				if(!currentFile.isFile()) {
+			if(numberOfSkippedTasks.get() > 0) {
+				LOG.info("Skipped " + numberOfSkippedTasks + " up-to-date files");
+			}
+			
+			if(numberOfEmptyTasks.get() > 0) {
+				LOG.info("Skipped " + numberOfEmptyTasks + " files without annotations");
+			}
+			
+			// the model and the manifests must learn about the end of the search, even if it failed
+			sendFinishMessage();
+		}
+	}
+
+	/**
+	 * @return The number of files that were skipped because they are up to
+	 *   date.
+	 */
+	public int getNumberOfSkippedTasks() {
+		return numberOfSkippedTasks.get();
+	}
+
+	/**
+	 * @return The number of files that were skipped because their PDR file
+	 *   does not contain any annotation.
+	 */
+	public int getNumberOfEmptyTasks() {
+		return numberOfEmptyTasks.get();
+	}
+
+	/**
+	 * Tell the model that we are finished.
+	 */
+	private void sendFinishMessage() {
+		for(final Root root : roots) {
+			// a manifest shared by several roots ignores repeated calls
+			root.manifest.collectorFinished();
+		}
+		workingList.collectorFinished();
+	}
+
+	/**
+	 * @return The input files and directories.
+	 */
+	List<File> getInputFiles() {
+		final List<File> result = new ArrayList<File>();
+		for(final Root root : roots) {
+			result.add(root.inputFile);
+		}
+		return result;
+	}
+
+	/**
+	 * @return {@code true} if sub directories of the input directories are
+	 *   searched.
+	 */
+	boolean isRecursive() {
+		return recursive;
+	}
+
+	/**
+	 * Converts {@code pdfFile} again after its PDR file changed. The file
+	 *   has to be an input file or has to be found below an input directory.
+	 *   This may be called after the collector has finished.
+	 * 
+	 * @return {@code true} if a task has been added.
+	 */
+	boolean addChangedFile(final @Nonnull File pdfFile) {
+		final Path pdfPath = pdfFile.getAbsoluteFile().toPath();
+		
+		for(final Root root : roots) {
+			final Path inputPath = root.inputFile.getAbsoluteFile().toPath();
+			final File output;
+			
+			if(root.inputFile.isFile()) {
+				if(!inputPath.equals(pdfPath)) {
 					continue;
 				}
+				output = root.outputFile;
+			} else if(recursive ? pdfPath.startsWith(inputPath) : inputPath.equals(pdfPath.getParent())) {
+				output = root.getOutputFile(pdfPath);
+			} else {
+				continue;
+			}
+			
+			if(!pdfFile.isFile()) {
+				LOG.warn("There is no PDF file for: " + getPDRFile(pdfFile));
+				return false;
+			}
+			
+			final Candidate candidate = createCandidate(root, pdfFile, output, pdfFile.length());
+			if(candidate == null) {
+				return false;
+			}
+			
+			addTasks(Collections.singletonList(candidate));
+			return true;
+		}
+		
+		LOG.warn("File is not part of the input: " + pdfFile);
+		return false;
+	}
+
+	/**
+	 * Reserves {@code outputFile} for {@code inputFile}. Several input
+	 *   directories may map a file to the same output file, only the first
+	 *   one is taken.
+	 * 
+	 * @return {@code false} if the output file is taken already.
+	 */
+	private boolean claimOutputFile(final @Nonnull File inputFile, final @Nonnull File outputFile) {
+		if(!outputFiles.add(outputFile.getAbsoluteFile())) {
+			LOG.error("Output file " + outputFile + " is already written by another task, skipping " + inputFile);
+			return false;
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Creates a conversion task unless it is up to date or there is nothing
+	 *   to add. The costs of the task are estimated by the size of the PDF
+	 *   file times the number of annotations.
+	 * 
+	 * @return The candidate or {@code null} if the file is skipped.
+	 */
+	private @Nullable Candidate createCandidate(final @Nonnull Root root, final @Nonnull File inputFile,
+			final @Nonnull File outputFile, final long inputSize) {
+		if(!force && root.manifest.isUpToDate(inputFile, getPDRFile(inputFile), outputFile)) {
+			LOG.info("Skipping up-to-date file " + inputFile);
+			numberOfSkippedTasks.incrementAndGet();
+			return null;
+		}
+		
+		// a broken PDR file will be reported by the conversion
+		final PdrSummary summary = new KindleAnnotationReader(Settings.DEFAULT, inputFile).scan();
+		if(summary != null && summary.getNumberOfAnnotations() == 0) {
+			LOG.info("Skipping file without annotations " + inputFile);
+			numberOfEmptyTasks.incrementAndGet();
+			return null;
+		}
+		
+		final File outputDirectory = outputFile.getAbsoluteFile().getParentFile();
+		if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			LOG.error("Cannot create output directory " + outputDirectory);
+			return null;
+		}
+		
+		final long numberOfAnnotations = summary != null ? summary.getNumberOfAnnotations() : 1;
+		return new Candidate(root, inputFile, outputFile, inputSize * numberOfAnnotations);
+	}
+
+	/**
+	 * Adds the candidates to the working list, the most expensive first.
+	 */
+	private void addTasks(final @Nonnull List<Candidate> candidates) {
+		Collections.sort(candidates, BY_DESCENDING_COST);
+		
+		for(final Candidate candidate : candidates) {
+			candidate.root.manifest.expectTask();
+			workingList.addTask(candidate.inputFile, candidate.outputFile, candidate.root.manifest);
+		}
+	}
+
+	/**
+	 * Reads the attributes of a directory entry. Links to files are followed,
+	 *   links to directories never to avoid cycles.
+	 * 
+	 * @return The attributes or {@code null} if the entry has to be skipped,
+	 *   because it is a link to a directory or cannot be examined, e.g. a
+	 *   dangling link or a file deleted since listing the directory.
+	 */
+	static @Nullable BasicFileAttributes readAttributes(final @Nonnull Path entry) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			
+			if(attributes.isSymbolicLink()) {
+				attributes = Files.readAttributes(entry, BasicFileAttributes.class);
 				
-				if(!currentFile.toString().endsWith(".pdf")) {
-					continue;
+				if(attributes.isDirectory()) {
+					LOG.info("Not following link to directory " + entry);
+					return null;
 				}
+			}
+			
+			return attributes;
+		} catch(IOException e) {
+			LOG.warn("Cannot examine " + entry + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Searches a single directory and forks the search of its sub
+	 *   directories. PDF and PDR files are paired using the directory listing,
+	 *   therefore every entry is examined only once.
+	 */
+	private final class DirectorySearch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Root root;
+		
+		private final Path directory;
+
+		DirectorySearch(final @Nonnull Root root, final @Nonnull Path directory) {
+			this.root = root;
+			this.directory = directory;
+		}
+
+		@Override
+		protected void compute() {
+			final Map<String, BasicFileAttributes> files = new HashMap<String, BasicFileAttributes>();
+			final List<DirectorySearch> subdirectories = new ArrayList<DirectorySearch>();
+			
+			try {
+				final DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
 				
-				if(!currentFile.canRead()) {
-					LOG.warn("Cannot read PDF file " + currentFile);
-					continue;
+				try {
+					for(final Path entry : entries) {
+						final BasicFileAttributes attributes = readAttributes(entry);
+						
+						if(attributes == null) {
+							continue;
+						} else if(attributes.isDirectory()) {
+							if(recursive) {
+								subdirectories.add(new DirectorySearch(root, entry));
+							}
+						} else if(attributes.isRegularFile()) {
+							files.put(entry.getFileName().toString(), attributes);
+						}
+					}
+				} catch(DirectoryIteratorException e) {
+					// keep the entries listed so far
+					LOG.warn("Cannot list all of directory " + directory + ": " + e.getCause().getMessage());
+				} finally {
+					entries.close();
 				}
+			} catch(IOException e) {
+				LOG.warn("Cannot search directory " + directory + ": " + e.getMessage());
+				return;
+			}
+			
+			// sub directories are searched while we scan the PDR files
+			for(final DirectorySearch subdirectory : subdirectories) {
+				subdirectory.fork();
+			}
+			
+			final List<Candidate> candidates = new ArrayList<Candidate>();
+			for(final Map.Entry<String, BasicFileAttributes> file : files.entrySet()) {
+				final String name = file.getKey();
 				
-				if(!existsPDR(currentFile)) {
-					// PDF file without annotation
+				if(!name.endsWith(".pdf")) {
 					continue;
 				}
 				
-				final File output = new File(outputFile + File.separator + currentFile.getName());
-				
-				if(output.exists() && !output.canWrite()) {
-					LOG.error("Cannot write output file " + output);
+				final Path pdfFile = directory.resolve(name);
+				if(!files.containsKey(name.substring(0, name.length() - 4) + ".pdr")) {
+					LOG.warn("There is no PDR file for: " + pdfFile);
 					continue;
 				}
 				
-				addTask(currentFile, output);
+				final Candidate candidate = createCandidate(pdfFile, file.getValue());
+				if(candidate != null) {
+					candidates.add(candidate);
+				}
+			}
+			addTasks(candidates);
+			
+			for(final DirectorySearch subdirectory : subdirectories) {
+				subdirectory.join();
 			}
 		}
-		
-		sendFinishMessage();
-	}
-
-	/**
-	 * Tell the model that we are finished.
-	 */
-	private void sendFinishMessage() {
-		workingList.collectorFinished();
-	}
 
-	/**
-	 * Add a conversion task to the model.
-	 */
-	private void addTask(final File inputFile, final File outputFile) {
-		workingList.addTask(inputFile, outputFile);
+		/**
+		 * Creates the candidate for a PDF file with PDR file.
+		 */
+		private @Nullable Candidate createCandidate(final @Nonnull Path pdfFile, final @Nonnull BasicFileAttributes attributes) {
+			final File output = root.getOutputFile(pdfFile);
+			
+			if(output.exists() && !output.canWrite()) {
+				LOG.error("Cannot write output file " + output);
+				return null;
+			}
+			
+			if(!claimOutputFile(pdfFile.toFile(), output)) {
+				return null;
+			}
+			
+			return WorkCollector.this.createCandidate(root, pdfFile.toFile(), output, attributes.size());
+		}
 	}
 }
@@ -15,24 +15,28 @@
  */
 package de.berber.kindle.annotator.controller;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.File;
 
 import javax.annotation.Nonnull;
 
-import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.log4j.Logger;
 
 import de.berber.kindle.annotator.lib.PDFAnnotator;
+import de.berber.kindle.annotator.lib.Settings;
 import de.berber.kindle.annotator.model.State;
 import de.berber.kindle.annotator.model.Task;
+import de.berber.kindle.annotator.model.TaskStatistics;
+import de.berber.kindle.annotator.model.TaskStatistics.Phase;
 import de.berber.kindle.annotator.model.WorkingList;
 import de.berber.kindle.annotator.model.WorkingListListener;
 
 /**
  * The work queue administrates the worker threads and feeds them with work.
- *   Currently there are as much thread as there are processors. The WorkQueue
- *   will be informed about new tasks by the model.
+ *   A conversion passes a pipeline of four stages: reading the PDR file,
+ *   loading the PDF file, adding the annotations and writing the result.
+ *   Each stage has its own threads, so reading and writing of some files
+ *   overlaps with the annotation of others. The WorkQueue will be informed
+ *   about new tasks by the model.
  *   
  * @author Bernhard J. Berger
  */
@@ -41,110 +45,242 @@ public class WorkQueue implements WorkingListListener {
 	 * The log instance
 	 */
 	private final static Logger LOG = Logger.getLogger(WorkQueue.class);
-			
-	private class Converter implements Runnable {
+
+	/**
+	 * A task on its way through the pipeline.
+	 */
+	private static final class Conversion implements MemoryBudget.Claim {
 		private final Task task;
-		private final CompositeConfiguration cc;
+		private PDFAnnotator annotator = null;
+		private long grantedMemory = 0;
 
-		Converter(final Task task, CompositeConfiguration cc) {
+		Conversion(final @Nonnull Task task) {
 			this.task = task;
-			this.cc = cc;
 		}
 
-		public void run() {
-			LOG.info("Converting " + task);
+		public long getEstimatedMemory() {
+			return annotator.getEstimatedMemory();
+		}
+
+		public void setGrantedMemory(final long amount) {
+			grantedMemory = amount;
+		}
+
+		@Override
+		public String toString() {
+			return task.toString();
+		}
+	}
+
+	/**
+	 * Common error handling of all stages. If a stage finishes a conversion
+	 *   or fails, the annotator will be closed.
+	 */
+	private abstract class ConversionStage implements Pipeline.Stage<Conversion> {
+		public final boolean process(final @Nonnull Conversion conversion) {
+			boolean forward = false;
 			
 			try {
-				switch (task.getState()) {
-				case WAITING:
-					task.setState(State.RUNNING);
-					
-					final PDFAnnotator annotator = new PDFAnnotator(cc,
-							task.getInputFile().toString(),
-							task.getOutputFile().toString());
-					
-					if(annotator.run()) {
-						task.setState(State.FINISHED);
-					} else {
-						task.setState(State.ERROR);
-					}
-					break;
-	
-				case ERROR:
-				case RUNNING:
-				case FINISHED:
-					LOG.error("Invalid task state " + task.getState());
-					break;
-	
-				case ABORTED:
+				if(conversion.task.getState() == State.ABORTED) {
 					// user selected abort -> skip this file
-					break;
+				} else {
+					forward = convert(conversion);
 				}
 			} catch(final Exception e) {
-				LOG.error("Error while converting " + task);
-				task.setState(State.ERROR);
+				LOG.error("Error while converting " + conversion.task);
+				conversion.task.setState(State.ERROR);
+			} catch(final OutOfMemoryError e) {
+				// the document is released below, the other conversions may continue
+				LOG.error("Out of memory while converting " + conversion.task
+						+ ", consider a smaller memory.budget or lowMemory");
+				conversion.task.setState(State.ERROR);
+			} finally {
+				if(!forward) {
+					if(conversion.annotator != null) {
+						conversion.annotator.close();
+					}
+					memoryBudget.release(conversion.grantedMemory);
+					conversion.grantedMemory = 0;
+					
+					LOG.info("Converted " + conversion.task + ": " + conversion.task.getStatistics());
+				}
 			}
+			
+			return forward;
 		}
+
+		/**
+		 * Does the work of the stage.
+		 * 
+		 * @return {@code true} if the conversion shall be passed to the next
+		 *   stage.
+		 */
+		protected abstract boolean convert(final @Nonnull Conversion conversion);
 	}
 
 	/**
-	 * Configuration file
+	 * The annotator settings.
+	 */
+	private final Settings settings;
+	
+	/**
+	 * Admission control for the documents in memory, the queue of the load
+	 *   stage.
 	 */
-	private final CompositeConfiguration configuration;
+	private final MemoryBudget<Conversion> memoryBudget;
 	
 	/**
-	 * The executor service implements the real work balancing.
+	 * The pipeline implements the real work balancing.
 	 */
-	private ExecutorService executor;
+	private Pipeline<Conversion> pipeline;
 	
 	/**
 	 * Creates a new work queue that waits for work packages.
 	 */
-	public WorkQueue(final @Nonnull CompositeConfiguration cc, final @Nonnull WorkingList model) {
-		this.configuration = cc;
+	public WorkQueue(final @Nonnull Settings settings, final @Nonnull WorkingList model) {
+		this(settings);
 		
 		model.addListener(this);
+	}
+	
+	/**
+	 * Creates a new work queue that converts the tasks of all models it is
+	 *   added to as a listener.
+	 */
+	public WorkQueue(final @Nonnull Settings settings) {
+		this.settings = settings;
+		this.memoryBudget = new MemoryBudget<Conversion>(settings.getMemoryBudget());
 		
 		start();
 	}
 	
 	/**
-	 * Startup the executors
+	 * Startup the pipeline
 	 */
 	private void start() {
-        final int cpuCount = Runtime.getRuntime().availableProcessors();
-        LOG.info("Starting " + cpuCount + " threads.");
-        
-        executor = Executors.newFixedThreadPool(cpuCount);
+		final int capacity = settings.getStageQueueCapacity();
+		final boolean virtualThreads = settings.isVirtualThreads();
+		
+		pipeline = new Pipeline<Conversion>();
+		pipeline.addStage("read", new ConversionStage() {
+			protected boolean convert(final @Nonnull Conversion conversion) {
+				if(conversion.task.getState() != State.WAITING) {
+					LOG.error("Invalid task state " + conversion.task.getState());
+					return false;
+				}
+				
+				LOG.info("Converting " + conversion.task);
+				final TaskStatistics statistics = conversion.task.getStatistics();
+				conversion.task.setState(State.RUNNING);
+				
+				final File inputFile = conversion.task.getInputFile();
+				statistics.setInputBytes(inputFile.length() + WorkCollector.getPDRFile(inputFile).length());
+				conversion.annotator = new PDFAnnotator(settings,
+						inputFile.toString(),
+						conversion.task.getOutputFile().toString());
+				
+				final long start = System.nanoTime();
+				final boolean hasAnnotations = conversion.annotator.readAnnotations();
+				statistics.addTime(Phase.PARSE, System.nanoTime() - start);
+				statistics.setNumberOfAnnotations(conversion.annotator.getNumberOfBookmarks(),
+						conversion.annotator.getNumberOfMarkings(), conversion.annotator.getNumberOfComments());
+				
+				if(!hasAnnotations) {
+					// nothing to add
+					finish(conversion.task);
+					return false;
+				}
+				
+				return true;
+			}
+		}, settings.getReadThreads(), capacity, virtualThreads);
+		
+		// the memory budget only hands out conversions whose memory is granted
+		pipeline.addStage("load", new ConversionStage() {
+			protected boolean convert(final @Nonnull Conversion conversion) {
+				final long start = System.nanoTime();
+				final boolean loaded = conversion.annotator.loadDocument();
+				conversion.task.getStatistics().addTime(Phase.LOAD, System.nanoTime() - start);
+				
+				if(!loaded) {
+					conversion.task.setState(State.ERROR);
+					return false;
+				}
+				
+				return true;
+			}
+		}, settings.getLoadThreads(), memoryBudget, false);
+		
+		pipeline.addStage("annotate", new ConversionStage() {
+			protected boolean convert(final @Nonnull Conversion conversion) {
+				final long start = System.nanoTime();
+				conversion.annotator.annotate();
+				conversion.task.getStatistics().addTime(Phase.ANNOTATE, System.nanoTime() - start);
+				return true;
+			}
+		}, settings.getAnnotateThreads(), capacity, false);
+		
+		pipeline.addStage("write", new ConversionStage() {
+			protected boolean convert(final @Nonnull Conversion conversion) {
+				final long start = System.nanoTime();
+				final boolean written = conversion.annotator.write();
+				
+				final TaskStatistics statistics = conversion.task.getStatistics();
+				statistics.addTime(Phase.SAVE, System.nanoTime() - start);
+				if(!written) {
+					conversion.task.setState(State.ERROR);
+					return false;
+				}
+				
+				statistics.setOutputBytes(Manifest.getWrittenFile(conversion.task.getOutputFile(), settings.isXfdfOutput()).length());
+				finish(conversion.task);
+				return false;
+			}
+		}, settings.getWriteThreads(), capacity, virtualThreads);
+		
+		LOG.info("Starting pipeline with " + settings.getReadThreads() + "/" + settings.getLoadThreads()
+				+ "/" + settings.getAnnotateThreads() + "/" + settings.getWriteThreads() + " threads and a memory budget of "
+				+ (memoryBudget.getBudget() >> 20) + " MB.");
+		pipeline.start();
 	}
 	
 	/**
-	 * Stops the executors.
+	 * Finishes {@code task}. The converted files are examined for the
+	 *   manifest here, on the worker, instead of by the listeners on the
+	 *   event dispatcher thread.
+	 */
+	private void finish(final @Nonnull Task task) {
+		task.setFileStates(Manifest.getFileStates(task, settings.isXfdfOutput()));
+		task.setState(State.FINISHED);
+	}
+	
+	/**
+	 * Stops the pipeline after all tasks have been converted.
 	 */
 	public void stop() {
-        executor.shutdown();
-        while(!executor.isTerminated()) {
-        	try {
-        		Thread.sleep(500);
-            } catch (InterruptedException e) {
-            	LOG.error("Thread was interrupted");
-            }
-        }
+		pipeline.stop();
+		LOG.info("Pipeline statistics:\n" + pipeline.getStatistics());
+	}
+
+	/**
+	 * @return The number of processed jobs and the utilisation of each stage.
+	 */
+	public String getStatistics() {
+		return pipeline.getStatistics();
 	}
 	
 	/**
 	 * Listen for added tasks and submits a new work package.
 	 */
 	public void taskAdded(Task task) {
-        executor.submit(new Converter(task, configuration));
+		pipeline.submit(new Conversion(task));
 	}
 
 	/**
-	 * A model clear resets the executor.
+	 * The jobs of cleared tasks still finish, nothing to do. Waiting for them
+	 *   here would block the event dispatcher they report to.
 	 */
 	public void modelCleared() {
-		stop();
-		start();
 	}
 
 	/**
@@ -15,10 +15,13 @@
  */
 package de.berber.kindle.annotator.gui;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.swing.AbstractListModel;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import de.berber.kindle.annotator.model.State;
 import de.berber.kindle.annotator.model.Task;
@@ -28,7 +31,9 @@ import de.berber.kindle.annotator.model.WorkingListListener;
 
 /**
  * A simple adapter mediating between out internal working list and the JList
- *   ListModel.
+ *   ListModel. Changes are collected and passed to the ui part every
+ *   {@link #UPDATE_INTERVAL} milliseconds as one added and one changed range,
+ *   so big batches do not flood the event dispatch thread.
  * 
  * @author Bernhard J. Berger
  */
@@ -38,11 +43,34 @@ public class ListModelAdapter extends AbstractListModel implements WorkingListLi
 	 */
 	private static final long serialVersionUID = -8842408435578577976L;
 	
+	/**
+	 * Milliseconds between two ui updates.
+	 */
+	public static final int UPDATE_INTERVAL = 100;
+	
 	/**
 	 * The model we are wrapping.
 	 */
 	private final WorkingList model;
 	
+	/**
+	 * Number of tasks the ui part knows about. Only used on the event
+	 *   dispatch thread.
+	 */
+	private int size = 0;
+	
+	/**
+	 * Range of tasks that changed their state since the last update.
+	 */
+	private int firstChanged = Integer.MAX_VALUE;
+	
+	private int lastChanged = -1;
+	
+	/**
+	 * Set if the model has been cleared since the last update.
+	 */
+	private boolean cleared = false;
+	
 	/**
 	 * Creates a new adapter for {@code workingList} and registers for change
 	 * notifications.
@@ -51,28 +79,29 @@ public class ListModelAdapter extends AbstractListModel implements WorkingListLi
 		this.model = workingList;
 		
 		this.model.addListener(this);
+		
+		new Timer(UPDATE_INTERVAL, new ActionListener() {
+			public void actionPerformed(final ActionEvent event) {
+				update();
+			}
+		}).start();
 	}
 
 	/**
-	 * If a task was added we have to inform the ui part. And register for
-	 *   task notifications.
+	 * If a task was added we register for task notifications. The ui part
+	 *   is informed by the next update.
 	 */
 	public void taskAdded(final @Nonnull Task task) {
 		task.addListener(this);
-		
-		final int size = getSize();
-		SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				fireIntervalAdded(this, size, size);
-			}
-		});
 	}
 
 	/**
 	 * Inform the ui part about the model change.
 	 */
-	public void modelCleared() {
-		fireIntervalRemoved(this, 0, getSize());
+	public synchronized void modelCleared() {
+		cleared = true;
+		firstChanged = Integer.MAX_VALUE;
+		lastChanged = -1;
 	}
 
 	public void completedWorklist() {
@@ -82,27 +111,62 @@ public class ListModelAdapter extends AbstractListModel implements WorkingListLi
 	/**
 	 * If a task changed its state we have to trigger an ui refresh.
 	 */
-	public void stateChange(final @Nonnull Task task, final @Nonnull State oldState, final @Nonnull State newState) {
-		final int index = model.indexOf(task);
+	public synchronized void stateChange(final @Nonnull Task task, final @Nonnull State oldState, final @Nonnull State newState) {
+		final int index = task.getIndex();
 		
-		SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				fireContentsChanged(this, index, index);
-			}
-		});
+		firstChanged = Math.min(firstChanged, index);
+		lastChanged  = Math.max(lastChanged, index);
+	}
+
+	/**
+	 * Passes the collected changes to the ui part. Called on the event
+	 *   dispatch thread.
+	 */
+	private void update() {
+		final boolean wasCleared;
+		final int first;
+		final int last;
+		synchronized(this) {
+			wasCleared = cleared;
+			first = firstChanged;
+			last = lastChanged;
+			
+			cleared = false;
+			firstChanged = Integer.MAX_VALUE;
+			lastChanged = -1;
+		}
+		
+		if(wasCleared && size > 0) {
+			final int oldSize = size;
+			size = 0;
+			fireIntervalRemoved(this, 0, oldSize - 1);
+		}
+		
+		// tasks that are new to the ui part need no change event
+		if(first < size) {
+			fireContentsChanged(this, first, Math.min(last, size - 1));
+		}
+		
+		final int newSize = model.getNumberOfTasks();
+		if(newSize > size) {
+			final int oldSize = size;
+			size = newSize;
+			fireIntervalAdded(this, oldSize, newSize - 1);
+		}
 	}
 
 	/**
-	 * Returns task at position {@code column}.
+	 * Returns task at position {@code column} or {@code null} if it has
+	 *   been cleared in the meantime.
 	 */
 	public Object getElementAt(@Nonnegative int column) {
-		return model.getTask(column);
+		return column < model.getNumberOfTasks() ? model.getTask(column) : null;
 	}
 
 	/**
-	 * Returns the number of actual tasks.
+	 * Returns the number of tasks the ui part knows about.
 	 */
 	public @Nonnegative int getSize() {
-		return model.getNumberOfTasks();
+		return size;
 	}
 }
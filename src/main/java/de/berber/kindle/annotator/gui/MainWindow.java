@@ -42,6 +42,7 @@ import javax.swing.SwingUtilities;
 import de.berber.kindle.annotator.AbstractMain;
 import de.berber.kindle.annotator.Options;
 import de.berber.kindle.annotator.controller.WorkCollector;
+import de.berber.kindle.annotator.lib.Settings;
 import de.berber.kindle.annotator.model.Task;
 import de.berber.kindle.annotator.model.WorkingList;
 import de.berber.kindle.annotator.model.WorkingListListener;
@@ -68,8 +69,8 @@ public class MainWindow extends AbstractMain implements ActionListener, WorkingL
 	 * Create the application.
 	 * @param cc 
 	 */
-	public MainWindow(final @Nonnull Options options, final @Nonnull WorkingList model) {
-		super(options, model);
+	public MainWindow(final @Nonnull Options options, final @Nonnull Settings settings, final @Nonnull WorkingList model) {
+		super(options, settings, model);
 		
 		model.addListener(this);
 
@@ -139,10 +140,15 @@ public class MainWindow extends AbstractMain implements ActionListener, WorkingL
 		
 		verticalBox.add(Box.createVerticalStrut(strutSize));
 		
+		final TaskCellRenderer renderer = new TaskCellRenderer();
+		final ListModelAdapter listModel = new ListModelAdapter(model);
 		fileList = new JList();
-		fileList.setCellRenderer(new TaskCellRenderer());
+		fileList.setCellRenderer(renderer);
 		fileList.setFont(new Font("Arial Black", Font.PLAIN, 20));
-		fileList.setModel(new ListModelAdapter(model));
+		// fixed cell sizes keep the list from measuring every task
+		fileList.setFixedCellHeight(renderer.getCellHeight());
+		fileList.setFixedCellWidth(400);
+		fileList.setModel(listModel);
 		fileList.setFocusable(false);
 
 		
@@ -150,6 +156,10 @@ public class MainWindow extends AbstractMain implements ActionListener, WorkingL
 		verticalBox.add(scrollPane);
 		scrollPane.setPreferredSize(new Dimension(500, frmPdfannotatorGui.getSize().height - inputPanel.getPreferredSize().height - outputPanel.getPreferredSize().height));
 		
+		final ProgressPanel progressPanel = new ProgressPanel(model);
+		listModel.addListDataListener(progressPanel);
+		verticalBox.add(progressPanel);
+		
 		verticalBox.add(Box.createVerticalGlue());
 	}
 
@@ -190,12 +200,14 @@ public class MainWindow extends AbstractMain implements ActionListener, WorkingL
 				
 			case GO:
 				final File inputFile = new File(inputTextField.getText()); // TODO Check 
-				final File outputFile = new File(outputTextField.getText()); // TODO Check 
-				final WorkCollector collector = new WorkCollector(inputFile, outputFile, model);
+				final String output = outputTextField.getText();
+				final File outputFile = output == null || output.isEmpty() ? null : new File(output); // TODO Check 
+				final WorkCollector collector = new WorkCollector(settings, inputFile, outputFile, model, options.force);
 				
 				setInteractionState(false);
 				
-				new Thread(collector).run();
+				// collect files in the background to keep the ui responsive
+				new Thread(collector, "WorkCollector").start();
 				break;
 				
 			case SELECT_INPUT:
@@ -251,7 +263,11 @@ public class MainWindow extends AbstractMain implements ActionListener, WorkingL
 	 * 	interaction state.
 	 */
 	public void completedWorklist() {
-		setInteractionState(true);
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				setInteractionState(true);
+			}
+		});
 	}
 
 	public void run() {
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.gui;
+
+import java.awt.BorderLayout;
+
+import javax.annotation.Nonnull;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import de.berber.kindle.annotator.model.WorkingList;
+
+/**
+ * Shows the progress of the working list with throughput and estimated
+ *   remaining time. The panel is refreshed with every update of the list
+ *   model, it therefore has to be registered at the {@link ListModelAdapter}.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class ProgressPanel extends JPanel implements ListDataListener {
+	/**
+	 * Generated uid
+	 */
+	private static final long serialVersionUID = -3411807516349826373L;
+
+	/**
+	 * The model we are showing.
+	 */
+	private final WorkingList model;
+	
+	private final JProgressBar progressBar = new JProgressBar();
+	
+	private final JLabel statusLabel = new JLabel(" ");
+	
+	/**
+	 * Start time of the current run in nanoseconds.
+	 */
+	private long startTime = 0;
+	
+	/**
+	 * Number of tasks that were completed before the current run.
+	 */
+	private int completedBeforeStart = 0;
+	
+	/**
+	 * Set while there are unfinished tasks.
+	 */
+	private boolean running = false;
+
+	public ProgressPanel(final @Nonnull WorkingList model) {
+		super(new BorderLayout());
+		this.model = model;
+		
+		progressBar.setStringPainted(true);
+		add(progressBar, BorderLayout.NORTH);
+		add(statusLabel, BorderLayout.SOUTH);
+		refresh();
+	}
+
+	/**
+	 * Updates progress bar and status text, called on the event dispatch
+	 *   thread.
+	 */
+	private void refresh() {
+		final int total = model.getNumberOfTasks();
+		final int completed = Math.min(total, model.getNumberOfCompletedTasks());
+		final int failed = model.getNumberOfFailedTasks();
+		
+		if(!running && completed < total) {
+			// a new run starts
+			running = true;
+			startTime = System.nanoTime();
+			completedBeforeStart = completed;
+		} else if(running && completed == total) {
+			running = false;
+		}
+		
+		progressBar.setMaximum(Math.max(1, total));
+		progressBar.setValue(completed);
+		progressBar.setString(completed + " / " + total);
+		
+		final StringBuilder status = new StringBuilder();
+		status.append(completed).append(" of ").append(total).append(" files done");
+		if(failed > 0) {
+			status.append(", ").append(failed).append(" failed");
+		}
+		
+		final double seconds = (System.nanoTime() - startTime) / 1e9;
+		final int completedInRun = completed - completedBeforeStart;
+		if(running && completedInRun > 0 && seconds > 0) {
+			final double throughput = completedInRun / seconds;
+			final long remainingSeconds = Math.round((total - completed) / throughput);
+			
+			status.append(String.format(", %.1f files/s, about %d:%02d left",
+					throughput, remainingSeconds / 60, remainingSeconds % 60));
+		}
+		
+		statusLabel.setText(status.toString());
+	}
+
+	public void intervalAdded(final ListDataEvent event) {
+		refresh();
+	}
+
+	public void intervalRemoved(final ListDataEvent event) {
+		refresh();
+	}
+
+	public void contentsChanged(final ListDataEvent event) {
+		refresh();
+	}
+}
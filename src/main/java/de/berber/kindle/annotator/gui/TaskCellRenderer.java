@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 import javax.swing.JList;
@@ -65,14 +66,32 @@ public class TaskCellRenderer extends JLabel implements ListCellRenderer {
 		setForeground(new Color(0.2f, 0.2f, 0.2f));
 	}
 	
+	/**
+	 * Returns the height of a cell. All cells have the same height, so the
+	 *   list does not need to measure every cell.
+	 */
+	public int getCellHeight() {
+		setIcon(stateToIcon.get(State.WAITING));
+		setText("Xg");
+		
+		return getPreferredSize().height;
+	}
+	
 	/**
 	 * Render component
 	 */
 	public Component getListCellRendererComponent(final @Nonnull JList view,
-				                                  final @Nonnull Object obj,
+				                                  final @Nullable Object obj,
 				                                  int arg2, boolean arg3, boolean arg4) {
 		final Task task = (Task) obj;
 		
+		if(task == null) {
+			// the task has been cleared in the meantime
+			this.setIcon(null);
+			this.setText(null);
+			return this;
+		}
+		
 		this.setIcon(stateToIcon.get(task.getState()));
 		this.setText(task.getInputFile().getName());
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.index;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import de.berber.kindle.annotator.lib.Comment;
+import de.berber.kindle.annotator.lib.Marking;
+import de.berber.kindle.annotator.lib.PdrVisitor;
+import de.berber.kindle.annotator.lib.Settings;
+
+/**
+ * Collects the notes of a PDR file for the index. The state of the PDR file
+ *   is taken before it is read, so changes while reading are detected by
+ *   the next update of the index.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class BookNotes implements PdrVisitor {
+	/**
+	 * The annotator settings.
+	 */
+	private final Settings settings;
+
+	/**
+	 * The PDR file and its state.
+	 */
+	private final File pdrFile;
+	private final long length;
+	private final long modified;
+
+	private final List<Comment> comments = new ArrayList<Comment>();
+	private final List<Marking> markings = new ArrayList<Marking>();
+
+	/**
+	 * The text under each marking or {@code null} if it is not known.
+	 */
+	private String[] markingTexts = null;
+
+	public BookNotes(final @Nonnull Settings settings, final @Nonnull File pdrFile) {
+		this.settings = settings;
+		this.pdrFile = pdrFile;
+		this.length = pdrFile.length();
+		this.modified = pdrFile.lastModified();
+	}
+
+	public @Nonnull File getPdrFile() {
+		return pdrFile;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public @Nonnull List<Comment> getComments() {
+		return comments;
+	}
+
+	public @Nonnull List<Marking> getMarkings() {
+		return markings;
+	}
+
+	/**
+	 * @return The text under each marking or {@code null} if it is not
+	 *   known.
+	 */
+	public @Nullable String[] getMarkingTexts() {
+		return markingTexts;
+	}
+
+	/**
+	 * Sets the text under each marking, in the order of
+	 *   {@link #getMarkings()}.
+	 */
+	public void setMarkingTexts(final @Nonnull String[] markingTexts) {
+		assert markingTexts.length == markings.size();
+		this.markingTexts = markingTexts;
+	}
+
+	public void onHeader(final int lastOpenedPage) {
+		// nothing to do
+	}
+
+	public void onBookmarkCount(final @Nonnegative int numberOfBookmarks) {
+		// nothing to do
+	}
+
+	public void onBookmark(final @Nonnegative int page) {
+		// bookmarks have no text
+	}
+
+	public void onMarkingCount(final @Nonnegative int numberOfMarkings) {
+		// nothing to do
+	}
+
+	public void onMarking(final @Nonnegative int page1, final double x1, final double y1,
+			              final @Nonnegative int page2, final double x2, final double y2) {
+		markings.add(new Marking(settings, page1, x1, y1, page2, x2, y2));
+	}
+
+	public void onCommentCount(final @Nonnegative int numberOfComments) {
+		// nothing to do
+	}
+
+	public void onComment(final @Nonnegative int page, final double x, final double y,
+			              final @Nonnull String text) {
+		comments.add(new Comment(settings, page, x, y, text));
+	}
+
+	public void onEnd() {
+		// nothing to do
+	}
+}
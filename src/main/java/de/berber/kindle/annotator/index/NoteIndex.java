@@ -0,0 +1,739 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+import de.berber.kindle.annotator.lib.Comment;
+import de.berber.kindle.annotator.lib.Marking;
+
+/**
+ * A full-text index of the comments, and optionally the marked text, of a
+ *   library. The index is stored in a directory and consists of immutable
+ *   {@link Segment} files and a catalog listing the segments and the books
+ *   deleted from them.
+ * 
+ * Updating a book deletes its old entry and adds the book to a new segment.
+ *   The changes become visible with {@link #commit()}, which replaces the
+ *   catalog atomically. Small segments and segments with many deleted books
+ *   are merged when the index is committed.
+ * 
+ * Only one process may update the index, searching is possible at the same
+ *   time.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class NoteIndex {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(NoteIndex.class);
+
+	private static final String CATALOG = "segments";
+	private static final String LOCK = "lock";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".kai";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final String CATALOG_VERSION = "1";
+
+	/**
+	 * The smallest segments are merged if there are more segments.
+	 */
+	private static final int MAX_SEGMENTS = 8;
+
+	/**
+	 * Number of segments merged at once.
+	 */
+	private static final int MERGE_FACTOR = 4;
+
+	/**
+	 * Added notes are written to a segment as soon as there are this many.
+	 */
+	private static final int MAX_PENDING_NOTES = 100000;
+
+	/**
+	 * Number of characters shown in front of the first match and in total.
+	 */
+	private static final int SNIPPET_CONTEXT = 40;
+	private static final int SNIPPET_LENGTH = 120;
+
+	/**
+	 * Number of attempts to read the catalog while another process commits.
+	 */
+	private static final int READ_ATTEMPTS = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A segment and the books deleted from it.
+	 */
+	private static final class SegmentState {
+		private final Segment segment;
+		private final BitSet deletedBooks;
+
+		private SegmentState(final @Nonnull Segment segment, final @Nonnull BitSet deletedBooks) {
+			this.segment = segment;
+			this.deletedBooks = deletedBooks;
+		}
+
+		/**
+		 * @return The number of notes of books which are not deleted.
+		 */
+		private int getNumberOfLiveNotes() {
+			int result = 0;
+			for(int note = 0; note < segment.getNumberOfNotes(); ++note) {
+				if(!deletedBooks.get(segment.getNoteBook(note))) {
+					++result;
+				}
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * The location of a book in the index.
+	 */
+	private static final class Location {
+		/**
+		 * The segment containing the book or {@code null} if the book is
+		 *   not written yet.
+		 */
+		private SegmentState state;
+		private int book;
+
+		private final long length;
+		private final long modified;
+		private final int flags;
+
+		private Location(final SegmentState state, final int book, final long length, final long modified, final int flags) {
+			this.state = state;
+			this.book = book;
+			this.length = length;
+			this.modified = modified;
+			this.flags = flags;
+		}
+	}
+
+	/**
+	 * A matching note.
+	 */
+	private static final class Match {
+		private final Segment segment;
+		private final int note;
+		private final String path;
+		private final int page;
+
+		private Match(final @Nonnull Segment segment, final int note, final @Nonnull String path) {
+			this.segment = segment;
+			this.note = note;
+			this.path = path;
+			this.page = segment.getNotePage(note);
+		}
+	}
+
+	/**
+	 * The index directory.
+	 */
+	private final File directory;
+
+	/**
+	 * The lock held while the index is updated, {@code null} for searching.
+	 */
+	private RandomAccessFile lockFile = null;
+	private FileLock lock = null;
+
+	/**
+	 * The committed segments.
+	 */
+	private final List<SegmentState> segments = new ArrayList<SegmentState>();
+
+	/**
+	 * Number of the next segment file.
+	 */
+	private long nextSegment = 0;
+
+	/**
+	 * The books which are not deleted, by their normalized PDR path.
+	 */
+	private final Map<String, Location> books = new HashMap<String, Location>();
+
+	/**
+	 * Books added since the last segment was written.
+	 */
+	private SegmentWriter pending = null;
+	private final BitSet pendingDeleted = new BitSet();
+
+	/**
+	 * Set if there are changes to commit.
+	 */
+	private boolean changed = false;
+
+	/**
+	 * Opens the index in {@code directory}. An index opened for updates is
+	 *   locked until it is closed, its directory will be created if
+	 *   necessary.
+	 * 
+	 * @throws IOException If the index cannot be read or is locked.
+	 */
+	public NoteIndex(final @Nonnull File directory, final boolean update) throws IOException {
+		this.directory = directory;
+
+		if(update) {
+			if(!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create index directory " + directory);
+			}
+
+			lockFile = new RandomAccessFile(new File(directory, LOCK), "rw");
+			try {
+				lock = lockFile.getChannel().tryLock();
+			} catch(OverlappingFileLockException e) {
+				// the index is updated within this process
+				lock = null;
+			}
+
+			if(lock == null) {
+				lockFile.close();
+				throw new IOException("The index " + directory + " is updated by another process");
+			}
+
+			readCatalog();
+			return;
+		}
+
+		// a concurrent commit may delete segments of the catalog just read
+		for(int attempt = 1;; ++attempt) {
+			try {
+				readCatalog();
+				return;
+			} catch(FileNotFoundException e) {
+				if(attempt == READ_ATTEMPTS) {
+					throw e;
+				}
+
+				segments.clear();
+				books.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of books in the index.
+	 */
+	public @Nonnegative int getNumberOfBooks() {
+		return books.size();
+	}
+
+	/**
+	 * Checks whether the notes of {@code pdrFile} are indexed and the file
+	 *   did not change since.
+	 * 
+	 * @param markingText Whether the text under the markings is required.
+	 */
+	public boolean isUpToDate(final @Nonnull File pdrFile, final boolean markingText) {
+		final Location location = books.get(getKey(pdrFile));
+
+		return location != null
+				&& location.length == pdrFile.length()
+				&& location.modified == pdrFile.lastModified()
+				&& (!markingText || (location.flags & Segment.FLAG_MARKING_TEXT) != 0);
+	}
+
+	/**
+	 * Adds or replaces the notes of a book.
+	 */
+	public void add(final @Nonnull BookNotes notes) throws IOException {
+		remove(notes.getPdrFile());
+
+		if(pending == null) {
+			pending = new SegmentWriter();
+		}
+
+		final String[] markingTexts = notes.getMarkingTexts();
+		final int flags = markingTexts != null ? Segment.FLAG_MARKING_TEXT : 0;
+		final String key = getKey(notes.getPdrFile());
+		final int book = pending.addBook(key, notes.getLength(), notes.getModified(), flags);
+
+		for(final Comment comment : notes.getComments()) {
+			pending.addNote(book, Segment.COMMENT, comment.getPage(), comment.getText());
+		}
+
+		if(markingTexts != null) {
+			final List<Marking> markings = notes.getMarkings();
+			for(int index = 0; index < markings.size(); ++index) {
+				if(markingTexts[index].length() > 0) {
+					pending.addNote(book, Segment.MARKING, markings.get(index).getPage(), markingTexts[index]);
+				}
+			}
+		}
+
+		books.put(key, new Location(null, book, notes.getLength(), notes.getModified(), flags));
+		changed = true;
+
+		if(pending.getNumberOfNotes() >= MAX_PENDING_NOTES) {
+			flush();
+		}
+	}
+
+	/**
+	 * Removes the notes of {@code pdrFile}.
+	 * 
+	 * @return {@code false} if the book is not in the index.
+	 */
+	public boolean remove(final @Nonnull File pdrFile) {
+		final Location location = books.remove(getKey(pdrFile));
+		if(location == null) {
+			return false;
+		}
+
+		if(location.state == null) {
+			pendingDeleted.set(location.book);
+		} else {
+			location.state.deletedBooks.set(location.book);
+		}
+
+		changed = true;
+		return true;
+	}
+
+	/**
+	 * Removes all books whose PDR file does not exist anymore.
+	 * 
+	 * @return The number of removed books.
+	 */
+	public int removeMissingBooks() {
+		final List<String> missing = new ArrayList<String>();
+		for(final String key : books.keySet()) {
+			if(!new File(key).isFile()) {
+				missing.add(key);
+			}
+		}
+
+		for(final String key : missing) {
+			remove(new File(key));
+		}
+
+		return missing.size();
+	}
+
+	/**
+	 * Writes the added books, merges segments if necessary and makes the
+	 *   changes visible.
+	 */
+	public void commit() throws IOException {
+		assert lock != null;
+
+		if(!changed) {
+			return;
+		}
+
+		flush();
+		merge();
+		writeCatalog();
+		deleteUnusedFiles();
+
+		changed = false;
+	}
+
+	/**
+	 * Searches notes containing all terms of {@code query}. Terms ending
+	 *   with <code>*</code> match all terms starting with them.
+	 * 
+	 * @param limit The maximal number of returned hits.
+	 */
+	public @Nonnull SearchResult search(final @Nonnull String query, final @Nonnegative int limit) {
+		// parse the query, only the last term of a word may be a prefix
+		final List<byte[]> terms = new ArrayList<byte[]>();
+		final List<Boolean> prefixes = new ArrayList<Boolean>();
+		final List<String> words = new ArrayList<String>();
+
+		for(final String word : query.trim().split("\\s+")) {
+			words.clear();
+			Tokenizer.tokenize(word, words);
+
+			for(int index = 0; index < words.size(); ++index) {
+				terms.add(words.get(index).getBytes(UTF8));
+				prefixes.add(index == words.size() - 1 && word.endsWith("*"));
+			}
+		}
+
+		final List<Match> matches = new ArrayList<Match>();
+		if(!terms.isEmpty()) {
+			for(final SegmentState state : segments) {
+				findMatches(state, terms, prefixes, matches);
+			}
+		}
+
+		Collections.sort(matches, new Comparator<Match>() {
+			public int compare(final Match first, final Match second) {
+				final int result = first.path.compareTo(second.path);
+				return result != 0 ? result : first.page - second.page;
+			}
+		});
+
+		final List<SearchHit> hits = new ArrayList<SearchHit>();
+		for(final Match match : matches.subList(0, Math.min(limit, matches.size()))) {
+			final String path = match.path;
+			final String book = path.toLowerCase().endsWith(".pdr") ? path.substring(0, path.length() - 4) + ".pdf" : path;
+			final SearchHit.Type type = match.segment.getNoteType(match.note) == Segment.MARKING
+					? SearchHit.Type.MARKING : SearchHit.Type.COMMENT;
+
+			hits.add(new SearchHit(book, type, match.page, getSnippet(match.segment.getNoteText(match.note), terms)));
+		}
+
+		return new SearchResult(matches.size(), hits);
+	}
+
+	/**
+	 * Releases the lock of an index opened for updates. Changes which are
+	 *   not committed are lost.
+	 */
+	public void close() {
+		try {
+			if(lock != null) {
+				lock.release();
+			}
+
+			if(lockFile != null) {
+				lockFile.close();
+			}
+		} catch(IOException e) {
+			LOG.error("Cannot release the lock of index " + directory);
+		}
+
+		lock = null;
+		lockFile = null;
+	}
+
+	/**
+	 * @return The key of {@code pdrFile} in the index.
+	 */
+	private static @Nonnull String getKey(final @Nonnull File pdrFile) {
+		return pdrFile.getAbsoluteFile().toPath().normalize().toString();
+	}
+
+	/**
+	 * Adds the notes of {@code state} containing all terms to
+	 *   {@code matches}.
+	 */
+	private static void findMatches(final @Nonnull SegmentState state, final @Nonnull List<byte[]> terms,
+			final @Nonnull List<Boolean> prefixes, final @Nonnull List<Match> matches) {
+		final Segment segment = state.segment;
+
+		BitSet notes = null;
+		for(int index = 0; index < terms.size(); ++index) {
+			final BitSet found = segment.findNotes(terms.get(index), prefixes.get(index));
+
+			if(notes == null) {
+				notes = found;
+			} else {
+				notes.and(found);
+			}
+
+			if(notes.isEmpty()) {
+				return;
+			}
+		}
+
+		// decode the path of each book once
+		final String[] paths = new String[segment.getNumberOfBooks()];
+		for(int note = notes.nextSetBit(0); note >= 0; note = notes.nextSetBit(note + 1)) {
+			final int book = segment.getNoteBook(note);
+
+			if(!state.deletedBooks.get(book)) {
+				if(paths[book] == null) {
+					paths[book] = segment.getBookPath(book);
+				}
+
+				matches.add(new Match(segment, note, paths[book]));
+			}
+		}
+	}
+
+	/**
+	 * Returns the part of {@code text} around the first match of one of the
+	 *   {@code terms}.
+	 */
+	private static @Nonnull String getSnippet(final @Nonnull String text, final @Nonnull List<byte[]> terms) {
+		final String normalized = Tokenizer.normalize(text);
+
+		// lower case letters may have a different length
+		int position = normalized.length() == text.length() ? text.length() : 0;
+		for(final byte[] term : terms) {
+			final int found = normalized.indexOf(new String(term, UTF8));
+			if(found >= 0 && found < position) {
+				position = found;
+			}
+		}
+
+		final int start = position == text.length() || position < SNIPPET_CONTEXT ? 0 : position - SNIPPET_CONTEXT;
+		final int end = Math.min(text.length(), start + SNIPPET_LENGTH);
+
+		return (start > 0 ? "..." : "") + text.substring(start, end).trim().replaceAll("\\s+", " ")
+				+ (end < text.length() ? "..." : "");
+	}
+
+	/**
+	 * Reads the catalog and maps its segments.
+	 */
+	private void readCatalog() throws IOException {
+		final File catalogFile = new File(directory, CATALOG);
+		if(!catalogFile.isFile()) {
+			return;
+		}
+
+		final Properties catalog = new Properties();
+		final InputStream input = new FileInputStream(catalogFile);
+		try {
+			catalog.load(input);
+		} finally {
+			input.close();
+		}
+
+		if(!CATALOG_VERSION.equals(catalog.getProperty("version"))) {
+			throw new IOException("The index " + directory + " has an unsupported version");
+		}
+
+		try {
+			nextSegment = Long.parseLong(catalog.getProperty("next", "0"));
+
+			for(final String name : catalog.getProperty("segments", "").split(" ")) {
+				if(name.length() == 0) {
+					continue;
+				}
+
+				final BitSet deletedBooks = new BitSet();
+				for(final String book : catalog.getProperty(name + ".deleted", "").split(" ")) {
+					if(book.length() > 0) {
+						deletedBooks.set(Integer.parseInt(book));
+					}
+				}
+
+				segments.add(new SegmentState(new Segment(new File(directory, name)), deletedBooks));
+			}
+		} catch(NumberFormatException e) {
+			throw new IOException("The catalog of index " + directory + " is broken");
+		}
+
+		for(final SegmentState state : segments) {
+			final Segment segment = state.segment;
+
+			for(int book = 0; book < segment.getNumberOfBooks(); ++book) {
+				if(!state.deletedBooks.get(book)) {
+					books.put(segment.getBookPath(book), new Location(state, book, segment.getBookLength(book),
+							segment.getBookModified(book), segment.getBookFlags(book)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the catalog by the current state.
+	 */
+	private void writeCatalog() throws IOException {
+		final Properties catalog = new Properties();
+		catalog.setProperty("version", CATALOG_VERSION);
+		catalog.setProperty("next", Long.toString(nextSegment));
+
+		final StringBuilder names = new StringBuilder();
+		for(final SegmentState state : segments) {
+			final String name = state.segment.getName();
+			names.append(names.length() > 0 ? " " : "").append(name);
+
+			if(!state.deletedBooks.isEmpty()) {
+				final StringBuilder deleted = new StringBuilder();
+				for(int book = state.deletedBooks.nextSetBit(0); book >= 0; book = state.deletedBooks.nextSetBit(book + 1)) {
+					deleted.append(deleted.length() > 0 ? " " : "").append(book);
+				}
+
+				catalog.setProperty(name + ".deleted", deleted.toString());
+			}
+		}
+		catalog.setProperty("segments", names.toString());
+
+		final File temporary = new File(directory, CATALOG + TEMPORARY_SUFFIX);
+		final OutputStream output = new FileOutputStream(temporary);
+		try {
+			catalog.store(output, "Kindle annotator note index");
+		} finally {
+			output.close();
+		}
+
+		Files.move(temporary.toPath(), new File(directory, CATALOG).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes the pending books to a new segment.
+	 */
+	private void flush() throws IOException {
+		if(pending == null) {
+			return;
+		}
+
+		final SegmentState state = new SegmentState(write(pending), (BitSet) pendingDeleted.clone());
+		segments.add(state);
+
+		for(final Location location : books.values()) {
+			if(location.state == null) {
+				location.state = state;
+			}
+		}
+
+		pending = null;
+		pendingDeleted.clear();
+	}
+
+	/**
+	 * Merges the smallest segments while there are too many and rewrites
+	 *   segments whose books are deleted for the most part.
+	 */
+	private void merge() throws IOException {
+		final List<SegmentState> sparse = new ArrayList<SegmentState>();
+		for(final SegmentState state : segments) {
+			if(2 * state.deletedBooks.cardinality() > state.segment.getNumberOfBooks()) {
+				sparse.add(state);
+			}
+		}
+
+		if(!sparse.isEmpty()) {
+			merge(sparse);
+		}
+
+		while(segments.size() > MAX_SEGMENTS) {
+			final Map<SegmentState, Integer> sizes = new HashMap<SegmentState, Integer>();
+			for(final SegmentState state : segments) {
+				sizes.put(state, state.getNumberOfLiveNotes());
+			}
+
+			final List<SegmentState> smallest = new ArrayList<SegmentState>(segments);
+			Collections.sort(smallest, new Comparator<SegmentState>() {
+				public int compare(final SegmentState first, final SegmentState second) {
+					return sizes.get(first) - sizes.get(second);
+				}
+			});
+
+			merge(smallest.subList(0, MERGE_FACTOR));
+		}
+	}
+
+	/**
+	 * Replaces {@code sources} by a single segment without deleted books.
+	 */
+	private void merge(final @Nonnull List<SegmentState> sources) throws IOException {
+		final SegmentWriter writer = new SegmentWriter();
+		final Map<SegmentState, int[]> bookNumbers = new HashMap<SegmentState, int[]>();
+
+		for(final SegmentState source : sources) {
+			final Segment segment = source.segment;
+			final int[] newBooks = new int[segment.getNumberOfBooks()];
+
+			for(int book = 0; book < segment.getNumberOfBooks(); ++book) {
+				newBooks[book] = source.deletedBooks.get(book) ? -1 : writer.addBook(segment.getBookPath(book),
+						segment.getBookLength(book), segment.getBookModified(book), segment.getBookFlags(book));
+			}
+
+			for(int note = 0; note < segment.getNumberOfNotes(); ++note) {
+				final int book = newBooks[segment.getNoteBook(note)];
+				if(book >= 0) {
+					writer.addNote(book, segment.getNoteType(note), segment.getNotePage(note), segment.getNoteText(note));
+				}
+			}
+
+			bookNumbers.put(source, newBooks);
+		}
+
+		final SegmentState merged = new SegmentState(write(writer), new BitSet());
+
+		for(final Location location : books.values()) {
+			final int[] newBooks = bookNumbers.get(location.state);
+			if(newBooks != null) {
+				location.state = merged;
+				location.book = newBooks[location.book];
+			}
+		}
+
+		segments.removeAll(new ArrayList<SegmentState>(sources));
+		segments.add(merged);
+
+		LOG.info("Merged " + sources.size() + " segments of index " + directory + " into " + merged.segment.getName());
+	}
+
+	/**
+	 * Writes a new segment file and maps it.
+	 */
+	private @Nonnull Segment write(final @Nonnull SegmentWriter writer) throws IOException {
+		final String name = SEGMENT_PREFIX + (nextSegment++) + SEGMENT_SUFFIX;
+		final File temporary = new File(directory, name + TEMPORARY_SUFFIX);
+		final File file = new File(directory, name);
+
+		writer.write(temporary);
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		return new Segment(file);
+	}
+
+	/**
+	 * Deletes the segment files which are not part of the catalog anymore.
+	 */
+	private void deleteUnusedFiles() {
+		final Set<String> used = new HashSet<String>();
+		for(final SegmentState state : segments) {
+			used.add(state.segment.getName());
+		}
+
+		final File[] files = directory.listFiles();
+		if(files == null) {
+			return;
+		}
+
+		for(final File file : files) {
+			final String name = file.getName();
+
+			if(name.startsWith(SEGMENT_PREFIX) && !used.contains(name) && !file.delete()) {
+				// mapped files cannot be deleted on some systems, the next commit tries again
+				LOG.info("Cannot delete unused segment " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.index;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A note found by {@link NoteIndex#search(String, int)}.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class SearchHit {
+	/**
+	 * The kind of note.
+	 */
+	public static enum Type {
+		COMMENT, MARKING
+	}
+
+	private final String book;
+	private final Type type;
+	private final int page;
+	private final String snippet;
+
+	SearchHit(final @Nonnull String book, final @Nonnull Type type, final @Nonnegative int page, final @Nonnull String snippet) {
+		this.book = book;
+		this.type = type;
+		this.page = page;
+		this.snippet = snippet;
+	}
+
+	/**
+	 * @return The path of the PDF file.
+	 */
+	public @Nonnull String getBook() {
+		return book;
+	}
+
+	public @Nonnull Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return The zero-based page of the note.
+	 */
+	public @Nonnegative int getPage() {
+		return page;
+	}
+
+	/**
+	 * @return The part of the note text around the first match.
+	 */
+	public @Nonnull String getSnippet() {
+		return snippet;
+	}
+
+	@Override
+	public String toString() {
+		return book + ":" + (page + 1) + ":" + type.name().toLowerCase() + ": " + snippet;
+	}
+}
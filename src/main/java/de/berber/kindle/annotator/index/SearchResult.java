@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.index;
+
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * The result of {@link NoteIndex#search(String, int)}.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class SearchResult {
+	private final int numberOfMatches;
+	private final List<SearchHit> hits;
+
+	SearchResult(final @Nonnegative int numberOfMatches, final @Nonnull List<SearchHit> hits) {
+		this.numberOfMatches = numberOfMatches;
+		this.hits = hits;
+	}
+
+	/**
+	 * @return The number of matching notes, which may be more than the
+	 *   returned hits.
+	 */
+	public @Nonnegative int getNumberOfMatches() {
+		return numberOfMatches;
+	}
+
+	/**
+	 * @return The first matching notes, ordered by book and page.
+	 */
+	public @Nonnull List<SearchHit> getHits() {
+		return hits;
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable part of the index, mapped into memory. A segment contains
+ *   books, their notes and an inverted index from terms to notes.
+ * 
+ * All numbers are stored big-endian. The file starts with a header of ten
+ *   integers: magic number, version, number of books, number of notes,
+ *   number of terms and the offsets of the book, note, term, postings and
+ *   string sections. Books, notes and terms are fixed size records, which
+ *   refer to UTF-8 strings in the string section:
+ * <ul>
+ * <li>book: path offset, path length, flags, PDR length (long) and PDR
+ *   modification time (long)</li>
+ * <li>note: book, type, page, text offset, text length</li>
+ * <li>term: term offset, term length, first posting, number of postings</li>
+ * </ul>
+ * The terms are sorted by their encoded bytes, the postings of a term are
+ *   the ascending numbers of the notes containing it.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class Segment {
+	static final int MAGIC = 0x4B414958; // KAIX
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 10 * 4;
+	static final int BOOK_SIZE = 3 * 4 + 2 * 8;
+	static final int NOTE_FIELDS = 5;
+	static final int NOTE_SIZE = NOTE_FIELDS * 4;
+	static final int TERM_SIZE = 4 * 4;
+
+	/**
+	 * Note types.
+	 */
+	static final int COMMENT = 0;
+	static final int MARKING = 1;
+
+	/**
+	 * Book flag: the text under the markings is indexed.
+	 */
+	static final int FLAG_MARKING_TEXT = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Name of the segment file.
+	 */
+	private final String name;
+
+	/**
+	 * The mapped file.
+	 */
+	private final ByteBuffer data;
+
+	private final int numberOfBooks;
+	private final int numberOfNotes;
+	private final int numberOfTerms;
+	private final int booksStart;
+	private final int notesStart;
+	private final int termsStart;
+	private final int postingsStart;
+	private final int stringsStart;
+
+	/**
+	 * Maps {@code file} and checks its header.
+	 * 
+	 * @throws IOException If the file cannot be read or is no segment.
+	 */
+	Segment(final @Nonnull File file) throws IOException {
+		this.name = file.getName();
+
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			final MappedByteBuffer mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+			this.data = mapped;
+		} finally {
+			// the mapping stays valid
+			input.close();
+		}
+
+		if(data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+			throw new IOException(file + " is no index segment");
+		} else if(data.getInt(4) != VERSION) {
+			throw new IOException(file + " has the unsupported version " + data.getInt(4));
+		}
+
+		numberOfBooks = data.getInt(8);
+		numberOfNotes = data.getInt(12);
+		numberOfTerms = data.getInt(16);
+		booksStart = data.getInt(20);
+		notesStart = data.getInt(24);
+		termsStart = data.getInt(28);
+		postingsStart = data.getInt(32);
+		stringsStart = data.getInt(36);
+
+		if(numberOfBooks < 0 || numberOfNotes < 0 || numberOfTerms < 0
+				|| booksStart + (long) numberOfBooks * BOOK_SIZE > notesStart
+				|| notesStart + (long) numberOfNotes * NOTE_SIZE > termsStart
+				|| termsStart + (long) numberOfTerms * TERM_SIZE > postingsStart
+				|| postingsStart > stringsStart || stringsStart > data.capacity()) {
+			throw new IOException(file + " is broken");
+		}
+	}
+
+	/**
+	 * @return The file name of the segment.
+	 */
+	@Nonnull String getName() {
+		return name;
+	}
+
+	@Nonnegative int getNumberOfBooks() {
+		return numberOfBooks;
+	}
+
+	@Nonnull String getBookPath(final @Nonnegative int book) {
+		final int record = booksStart + book * BOOK_SIZE;
+		return getString(data.getInt(record), data.getInt(record + 4));
+	}
+
+	int getBookFlags(final @Nonnegative int book) {
+		return data.getInt(booksStart + book * BOOK_SIZE + 8);
+	}
+
+	long getBookLength(final @Nonnegative int book) {
+		return data.getLong(booksStart + book * BOOK_SIZE + 12);
+	}
+
+	long getBookModified(final @Nonnegative int book) {
+		return data.getLong(booksStart + book * BOOK_SIZE + 20);
+	}
+
+	@Nonnegative int getNumberOfNotes() {
+		return numberOfNotes;
+	}
+
+	@Nonnegative int getNoteBook(final @Nonnegative int note) {
+		return data.getInt(notesStart + note * NOTE_SIZE);
+	}
+
+	int getNoteType(final @Nonnegative int note) {
+		return data.getInt(notesStart + note * NOTE_SIZE + 4);
+	}
+
+	@Nonnegative int getNotePage(final @Nonnegative int note) {
+		return data.getInt(notesStart + note * NOTE_SIZE + 8);
+	}
+
+	@Nonnull String getNoteText(final @Nonnegative int note) {
+		final int record = notesStart + note * NOTE_SIZE;
+		return getString(data.getInt(record + 12), data.getInt(record + 16));
+	}
+
+	/**
+	 * Finds the notes containing {@code term} or, if {@code prefix} is set,
+	 *   a term starting with {@code term}.
+	 * 
+	 * @param term The encoded term.
+	 * @return The numbers of the matching notes.
+	 */
+	@Nonnull BitSet findNotes(final @Nonnull byte[] term, final boolean prefix) {
+		final BitSet result = new BitSet(numberOfNotes);
+
+		// first term not less than the searched one
+		int low = 0;
+		int high = numberOfTerms;
+		while(low < high) {
+			final int middle = (low + high) >>> 1;
+
+			if(compareTerm(term, middle) > 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		for(int index = low; index < numberOfTerms; ++index) {
+			final int record = termsStart + index * TERM_SIZE;
+			final int length = data.getInt(record + 4);
+
+			if(prefix ? length < term.length || compare(term, data, stringsStart + data.getInt(record), term.length) != 0
+					  : compareTerm(term, index) != 0) {
+				break;
+			}
+
+			final int first = postingsStart + 4 * data.getInt(record + 8);
+			final int count = data.getInt(record + 12);
+			for(int posting = 0; posting < count; ++posting) {
+				result.set(data.getInt(first + 4 * posting));
+			}
+
+			if(!prefix) {
+				break;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Compares {@code term} with the term number {@code index}.
+	 */
+	private int compareTerm(final @Nonnull byte[] term, final @Nonnegative int index) {
+		final int record = termsStart + index * TERM_SIZE;
+		return compare(term, data, stringsStart + data.getInt(record), data.getInt(record + 4));
+	}
+
+	/**
+	 * Decodes a string of the string section.
+	 */
+	private @Nonnull String getString(final int offset, final int length) {
+		final byte[] encoded = new byte[length];
+		final ByteBuffer view = data.duplicate();
+		view.position(stringsStart + offset);
+		view.get(encoded);
+
+		return new String(encoded, UTF8);
+	}
+
+	/**
+	 * Compares {@code term} byte-wise and unsigned with {@code length} bytes
+	 *   of {@code other} starting at {@code offset}.
+	 */
+	static int compare(final @Nonnull byte[] term, final @Nonnull byte[] other, final int offset, final int length) {
+		return compare(term, ByteBuffer.wrap(other), offset, length);
+	}
+
+	/**
+	 * Compares {@code term} byte-wise and unsigned with {@code length} bytes
+	 *   of {@code other} starting at {@code offset}.
+	 */
+	static int compare(final @Nonnull byte[] term, final @Nonnull ByteBuffer other, final int offset, final int length) {
+		final int common = Math.min(term.length, length);
+
+		for(int index = 0; index < common; ++index) {
+			final int difference = (term[index] & 0xFF) - (other.get(offset + index) & 0xFF);
+			if(difference != 0) {
+				return difference;
+			}
+		}
+
+		return term.length - length;
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Collects books and notes in memory and writes them as a new segment. The
+ *   layout of the file is described in {@link Segment}.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class SegmentWriter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Orders terms by their encoded bytes like the binary search of
+	 *   {@link Segment}.
+	 */
+	private static final Comparator<Term> BYTE_ORDER = new Comparator<Term>() {
+		public int compare(final Term first, final Term second) {
+			return Segment.compare(first.encoded, second.encoded, 0, second.encoded.length);
+		}
+	};
+
+	/**
+	 * Growable list of note numbers.
+	 */
+	private static final class Postings {
+		private int[] notes = new int[4];
+		private int size = 0;
+
+		private void add(final int note) {
+			if(size > 0 && notes[size - 1] == note) {
+				return;
+			}
+
+			if(size == notes.length) {
+				notes = Arrays.copyOf(notes, size * 2);
+			}
+
+			notes[size++] = note;
+		}
+	}
+
+	/**
+	 * An encoded term and its postings.
+	 */
+	private static final class Term {
+		private final byte[] encoded;
+		private final Postings postings;
+		private int offset = 0;
+
+		private Term(final @Nonnull byte[] encoded, final @Nonnull Postings postings) {
+			this.encoded = encoded;
+			this.postings = postings;
+		}
+	}
+
+	/**
+	 * The paths of the books.
+	 */
+	private final List<String> bookPaths = new ArrayList<String>();
+
+	/**
+	 * Three values per book: length, modification time and flags.
+	 */
+	private long[] bookRecords = new long[3 * 16];
+
+	/**
+	 * Five values per note: book, type, page, text offset and text length.
+	 */
+	private int[] noteRecords = new int[Segment.NOTE_FIELDS * 64];
+	private int numberOfNotes = 0;
+
+	/**
+	 * Encoded paths and note texts.
+	 */
+	private byte[] strings = new byte[4096];
+	private int stringsSize = 0;
+
+	/**
+	 * The postings of each term.
+	 */
+	private final Map<String, Postings> terms = new HashMap<String, Postings>();
+
+	/**
+	 * Reused per note to find its distinct terms.
+	 */
+	private final Set<String> noteTerms = new LinkedHashSet<String>();
+
+	/**
+	 * Adds a book.
+	 * 
+	 * @param path The normalized path of the PDR file.
+	 * @param length The length of the PDR file when it was read.
+	 * @param modified The modification time of the PDR file.
+	 * @param flags The {@link Segment} flags of the book.
+	 * 
+	 * @return The number of the book within the segment.
+	 */
+	@Nonnegative int addBook(final @Nonnull String path, final long length, final long modified, final int flags) {
+		final int book = bookPaths.size();
+		if(3 * (book + 1) > bookRecords.length) {
+			bookRecords = Arrays.copyOf(bookRecords, bookRecords.length * 2);
+		}
+
+		bookPaths.add(path);
+		bookRecords[3 * book] = length;
+		bookRecords[3 * book + 1] = modified;
+		bookRecords[3 * book + 2] = flags;
+
+		return book;
+	}
+
+	/**
+	 * Adds a note of {@code book} and indexes its text.
+	 * 
+	 * @param type {@link Segment#COMMENT} or {@link Segment#MARKING}.
+	 * @param page The zero-based page of the note.
+	 */
+	void addNote(final @Nonnegative int book, final int type, final @Nonnegative int page, final @Nonnull String text) {
+		final int note = numberOfNotes++;
+		if(Segment.NOTE_FIELDS * numberOfNotes > noteRecords.length) {
+			noteRecords = Arrays.copyOf(noteRecords, noteRecords.length * 2);
+		}
+
+		final byte[] encoded = text.getBytes(UTF8);
+		final int offset = Segment.NOTE_FIELDS * note;
+		noteRecords[offset] = book;
+		noteRecords[offset + 1] = type;
+		noteRecords[offset + 2] = page;
+		noteRecords[offset + 3] = appendString(encoded);
+		noteRecords[offset + 4] = encoded.length;
+
+		noteTerms.clear();
+		Tokenizer.tokenize(text, noteTerms);
+		for(final String term : noteTerms) {
+			Postings postings = terms.get(term);
+			if(postings == null) {
+				postings = new Postings();
+				terms.put(term, postings);
+			}
+
+			postings.add(note);
+		}
+	}
+
+	/**
+	 * @return The number of notes added so far.
+	 */
+	@Nonnegative int getNumberOfNotes() {
+		return numberOfNotes;
+	}
+
+	/**
+	 * @return The number of books added so far.
+	 */
+	@Nonnegative int getNumberOfBooks() {
+		return bookPaths.size();
+	}
+
+	/**
+	 * Writes the segment to {@code file}. The writer cannot be used
+	 *   afterwards.
+	 */
+	void write(final @Nonnull File file) throws IOException {
+		// book paths follow the note texts in the string section
+		final int[] pathOffsets = new int[bookPaths.size()];
+		final int[] pathLengths = new int[bookPaths.size()];
+		for(int book = 0; book < bookPaths.size(); ++book) {
+			final byte[] encoded = bookPaths.get(book).getBytes(UTF8);
+			pathOffsets[book] = appendString(encoded);
+			pathLengths[book] = encoded.length;
+		}
+
+		// terms are sorted for the binary search
+		final Term[] sortedTerms = new Term[terms.size()];
+		int termIndex = 0;
+		for(final Map.Entry<String, Postings> entry : terms.entrySet()) {
+			sortedTerms[termIndex++] = new Term(entry.getKey().getBytes(UTF8), entry.getValue());
+		}
+		Arrays.sort(sortedTerms, BYTE_ORDER);
+
+		int numberOfPostings = 0;
+		for(final Term term : sortedTerms) {
+			term.offset = appendString(term.encoded);
+			numberOfPostings += term.postings.size;
+		}
+
+		final int booksStart = Segment.HEADER_SIZE;
+		final int notesStart = booksStart + bookPaths.size() * Segment.BOOK_SIZE;
+		final int termsStart = notesStart + numberOfNotes * Segment.NOTE_SIZE;
+		final int postingsStart = termsStart + sortedTerms.length * Segment.TERM_SIZE;
+		final int stringsStart = postingsStart + numberOfPostings * 4;
+
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			out.writeInt(Segment.MAGIC);
+			out.writeInt(Segment.VERSION);
+			out.writeInt(bookPaths.size());
+			out.writeInt(numberOfNotes);
+			out.writeInt(sortedTerms.length);
+			out.writeInt(booksStart);
+			out.writeInt(notesStart);
+			out.writeInt(termsStart);
+			out.writeInt(postingsStart);
+			out.writeInt(stringsStart);
+
+			for(int book = 0; book < bookPaths.size(); ++book) {
+				out.writeInt(pathOffsets[book]);
+				out.writeInt(pathLengths[book]);
+				out.writeInt((int) bookRecords[3 * book + 2]);
+				out.writeLong(bookRecords[3 * book]);
+				out.writeLong(bookRecords[3 * book + 1]);
+			}
+
+			for(int index = 0; index < Segment.NOTE_FIELDS * numberOfNotes; ++index) {
+				out.writeInt(noteRecords[index]);
+			}
+
+			int postingsOffset = 0;
+			for(final Term term : sortedTerms) {
+				out.writeInt(term.offset);
+				out.writeInt(term.encoded.length);
+				out.writeInt(postingsOffset);
+				out.writeInt(term.postings.size);
+				postingsOffset += term.postings.size;
+			}
+
+			for(final Term term : sortedTerms) {
+				for(int index = 0; index < term.postings.size; ++index) {
+					out.writeInt(term.postings.notes[index]);
+				}
+			}
+
+			out.write(strings, 0, stringsSize);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Appends {@code encoded} to the string section.
+	 * 
+	 * @return The offset within the string section.
+	 */
+	private int appendString(final @Nonnull byte[] encoded) {
+		if(stringsSize + encoded.length > strings.length) {
+			strings = Arrays.copyOf(strings, Math.max(strings.length * 2, stringsSize + encoded.length));
+		}
+
+		System.arraycopy(encoded, 0, strings, stringsSize, encoded.length);
+		stringsSize += encoded.length;
+
+		return stringsSize - encoded.length;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.index;
+
+import java.util.Collection;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Splits text into the terms of the index. Terms are maximal sequences of
+ *   letters and digits in lower case.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class Tokenizer {
+	/**
+	 * Longer terms are cut to this number of characters.
+	 */
+	static final int MAX_TERM_LENGTH = 64;
+
+	private Tokenizer() {
+	}
+
+	/**
+	 * Adds the terms of {@code text} to {@code terms} in their order.
+	 */
+	static void tokenize(final @Nonnull String text, final @Nonnull Collection<String> terms) {
+		final StringBuilder term = new StringBuilder();
+
+		for(int index = 0; index < text.length();) {
+			final int codePoint = text.codePointAt(index);
+			index += Character.charCount(codePoint);
+
+			if(Character.isLetterOrDigit(codePoint)) {
+				if(term.length() < MAX_TERM_LENGTH) {
+					term.appendCodePoint(Character.toLowerCase(codePoint));
+				}
+			} else if(term.length() > 0) {
+				terms.add(term.toString());
+				term.setLength(0);
+			}
+		}
+
+		if(term.length() > 0) {
+			terms.add(term.toString());
+		}
+	}
+
+	/**
+	 * Normalizes text for the comparison with terms.
+	 */
+	static @Nonnull String normalize(final @Nonnull String text) {
+		return text.toLowerCase(Locale.ROOT);
+	}
+}
@@ -16,18 +16,16 @@
 package de.berber.kindle.annotator.lib;
 
 import java.io.IOException;
-import java.util.List;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.log4j.Logger;
 import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.graphics.color.PDGamma;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
-import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
 
 /**
  * Parent of all annotations. An annotation belongs to a particular page and can
@@ -54,24 +52,18 @@ public abstract class Annotation {
 	}
 
 	/**
-	 * The default color of all annotations
+	 * The style shared by all annotations of this kind.
 	 */
-	protected String color = "#0000FF";
+	protected final AnnotationStyle style;
 
 	/**
-	 * The default opacity of all annotations.
+	 * Creates a new annotation with a shared {@code style} and a {@code page}
+	 * number.
 	 */
-	protected float opacity = 0.2f;
-
-	/**
-	 * Creates a new annotation with a {@code configuration}, a {@code prefix}
-	 * for configuration lookups and a {@code page} number.
-	 */
-	protected Annotation(final @Nonnull CompositeConfiguration configuration,
-			final @Nonnull String prefix, final @Nonnegative int page) {
+	protected Annotation(final @Nonnull AnnotationStyle style,
+			final @Nonnegative int page) {
 		this.page = page;
-		color = configuration.getString(prefix + ".color", color);
-		opacity = configuration.getFloat(prefix + ".opacity", opacity);
+		this.style = style;
 	}
 
 	/**
@@ -80,27 +72,23 @@ public abstract class Annotation {
 	 * 
 	 * @param currentPageNumber
 	 *            The page number of {@code page}.
-	 * @param documentOutline
-	 *            The pdf outline
+	 * @param context
+	 *            The context of the annotated document.
 	 * @param page
 	 *            The pdf page.
 	 */
-	@SuppressWarnings("unchecked")
 	public void toPDAnnotation(final @Nonnegative int currentPageNumber,
-			final @Nonnull PDDocumentOutline documentOutline,
+			final @Nonnull AnnotationContext context,
 			final @Nonnull PDPage page) {
 		if (this.page != currentPageNumber) {
 			return;
 		}
 
 		try {
-			final List<PDAnnotation> annotations = ((List<PDAnnotation>) page
-					.getAnnotations());
-			final PDAnnotation annotation = toPDAnnotation(documentOutline,
-					page);
+			final PDAnnotation annotation = toPDAnnotation(context, page);
 
 			if (annotation != null) {
-				annotations.add(annotation);
+				context.getAnnotations(page).add(annotation);
 			}
 		} catch (IOException e) {
 			LOG.error("Cannot read annotations from PDF.");
@@ -110,16 +98,27 @@ public abstract class Annotation {
 	/**
 	 * Create a {@link PDAnnotation} for the current annotation.
 	 * 
-	 * @param documentOutline
-	 *            The document outline (needed for bookmarks).
+	 * @param context
+	 *            The context of the annotated document.
 	 * @param page
 	 *            The current PDF page.
 	 * @return A new annotation or {@code null}.
 	 */
 	protected abstract @Nullable PDAnnotation toPDAnnotation(
-			final @Nonnull PDDocumentOutline documentOutline,
+			final @Nonnull AnnotationContext context,
 			final @Nonnull PDPage page);
 
+	/**
+	 * Writes the annotation to an XFDF file.
+	 * 
+	 * @param writer
+	 *            The XFDF file of the annotated document.
+	 * @param trimBox
+	 *            The trim box of the annotated page.
+	 */
+	abstract void toXFDF(final @Nonnull XfdfWriter writer,
+			final @Nonnull PDRectangle trimBox) throws IOException;
+
 	/**
 	 * Checks whether a multiplier is in the allowed page range.
 	 */
@@ -130,18 +129,11 @@ public abstract class Annotation {
 	}
 
 	/**
-	 * Converts the color string into a PDGamma object.
+	 * Returns the color as PDGamma object.
 	 * 
-	 * @return
+	 * @return The color shared by all annotations of this style.
 	 */
-	protected final PDGamma getColor() {
-		assert color.length() == 7 && color.startsWith("#");
-		final PDGamma color = new PDGamma();
-
-		color.setR(Integer.parseInt(this.color.substring(1, 3), 16) / 255f);
-		color.setG(Integer.parseInt(this.color.substring(3, 5), 16) / 255f);
-		color.setB(Integer.parseInt(this.color.substring(5, 7), 16) / 255f);
-
-		return color;
+	protected final PDGamma getColor(final @Nonnull AnnotationContext context) {
+		return context.getColor(style);
 	}
 }
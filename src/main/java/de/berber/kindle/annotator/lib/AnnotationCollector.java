@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+
+/**
+ * A {@link PdrVisitor} that collects all records into a list of
+ *   {@link Annotation} objects. Comments at the end of a marking will be
+ *   merged into the marking.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class AnnotationCollector implements PdrVisitor {
+	/**
+	 * The annotator settings.
+	 */
+	private final Settings settings;
+
+	/**
+	 * Bookmarks and markings in file order.
+	 */
+	private List<Annotation> annotations = new ArrayList<Annotation>();
+
+	/**
+	 * Comments in file order.
+	 */
+	private List<Comment> comments = new ArrayList<Comment>();
+
+	/**
+	 * The merged result.
+	 */
+	private List<Annotation> result = null;
+
+	/**
+	 * Creates a new collector, annotations will be configured using
+	 *   {@code settings}.
+	 */
+	public AnnotationCollector(final @Nonnull Settings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * @return All collected annotations. Bookmarks first, followed by the
+	 *   markings and the comments that could not be merged into a marking.
+	 */
+	public @Nonnull List<Annotation> getAnnotations() {
+		assert result != null : "Reading has not finished yet";
+
+		return result;
+	}
+
+	public void onHeader(final int lastOpenedPage) {
+		// nothing to do
+	}
+
+	public void onBookmarkCount(final @Nonnegative int numberOfBookmarks) {
+		ensureCapacity(numberOfBookmarks);
+	}
+
+	public void onBookmark(final @Nonnegative int page) {
+		annotations.add(new Bookmark(settings, page));
+	}
+
+	public void onMarkingCount(final @Nonnegative int numberOfMarkings) {
+		ensureCapacity(numberOfMarkings);
+	}
+
+	public void onMarking(final @Nonnegative int page1, final double x1, final double y1,
+			              final @Nonnegative int page2, final double x2, final double y2) {
+		annotations.add(new Marking(settings, page1, x1, y1, page2, x2, y2));
+	}
+
+	public void onCommentCount(final @Nonnegative int numberOfComments) {
+		comments = new ArrayList<Comment>(Math.max(0, numberOfComments));
+	}
+
+	public void onComment(final @Nonnegative int page, final double x, final double y,
+			              final @Nonnull String text) {
+		comments.add(new Comment(settings, page, x, y, text));
+	}
+
+	public void onEnd() {
+		mergeAnnotations();
+
+		result = annotations;
+		annotations = null;
+		comments = null;
+	}
+
+	/**
+	 * Grows the annotation list by {@code additionalElements}.
+	 */
+	private void ensureCapacity(final @Nonnegative int additionalElements) {
+		((ArrayList<Annotation>) annotations).ensureCapacity(annotations.size() + additionalElements);
+	}
+
+	/**
+	 * Merge comments and markings at the same position. Comments that do not
+	 *   belong to a marking will be appended to the list of annotations.
+	 */
+	private void mergeAnnotations() {
+		final int numberOfComments = comments.size();
+		final int[] commentPages = new int[numberOfComments];
+		final double[] commentX = new double[numberOfComments];
+		final double[] commentY = new double[numberOfComments];
+
+		for (int index = 0; index < numberOfComments; ++index) {
+			final Comment comment = comments.get(index);
+			commentPages[index] = comment.getPage();
+			commentX[index] = comment.getXPositionFactor();
+			commentY[index] = comment.getYPositionFactor();
+		}
+
+		final List<Marking> markings = new ArrayList<Marking>();
+		for (final Annotation annotation : annotations) {
+			if (annotation instanceof Marking) {
+				markings.add((Marking) annotation);
+			}
+		}
+
+		final int numberOfMarkings = markings.size();
+		final int[] markingPages = new int[numberOfMarkings];
+		final double[] markingX = new double[numberOfMarkings];
+		final double[] markingY = new double[numberOfMarkings];
+
+		for (int index = 0; index < numberOfMarkings; ++index) {
+			final Marking marking = markings.get(index);
+			markingPages[index] = marking.getPage();
+			markingX[index] = marking.getRightXPositionFactor();
+			markingY[index] = marking.getUpperYPositionFactor();
+		}
+
+		// match markings with the collected comments
+		final CommentMatcher matcher = new CommentMatcher(numberOfComments,
+				commentPages, commentX, commentY,
+				settings.getCommentMergeTolerance());
+		final int[] matches = matcher.match(numberOfMarkings, markingPages, markingX, markingY);
+
+		for (int index = 0; index < numberOfMarkings; ++index) {
+			if (matches[index] != CommentMatcher.NO_MATCH) {
+				markings.get(index).addComment(comments.get(matches[index])); // merge them
+			}
+		}
+
+		// keep all comments without a marking
+		for (int index = 0; index < numberOfComments; ++index) {
+			if (!matcher.isMatched(index)) {
+				annotations.add(comments.get(index));
+			}
+		}
+	}
+}
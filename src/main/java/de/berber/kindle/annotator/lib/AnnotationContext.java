@@ -0,0 +1,222 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.color.PDGamma;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+
+/**
+ * Everything annotations need to know about the document they are added to.
+ *   The context resolves pages, looks up the "Bookmarks" outline entry once
+ *   and caches the trim box and the annotation list of the current page as
+ *   well as the colors of all annotations. Adding n annotations therefore
+ *   takes time linear in n.
+ *   
+ * If the document is saved incrementally, all objects handed out by the
+ *   context are tracked for changes.
+ * 
+ * @author Bernhard J. Berger
+ */
+public final class AnnotationContext {
+	/**
+	 * Title of the outline entry that contains all bookmarks.
+	 */
+	static final String BOOKMARKS_TITLE = "Bookmarks";
+
+	/**
+	 * Catalog of the annotated document.
+	 */
+	private final PDDocumentCatalog catalog;
+
+	/**
+	 * Pages of the annotated document.
+	 */
+	private final PageTree pageTree;
+
+	/**
+	 * Change tracking or {@code null} if the document is saved completely.
+	 */
+	private final IncrementalUpdate update;
+
+	/**
+	 * The outline entry containing the bookmarks, created on first use.
+	 */
+	private PDOutlineItem bookmarks = null;
+
+	/**
+	 * Colors of this document by their style.
+	 */
+	private final Map<AnnotationStyle, PDGamma> colors = new IdentityHashMap<AnnotationStyle, PDGamma>();
+
+	/**
+	 * The page cached data belongs to.
+	 */
+	private COSDictionary currentPage = null;
+
+	/**
+	 * Trim box of {@link #currentPage}.
+	 */
+	private PDRectangle currentTrimBox = null;
+
+	/**
+	 * Annotations of {@link #currentPage}.
+	 */
+	private List<PDAnnotation> currentAnnotations = null;
+
+	/**
+	 * Creates a context for {@code document}.
+	 * 
+	 * @param update Change tracking for an incremental save or {@code null}.
+	 */
+	AnnotationContext(final @Nonnull PDDocument document, final @Nullable IncrementalUpdate update) {
+		this.catalog = document.getDocumentCatalog();
+		this.pageTree = new PageTree(document);
+		this.update = update;
+		
+		if(update != null) {
+			update.track(catalog.getCOSDictionary());
+			update.trackTree(catalog.getCOSDictionary().getItem(COSName.OUTLINES));
+		}
+	}
+
+	/**
+	 * @return The number of pages in the document.
+	 */
+	public @Nonnegative int getNumberOfPages() {
+		return pageTree.getNumberOfPages();
+	}
+
+	/**
+	 * Looks up the page with the zero-based index {@code pageNumber} and
+	 *   prepares it for annotation.
+	 * 
+	 * @return The page or {@code null} if there is no such page.
+	 */
+	public @Nullable PDPage getPage(final @Nonnegative int pageNumber) {
+		final PDPage page = pageTree.getPage(pageNumber);
+		
+		if(page != null && update != null) {
+			update.track(page.getCOSDictionary());
+			update.track(page.getCOSDictionary().getItem(COSName.ANNOTS));
+		}
+		
+		return page;
+	}
+
+	/**
+	 * Returns the outline entry all bookmarks are added to. The entry and the
+	 *   document outline are created if they do not exist.
+	 */
+	public @Nonnull PDOutlineItem getBookmarks() {
+		if(bookmarks != null) {
+			return bookmarks;
+		}
+		
+		PDDocumentOutline documentOutline = catalog.getDocumentOutline();
+		if(documentOutline == null) {
+			// if there is no document outline we have to create a new one.
+			documentOutline = new PDDocumentOutline();
+			catalog.setDocumentOutline(documentOutline);
+		}
+		
+		// search for an outline entry called Bookmarks
+		bookmarks = documentOutline.getFirstChild();
+		while(bookmarks != null && !BOOKMARKS_TITLE.equals(bookmarks.getTitle())) {
+			bookmarks = bookmarks.getNextSibling();
+		}
+		
+		// if we did not found an entry we have to add a new one
+		if(bookmarks == null) {
+			bookmarks = new PDOutlineItem();
+			bookmarks.setTitle(BOOKMARKS_TITLE);
+			documentOutline.appendChild(bookmarks);
+		}
+		
+		return bookmarks;
+	}
+
+	/**
+	 * Returns the trim box of {@code page}. Resolving inherited attributes is
+	 *   done once per page.
+	 */
+	public @Nonnull PDRectangle getTrimBox(final @Nonnull PDPage page) {
+		selectPage(page);
+		
+		if(currentTrimBox == null) {
+			currentTrimBox = page.getTrimBox();
+		}
+		
+		return currentTrimBox;
+	}
+
+	/**
+	 * Returns the modifiable list of annotations of {@code page}. The list is
+	 *   built once per page.
+	 */
+	@SuppressWarnings("unchecked")
+	public @Nonnull List<PDAnnotation> getAnnotations(final @Nonnull PDPage page) throws IOException {
+		selectPage(page);
+		
+		if(currentAnnotations == null) {
+			currentAnnotations = (List<PDAnnotation>) page.getAnnotations();
+		}
+		
+		return currentAnnotations;
+	}
+
+	/**
+	 * Returns the color of {@code style} as {@link PDGamma} object. All
+	 *   annotations of a style share the object within the document.
+	 */
+	public @Nonnull PDGamma getColor(final @Nonnull AnnotationStyle style) {
+		PDGamma result = colors.get(style);
+		
+		if(result == null) {
+			result = style.createPDGamma();
+			colors.put(style, result);
+		}
+		
+		return result;
+	}
+
+	/**
+	 * Drops the cached data if {@code page} is not the current page.
+	 */
+	private void selectPage(final @Nonnull PDPage page) {
+		if(page.getCOSDictionary() != currentPage) {
+			currentPage = page.getCOSDictionary();
+			currentTrimBox = null;
+			currentAnnotations = null;
+		}
+	}
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+
+/**
+ * A compact store for all records of a PDR file. Instead of one object per
+ *   record the store keeps one primitive array per attribute, sized by the
+ *   record counts of the PDR file. All comment texts share a single UTF-8
+ *   encoded byte array. {@link Annotation} objects are created on demand.
+ *   
+ * Comments at the end of a marking will be merged into the marking, as done
+ *   by the {@link AnnotationCollector}.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class AnnotationStore implements PdrVisitor {
+	/**
+	 * Encoding of the comment texts.
+	 */
+	private static final Charset TEXT_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Marker for markings without a comment.
+	 */
+	public static final int NO_COMMENT = CommentMatcher.NO_MATCH;
+
+	/**
+	 * Upper bound of the capacity allocated for announced records. Larger
+	 *   stores grow while the records are added.
+	 */
+	private static final int MAX_INITIAL_CAPACITY = 64 * 1024;
+
+	/**
+	 * Bytes reserved per comment text.
+	 */
+	private static final int INITIAL_TEXT_SIZE = 64;
+
+	/**
+	 * The annotator settings.
+	 */
+	private final Settings settings;
+
+	/**
+	 * Encoder for the comment texts.
+	 */
+	private final CharsetEncoder encoder = TEXT_CHARSET.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private int numberOfBookmarks = 0;
+	private int[] bookmarkPages = new int[0];
+
+	private int numberOfMarkings = 0;
+	private int[] markingStartPages = new int[0];
+	private int[] markingEndPages = new int[0];
+	private double[] markingX1 = new double[0];
+	private double[] markingY1 = new double[0];
+	private double[] markingX2 = new double[0];
+	private double[] markingY2 = new double[0];
+
+	/**
+	 * Index of the comment merged into the marking or {@link #NO_COMMENT}.
+	 */
+	private int[] markingComments = new int[0];
+
+	private int numberOfComments = 0;
+	private int[] commentPages = new int[0];
+	private double[] commentX = new double[0];
+	private double[] commentY = new double[0];
+
+	/**
+	 * Comment {@code i} is stored in the text blob between
+	 *   {@code commentTextOffsets[i]} and {@code commentTextOffsets[i + 1]}.
+	 */
+	private int[] commentTextOffsets = new int[] { 0 };
+
+	/**
+	 * Marks comments that have been merged into a marking.
+	 */
+	private boolean[] commentMerged = new boolean[0];
+
+	/**
+	 * UTF-8 encoded texts of all comments.
+	 */
+	private ByteBuffer textBlob = ByteBuffer.allocate(0);
+
+	/**
+	 * Creates a new empty store. Annotation views will be configured using
+	 *   {@code settings}.
+	 */
+	public AnnotationStore(final @Nonnull Settings settings) {
+		this.settings = settings;
+	}
+
+	public void onHeader(final int lastOpenedPage) {
+		// nothing to do
+	}
+
+	public void onBookmarkCount(final @Nonnegative int numberOfBookmarks) {
+		bookmarkPages = new int[getInitialCapacity(numberOfBookmarks)];
+	}
+
+	public void onBookmark(final @Nonnegative int page) {
+		if (numberOfBookmarks == bookmarkPages.length) {
+			bookmarkPages = Arrays.copyOf(bookmarkPages, grow(numberOfBookmarks));
+		}
+
+		bookmarkPages[numberOfBookmarks++] = page;
+	}
+
+	public void onMarkingCount(final @Nonnegative int numberOfMarkings) {
+		final int capacity = getInitialCapacity(numberOfMarkings);
+		markingStartPages = new int[capacity];
+		markingEndPages = new int[capacity];
+		markingX1 = new double[capacity];
+		markingY1 = new double[capacity];
+		markingX2 = new double[capacity];
+		markingY2 = new double[capacity];
+		markingComments = new int[capacity];
+	}
+
+	public void onMarking(final @Nonnegative int page1, final double x1, final double y1,
+			              final @Nonnegative int page2, final double x2, final double y2) {
+		if (numberOfMarkings == markingStartPages.length) {
+			final int capacity = grow(numberOfMarkings);
+			markingStartPages = Arrays.copyOf(markingStartPages, capacity);
+			markingEndPages = Arrays.copyOf(markingEndPages, capacity);
+			markingX1 = Arrays.copyOf(markingX1, capacity);
+			markingY1 = Arrays.copyOf(markingY1, capacity);
+			markingX2 = Arrays.copyOf(markingX2, capacity);
+			markingY2 = Arrays.copyOf(markingY2, capacity);
+			markingComments = Arrays.copyOf(markingComments, capacity);
+		}
+
+		final int index = numberOfMarkings++;
+		markingStartPages[index] = page1;
+		markingEndPages[index] = page2;
+		markingX1[index] = x1;
+		markingY1[index] = y1;
+		markingX2[index] = x2;
+		markingY2[index] = y2;
+		markingComments[index] = NO_COMMENT;
+	}
+
+	public void onCommentCount(final @Nonnegative int numberOfComments) {
+		final int capacity = getInitialCapacity(numberOfComments);
+		commentPages = new int[capacity];
+		commentX = new double[capacity];
+		commentY = new double[capacity];
+		commentTextOffsets = new int[capacity + 1];
+		commentMerged = new boolean[capacity];
+		// assume short notes, the blob grows if necessary
+		textBlob = ByteBuffer.allocate(INITIAL_TEXT_SIZE * capacity);
+	}
+
+	public void onComment(final @Nonnegative int page, final double x, final double y,
+			              final @Nonnull String text) {
+		if (numberOfComments == commentPages.length) {
+			final int capacity = grow(numberOfComments);
+			commentPages = Arrays.copyOf(commentPages, capacity);
+			commentX = Arrays.copyOf(commentX, capacity);
+			commentY = Arrays.copyOf(commentY, capacity);
+			commentTextOffsets = Arrays.copyOf(commentTextOffsets, capacity + 1);
+			commentMerged = Arrays.copyOf(commentMerged, capacity);
+		}
+
+		final int index = numberOfComments++;
+		commentPages[index] = page;
+		commentX[index] = x;
+		commentY[index] = y;
+
+		appendText(text);
+		commentTextOffsets[index + 1] = textBlob.position();
+	}
+
+	public void onEnd() {
+		mergeAnnotations();
+	}
+
+	/**
+	 * @return {@code true} if the store does not contain any record.
+	 */
+	public boolean isEmpty() {
+		return numberOfBookmarks == 0 && numberOfMarkings == 0 && numberOfComments == 0;
+	}
+
+	public @Nonnegative int getNumberOfBookmarks() {
+		return numberOfBookmarks;
+	}
+
+	public @Nonnegative int getBookmarkPage(final @Nonnegative int index) {
+		assert index < numberOfBookmarks;
+		return bookmarkPages[index];
+	}
+
+	public @Nonnegative int getNumberOfMarkings() {
+		return numberOfMarkings;
+	}
+
+	public @Nonnegative int getMarkingPage(final @Nonnegative int index) {
+		assert index < numberOfMarkings;
+		return markingStartPages[index];
+	}
+
+	/**
+	 * @return The index of the comment merged into marking {@code index} or
+	 *   {@link #NO_COMMENT}.
+	 */
+	public int getMarkingComment(final @Nonnegative int index) {
+		assert index < numberOfMarkings;
+		return markingComments[index];
+	}
+
+	public @Nonnegative int getNumberOfComments() {
+		return numberOfComments;
+	}
+
+	public @Nonnegative int getCommentPage(final @Nonnegative int index) {
+		assert index < numberOfComments;
+		return commentPages[index];
+	}
+
+	/**
+	 * @return {@code true} if the comment has been merged into a marking.
+	 */
+	public boolean isCommentMerged(final @Nonnegative int index) {
+		assert index < numberOfComments;
+		return commentMerged[index];
+	}
+
+	/**
+	 * Decodes the text of comment {@code index}.
+	 */
+	public @Nonnull String getCommentText(final @Nonnegative int index) {
+		assert index < numberOfComments;
+		final int offset = commentTextOffsets[index];
+
+		return new String(textBlob.array(), offset, commentTextOffsets[index + 1] - offset, TEXT_CHARSET);
+	}
+
+	/**
+	 * Creates an annotation object for bookmark {@code index}.
+	 */
+	public @Nonnull Bookmark getBookmark(final @Nonnegative int index) {
+		return new Bookmark(settings, getBookmarkPage(index));
+	}
+
+	/**
+	 * Creates an annotation object for marking {@code index}, including the
+	 *   merged comment.
+	 */
+	public @Nonnull Marking getMarking(final @Nonnegative int index) {
+		assert index < numberOfMarkings;
+		final Marking marking = new Marking(settings,
+				markingStartPages[index],
+				markingX1[index], markingY1[index],
+				markingEndPages[index],
+				markingX2[index], markingY2[index]);
+
+		if (markingComments[index] != NO_COMMENT) {
+			marking.addComment(getComment(markingComments[index]));
+		}
+
+		return marking;
+	}
+
+	/**
+	 * Creates an annotation object for comment {@code index}.
+	 */
+	public @Nonnull Comment getComment(final @Nonnegative int index) {
+		assert index < numberOfComments;
+		return new Comment(settings, commentPages[index],
+				commentX[index], commentY[index],
+				getCommentText(index));
+	}
+
+	/**
+	 * Creates annotation objects for all records. Bookmarks first, followed by
+	 *   the markings and the comments that have not been merged into a
+	 *   marking.
+	 */
+	public @Nonnull List<Annotation> toAnnotations() {
+		final List<Annotation> result = new ArrayList<Annotation>(numberOfBookmarks + numberOfMarkings + numberOfComments);
+
+		for (int index = 0; index < numberOfBookmarks; ++index) {
+			result.add(getBookmark(index));
+		}
+
+		for (int index = 0; index < numberOfMarkings; ++index) {
+			result.add(getMarking(index));
+		}
+
+		for (int index = 0; index < numberOfComments; ++index) {
+			if (!commentMerged[index]) {
+				result.add(getComment(index));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Computes the capacity allocated for {@code count} announced records.
+	 *   The count is not trusted, it comes from the file.
+	 */
+	private static int getInitialCapacity(final int count) {
+		return Math.max(0, Math.min(count, MAX_INITIAL_CAPACITY));
+	}
+
+	/**
+	 * Computes a new capacity for an array holding {@code size} elements.
+	 */
+	private static int grow(final @Nonnegative int size) {
+		return Math.max(16, size + (size >> 1));
+	}
+
+	/**
+	 * Appends the UTF-8 representation of {@code text} to the text blob.
+	 */
+	private void appendText(final @Nonnull String text) {
+		final CharBuffer input = CharBuffer.wrap(text);
+
+		encoder.reset();
+		while (true) {
+			CoderResult result = encoder.encode(input, textBlob, true);
+			if (result.isUnderflow()) {
+				result = encoder.flush(textBlob);
+			}
+
+			if (result.isUnderflow()) {
+				break;
+			}
+
+			assert result.isOverflow();
+			final ByteBuffer grownBlob = ByteBuffer.allocate(Math.max(64, 2 * textBlob.capacity()));
+			textBlob.flip();
+			grownBlob.put(textBlob);
+			textBlob = grownBlob;
+		}
+	}
+
+	/**
+	 * Merge comments and markings at the same position.
+	 */
+	private void mergeAnnotations() {
+		final CommentMatcher matcher = new CommentMatcher(numberOfComments,
+				commentPages, commentX, commentY,
+				settings.getCommentMergeTolerance());
+
+		markingComments = matcher.match(numberOfMarkings, markingStartPages, markingX2, markingY2);
+
+		for (int index = 0; index < numberOfComments; ++index) {
+			commentMerged[index] = matcher.isMatched(index);
+		}
+	}
+}
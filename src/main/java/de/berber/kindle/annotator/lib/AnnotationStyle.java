@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import javax.annotation.Nonnull;
+
+import org.apache.pdfbox.pdmodel.graphics.color.PDGamma;
+
+/**
+ * The appearance shared by all annotations of one kind. Styles are created
+ *   once with the {@link Settings} and referenced by every annotation. The
+ *   color string is parsed when the style is created.
+ * 
+ * @author Bernhard J. Berger
+ */
+public final class AnnotationStyle {
+	/**
+	 * The default color of all annotations
+	 */
+	public static final String DEFAULT_COLOR = "#0000FF";
+
+	/**
+	 * The default opacity of all annotations.
+	 */
+	public static final float DEFAULT_OPACITY = 0.2f;
+
+	/**
+	 * The default style.
+	 */
+	public static final AnnotationStyle DEFAULT = new AnnotationStyle(DEFAULT_COLOR, DEFAULT_OPACITY);
+
+	/**
+	 * Color as given in the configuration.
+	 */
+	private final String color;
+
+	/**
+	 * Color components in the range 0 to 1.
+	 */
+	private final float red;
+	private final float green;
+	private final float blue;
+
+	/**
+	 * Opacity of the annotation.
+	 */
+	private final float opacity;
+
+	/**
+	 * Creates a new style.
+	 * 
+	 * @param color Color of the form <code>#RRGGBB</code>.
+	 * @param opacity Opacity in the range 0 to 1.
+	 * 
+	 * @throws IllegalArgumentException If the color cannot be parsed.
+	 */
+	public AnnotationStyle(final @Nonnull String color, final float opacity) {
+		if(color.length() != 7 || !color.startsWith("#")) {
+			throw new IllegalArgumentException("Color has to be of the form #RRGGBB: " + color);
+		}
+		
+		try {
+			this.red   = Integer.parseInt(color.substring(1, 3), 16) / 255f;
+			this.green = Integer.parseInt(color.substring(3, 5), 16) / 255f;
+			this.blue  = Integer.parseInt(color.substring(5, 7), 16) / 255f;
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Color has to be of the form #RRGGBB: " + color);
+		}
+		
+		this.color = color;
+		this.opacity = opacity;
+	}
+
+	/**
+	 * @return The color string of the form <code>#RRGGBB</code>.
+	 */
+	public @Nonnull String getColor() {
+		return color;
+	}
+
+	/**
+	 * @return The opacity of the annotation.
+	 */
+	public float getOpacity() {
+		return opacity;
+	}
+
+	/**
+	 * Creates a new PDGamma object for the color. PDGamma objects belong to a
+	 *   document, use {@link AnnotationContext#getColor(AnnotationStyle)} to
+	 *   share them.
+	 */
+	@Nonnull PDGamma createPDGamma() {
+		final PDGamma result = new PDGamma();
+		result.setR(red);
+		result.setG(green);
+		result.setB(blue);
+		
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "AnnotationStyle <" + color + ", " + opacity + ">";
+	}
+}
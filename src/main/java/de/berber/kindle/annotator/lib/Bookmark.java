@@ -15,14 +15,15 @@
  */
 package de.berber.kindle.annotator.lib;
 
+import java.io.IOException;
+
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
-import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.log4j.Logger;
 import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
-import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
 import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
 
 /**
@@ -42,33 +43,16 @@ public class Bookmark extends Annotation {
 	/**
 	 * Creates a new bookmark on page {@code page}.
 	 */
-	public Bookmark(final @Nonnull CompositeConfiguration cc, final @Nonnegative int page) {
-		super(cc, "bookmark", page);
+	public Bookmark(final @Nonnull Settings settings, final @Nonnegative int page) {
+		super(settings.getBookmarkStyle(), page);
 	}
 
 	@Override
-	protected PDAnnotation toPDAnnotation(final @Nonnull PDDocumentOutline documentOutline, final @Nonnull PDPage page) {
+	protected PDAnnotation toPDAnnotation(final @Nonnull AnnotationContext context, final @Nonnull PDPage page) {
 		LOG.info("Creating bookmark");
 		
-		final String OUTLINE_ENTRY_NAME = "Bookmarks";
-
-		// search for an outline entry called Bookmarks
-		PDOutlineItem bookmarks = documentOutline.getFirstChild();
-		
-		while(bookmarks != null) {
-			if(OUTLINE_ENTRY_NAME.equals(bookmarks.getTitle())) {
-				break;
-			}
-			
-			bookmarks = bookmarks.getNextSibling();
-		}
-		
-		// if we did not found an entry we have to add a new one
-		if(bookmarks == null) {
-			bookmarks = new PDOutlineItem();
-			bookmarks.setTitle(OUTLINE_ENTRY_NAME);
-			documentOutline.appendChild(bookmarks);
-		}
+		// the context finds or creates the outline entry called Bookmarks
+		final PDOutlineItem bookmarks = context.getBookmarks();
 
 		// crate the bookmark entry
 		final PDOutlineItem bookmark = new PDOutlineItem();
@@ -78,4 +62,19 @@ public class Bookmark extends Annotation {
 		
 		return null;
 	}
+
+	/**
+	 * XFDF has no outline entries, the bookmark is written as note in the
+	 *   upper left corner of the page instead.
+	 */
+	@Override
+	void toXFDF(final @Nonnull XfdfWriter writer, final @Nonnull PDRectangle trimBox) throws IOException {
+		final PDRectangle position = new PDRectangle();
+		position.setLowerLeftX(trimBox.getLowerLeftX());
+		position.setUpperRightX(trimBox.getLowerLeftX());
+		position.setLowerLeftY(trimBox.getUpperRightY());
+		position.setUpperRightY(trimBox.getUpperRightY());
+
+		writer.writeText(getPage(), style, position, "Bookmark on page " + getPage(), XfdfWriter.ICON_BOOKMARK);
+	}
 }
@@ -15,17 +15,17 @@
  */
 package de.berber.kindle.annotator.lib;
 
+import java.io.IOException;
+
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
-import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.log4j.Logger;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.graphics.color.PDGamma;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationText;
-import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
 
 /**
  * A comment is some text added somewhere to the document.
@@ -53,12 +53,12 @@ public class Comment extends Annotation {
 	 */
 	private final String text;
 
-	public Comment(final @Nonnull CompositeConfiguration cc,
+	public Comment(final @Nonnull Settings settings,
 			       final @Nonnegative int page,
 			       double xPositionFactor,
 			       double yPositionFactor,
 			       final @Nonnull String text) {
-		super(cc, "comments", page);
+		super(settings.getCommentStyle(), page);
 
 		checkFactorValue(xPositionFactor);
 		checkFactorValue(yPositionFactor);
@@ -82,18 +82,33 @@ public class Comment extends Annotation {
 
 	@Override
 	protected PDAnnotation toPDAnnotation(
-			final @Nonnull PDDocumentOutline documentOutline, final @Nonnull PDPage page) {
+			final @Nonnull AnnotationContext context, final @Nonnull PDPage page) {
 		LOG.info("Creating annotation " + xPositionFactor + "/"
 				+ yPositionFactor + " -> " + text);
 
 		// Create annotation text with background color
-		final PDGamma pdColor = getColor();
+		final PDGamma pdColor = getColor(context);
 		final PDAnnotationText textAnnotation = new PDAnnotationText();
 		textAnnotation.setContents(getText());
 		textAnnotation.setColour(pdColor);
 
 		// set the text position
-		final PDRectangle cropBox = page.getTrimBox();
+		final PDRectangle position = getPosition(context.getTrimBox(page));
+		textAnnotation.setRectangle(position);
+
+		return textAnnotation;
+	}
+
+	@Override
+	void toXFDF(final @Nonnull XfdfWriter writer, final @Nonnull PDRectangle trimBox) throws IOException {
+		writer.writeText(getPage(), style, getPosition(trimBox), getText(), XfdfWriter.ICON_COMMENT);
+	}
+
+	/**
+	 * Computes the position of the comment on a page with the trim box
+	 * {@code cropBox}.
+	 */
+	@Nonnull PDRectangle getPosition(final @Nonnull PDRectangle cropBox) {
 		final PDRectangle position = new PDRectangle();
 		position.setLowerLeftX((float) (cropBox.getLowerLeftX() + xPositionFactor
 				* (cropBox.getUpperRightX() - cropBox.getLowerLeftX())));
@@ -105,8 +120,6 @@ public class Comment extends Annotation {
 		position.setLowerLeftY((float) (cropBox.getUpperRightY() - yPositionFactor
 				* (cropBox.getUpperRightY() - cropBox.getLowerLeftY())));
 
-		textAnnotation.setRectangle(position);
-
-		return textAnnotation;
+		return position;
 	}
 }
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Matches markings with the comments placed at their upper right corner. The
+ *   comments are indexed per page and sorted by their x position, each
+ *   marking searches the comments within a tolerance window. Pages are
+ *   independent of each other, therefore large inputs will be matched in
+ *   parallel.
+ * 
+ * A marking takes the nearest unmatched comment within the tolerance, if
+ *   there are several comments at the same distance it takes the first one in
+ *   file order. Markings of a page are matched in file order.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class CommentMatcher {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(CommentMatcher.class);
+
+	/**
+	 * Result value for markings without a comment.
+	 */
+	static final int NO_MATCH = -1;
+
+	/**
+	 * Default tolerance for comparing positions.
+	 */
+	static final double DEFAULT_TOLERANCE = 1e-6;
+
+	/**
+	 * Inputs with less markings will be matched on the calling thread.
+	 */
+	private static final int PARALLEL_THRESHOLD = 16 * 1024;
+
+	/**
+	 * Worker threads for matching large inputs, created on first use.
+	 */
+	private static ExecutorService executor = null;
+
+	private final int numberOfComments;
+	private final int[] commentPages;
+	private final double[] commentX;
+	private final double[] commentY;
+
+	/**
+	 * Comments that already have been matched with a marking.
+	 */
+	private final boolean[] matched;
+
+	/**
+	 * Comment indices sorted by page and x position.
+	 */
+	private final int[] order;
+
+	/**
+	 * Maximal distance of the comment to the marking's corner per axis.
+	 */
+	private final double tolerance;
+
+	/**
+	 * Creates a new matcher for the first {@code numberOfComments} comments
+	 *   given by the arrays {@code commentPages}, {@code commentX} and
+	 *   {@code commentY}.
+	 */
+	CommentMatcher(final @Nonnegative int numberOfComments,
+			       final @Nonnull int[] commentPages,
+			       final @Nonnull double[] commentX,
+			       final @Nonnull double[] commentY,
+			       final @Nonnegative double tolerance) {
+		this.numberOfComments = numberOfComments;
+		this.commentPages = commentPages;
+		this.commentX = commentX;
+		this.commentY = commentY;
+		this.tolerance = tolerance;
+		this.matched = new boolean[numberOfComments];
+		this.order = new int[numberOfComments];
+
+		for (int index = 0; index < numberOfComments; ++index) {
+			order[index] = index;
+		}
+
+		sort(order, new int[numberOfComments], 0, numberOfComments, new IndexOrder() {
+			public int compare(final int left, final int right) {
+				if (commentPages[left] != commentPages[right]) {
+					return commentPages[left] < commentPages[right] ? -1 : 1;
+				}
+
+				return Double.compare(commentX[left], commentX[right]);
+			}
+		});
+	}
+
+	/**
+	 * @return {@code true} if comment {@code index} has been matched with a
+	 *   marking.
+	 */
+	boolean isMatched(final @Nonnegative int index) {
+		return matched[index];
+	}
+
+	/**
+	 * Matches the first {@code numberOfMarkings} markings with the comments.
+	 * 
+	 * @return For each marking the index of its comment or {@link #NO_MATCH}.
+	 */
+	@Nonnull int[] match(final @Nonnegative int numberOfMarkings,
+			             final @Nonnull int[] markingPages,
+			             final @Nonnull double[] markingX,
+			             final @Nonnull double[] markingY) {
+		final int[] result = new int[numberOfMarkings];
+
+		for (int index = 0; index < numberOfMarkings; ++index) {
+			result[index] = NO_MATCH;
+		}
+
+		if (numberOfComments == 0 || numberOfMarkings == 0) {
+			return result;
+		}
+
+		if (numberOfMarkings < PARALLEL_THRESHOLD
+				|| Runtime.getRuntime().availableProcessors() == 1) {
+			// pages are independent, the file order is a valid order
+			for (int marking = 0; marking < numberOfMarkings; ++marking) {
+				matchMarking(marking, markingPages, markingX, markingY, result);
+			}
+		} else {
+			matchInParallel(numberOfMarkings, markingPages, markingX, markingY, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Splits the page groups into one range per processor and matches them
+	 *   concurrently. Ranges never split a page.
+	 */
+	private void matchInParallel(final @Nonnegative int numberOfMarkings,
+			                     final @Nonnull int[] markingPages,
+			                     final @Nonnull double[] markingX,
+			                     final @Nonnull double[] markingY,
+			                     final @Nonnull int[] result) {
+		// group the markings by page, each group keeps the file order
+		final int[] markings = new int[numberOfMarkings];
+		for (int index = 0; index < numberOfMarkings; ++index) {
+			markings[index] = index;
+		}
+
+		sort(markings, new int[numberOfMarkings], 0, numberOfMarkings, new IndexOrder() {
+			public int compare(final int left, final int right) {
+				if (markingPages[left] != markingPages[right]) {
+					return markingPages[left] < markingPages[right] ? -1 : 1;
+				}
+
+				return 0;
+			}
+		});
+
+		final int cpuCount = Runtime.getRuntime().availableProcessors();
+		final int rangeSize = (markings.length + cpuCount - 1) / cpuCount;
+		final List<Callable<Object>> ranges = new ArrayList<Callable<Object>>(cpuCount);
+
+		int start = 0;
+		while (start < markings.length) {
+			int end = Math.min(markings.length, start + rangeSize);
+
+			// move the end of the range behind the current page
+			while (end < markings.length && markingPages[markings[end]] == markingPages[markings[end - 1]]) {
+				++end;
+			}
+
+			ranges.add(Executors.callable(new PageRange(markings, start, end,
+					markingPages, markingX, markingY, result)));
+			start = end;
+		}
+
+		try {
+			for (final Future<Object> future : getExecutor().invokeAll(ranges)) {
+				future.get();
+			}
+		} catch (final InterruptedException e) {
+			LOG.error("Interrupted while matching comments.");
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException e) {
+			throw new IllegalStateException("Error while matching comments.", e.getCause());
+		}
+	}
+
+	/**
+	 * Matches a consecutive range of page groups.
+	 */
+	private class PageRange implements Runnable {
+		private final int[] markings;
+		private final int start;
+		private final int end;
+		private final int[] markingPages;
+		private final double[] markingX;
+		private final double[] markingY;
+		private final int[] result;
+
+		PageRange(final int[] markings, final int start, final int end,
+				  final int[] markingPages, final double[] markingX, final double[] markingY,
+				  final int[] result) {
+			this.markings = markings;
+			this.start = start;
+			this.end = end;
+			this.markingPages = markingPages;
+			this.markingX = markingX;
+			this.markingY = markingY;
+			this.result = result;
+		}
+
+		public void run() {
+			for (int index = start; index < end; ++index) {
+				matchMarking(markings[index], markingPages, markingX, markingY, result);
+			}
+		}
+	}
+
+	/**
+	 * Matches a single marking and stores the result.
+	 */
+	private void matchMarking(final @Nonnegative int marking,
+			                  final @Nonnull int[] markingPages,
+			                  final @Nonnull double[] markingX,
+			                  final @Nonnull double[] markingY,
+			                  final @Nonnull int[] result) {
+		final int comment = findComment(markingPages[marking], markingX[marking], markingY[marking]);
+
+		if (comment != NO_MATCH) {
+			matched[comment] = true;
+			result[marking] = comment;
+		}
+	}
+
+	/**
+	 * Searches the nearest unmatched comment around {@code x}/{@code y} on
+	 *   {@code page}.
+	 */
+	private int findComment(final int page, final double x, final double y) {
+		final double minX = x - tolerance;
+
+		// binary search for the first comment on page with a x >= minX
+		int low = 0, high = numberOfComments;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			final int comment = order[middle];
+
+			if (commentPages[comment] < page
+					|| (commentPages[comment] == page && commentX[comment] < minX)) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		// sweep through the tolerance window
+		final double maxX = x + tolerance;
+		int best = NO_MATCH;
+		double bestDistance = Double.MAX_VALUE;
+
+		for (int index = low; index < numberOfComments; ++index) {
+			final int comment = order[index];
+
+			if (commentPages[comment] != page || commentX[comment] > maxX) {
+				break;
+			}
+
+			final double dy = Math.abs(commentY[comment] - y);
+			if (matched[comment] || dy > tolerance) {
+				continue;
+			}
+
+			final double dx = commentX[comment] - x;
+			final double distance = dx * dx + dy * dy;
+			if (distance < bestDistance || (distance == bestDistance && comment < best)) {
+				best = comment;
+				bestDistance = distance;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Order of two indices.
+	 */
+	private interface IndexOrder {
+		int compare(final int left, final int right);
+	}
+
+	/**
+	 * Stable merge sort of {@code indices} between {@code start} and
+	 *   {@code end} without boxing. The content of {@code buffer} will be
+	 *   overwritten.
+	 */
+	private static void sort(final int[] indices, final int[] buffer,
+			                 final int start, final int end, final IndexOrder order) {
+		if (end - start < 2) {
+			return;
+		}
+
+		final int middle = (start + end) >>> 1;
+		sort(indices, buffer, start, middle, order);
+		sort(indices, buffer, middle, end, order);
+
+		if (order.compare(indices[middle - 1], indices[middle]) <= 0) {
+			return; // already in order
+		}
+
+		System.arraycopy(indices, start, buffer, start, end - start);
+
+		int left = start, right = middle, target = start;
+		while (left < middle && right < end) {
+			if (order.compare(buffer[right], buffer[left]) < 0) {
+				indices[target++] = buffer[right++];
+			} else {
+				indices[target++] = buffer[left++];
+			}
+		}
+
+		while (left < middle) {
+			indices[target++] = buffer[left++];
+		}
+
+		while (right < end) {
+			indices[target++] = buffer[right++];
+		}
+	}
+
+	/**
+	 * @return The shared executor for parallel matching.
+	 */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "comment-matcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return executor;
+	}
+}
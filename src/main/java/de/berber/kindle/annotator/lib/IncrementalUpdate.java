@@ -0,0 +1,601 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.persistence.util.COSObjectKey;
+
+/**
+ * Writes the changes of a document as an incremental update. The original
+ *   bytes are kept and only new or changed objects are appended, followed by
+ *   a cross reference section and a trailer pointing to the previous one.
+ *   
+ * Objects that may change have to be registered using {@link #track(COSBase)}
+ *   before they are modified. Objects created afterwards will be found
+ *   through the tracked objects.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class IncrementalUpdate {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(IncrementalUpdate.class);
+
+	/**
+	 * Number of bytes at the end of a file searched for the startxref entry.
+	 */
+	private static final int TAIL_SIZE = 1024;
+
+	private static final COSName FIRST = COSName.getPDFName("First");
+
+	private static final byte[] STARTXREF = "startxref".getBytes();
+	private static final byte[] XREF = "xref".getBytes();
+
+	/**
+	 * The original file.
+	 */
+	private final File pdfFile;
+
+	/**
+	 * The parsed document.
+	 */
+	private final PDDocument document;
+
+	/**
+	 * Offset of the last cross reference section in the original file.
+	 */
+	private final long previousXref;
+
+	/**
+	 * Keys of all indirect objects of the original file.
+	 */
+	private final Map<COSBase, COSObjectKey> objectKeys = new IdentityHashMap<COSBase, COSObjectKey>();
+
+	/**
+	 * Serialized form of tracked objects before modification.
+	 */
+	private final Map<COSBase, byte[]> snapshots = new IdentityHashMap<COSBase, byte[]>();
+
+	/**
+	 * Highest object number of the original file.
+	 */
+	private long highestObjectNumber = 0;
+
+	/**
+	 * Prepares an incremental update of {@code document} that has been loaded
+	 *   from {@code pdfFile}.
+	 *   
+	 * @return The update or {@code null} if the document cannot be updated
+	 *   incrementally.
+	 */
+	static @Nullable IncrementalUpdate prepare(final @Nonnull PDDocument document, final @Nonnull File pdfFile) {
+		if (document.isEncrypted()) {
+			LOG.info("Cannot update encrypted document " + pdfFile + " incrementally.");
+			return null;
+		}
+
+		try {
+			final long previousXref = findXref(pdfFile);
+
+			if (previousXref < 0) {
+				LOG.info("Document " + pdfFile + " has no cross reference table, updating it completely.");
+				return null;
+			}
+
+			return new IncrementalUpdate(document, pdfFile, previousXref);
+		} catch (final IOException e) {
+			LOG.warn("Cannot read cross reference table of " + pdfFile);
+			return null;
+		}
+	}
+
+	private IncrementalUpdate(final @Nonnull PDDocument document, final @Nonnull File pdfFile, final long previousXref) {
+		this.document = document;
+		this.pdfFile = pdfFile;
+		this.previousXref = previousXref;
+
+		final COSDocument cosDocument = document.getDocument();
+		for (final COSObject object : cosDocument.getObjects()) {
+			final COSObjectKey key = new COSObjectKey(object);
+
+			if (object.getObject() != null) {
+				objectKeys.put(object.getObject(), key);
+			}
+
+			highestObjectNumber = Math.max(highestObjectNumber, key.getNumber());
+		}
+
+		highestObjectNumber = Math.max(highestObjectNumber,
+				cosDocument.getTrailer().getInt(COSName.SIZE, 1) - 1);
+	}
+
+	/**
+	 * Registers an indirect object that may be changed. If the object is
+	 *   direct or unknown the call will be ignored.
+	 */
+	void track(final @Nullable COSBase object) {
+		final COSBase target = dereference(object);
+
+		if (target == null || !objectKeys.containsKey(target) || snapshots.containsKey(target)) {
+			return;
+		}
+
+		snapshots.put(target, serialize(target));
+	}
+
+	/**
+	 * Registers {@code node} and all nodes reachable through its first child
+	 *   and next sibling entries, e.g. an outline tree.
+	 */
+	void trackTree(final @Nullable COSBase node) {
+		final LinkedList<COSBase> nodes = new LinkedList<COSBase>();
+		nodes.add(node);
+
+		while (!nodes.isEmpty()) {
+			final COSBase current = dereference(nodes.removeFirst());
+
+			if (!(current instanceof COSDictionary) || snapshots.containsKey(current)) {
+				continue;
+			}
+
+			track(current);
+			nodes.add(((COSDictionary) current).getItem(FIRST));
+			nodes.add(((COSDictionary) current).getItem(COSName.NEXT));
+		}
+	}
+
+	/**
+	 * Thrown if a stream object would have to be written.
+	 */
+	private static final class StreamObjectException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Writes the original document followed by the update to
+	 *   {@code outFile}. If {@code outFile} is the original file the update
+	 *   will be appended to it.
+	 *   
+	 * @return {@code false} if the changes contain a stream object. Nothing
+	 *   has been written then, the document has to be saved completely.
+	 */
+	boolean write(final @Nonnull File outFile) throws IOException {
+		final long originalLength = pdfFile.length();
+		final ByteArrayOutputStream update = new ByteArrayOutputStream();
+		final SortedMap<COSObjectKey, Long> offsets = new TreeMap<COSObjectKey, Long>();
+
+		// objects to write, starting with the changed ones
+		final Queue<COSBase> pending = new LinkedList<COSBase>();
+		final Map<COSBase, COSObjectKey> newKeys = new IdentityHashMap<COSBase, COSObjectKey>();
+		final ObjectWriter writer = new ObjectWriter(pending, newKeys);
+
+		for (final Map.Entry<COSBase, byte[]> snapshot : snapshots.entrySet()) {
+			if (!Arrays.equals(snapshot.getValue(), serialize(snapshot.getKey()))) {
+				pending.add(snapshot.getKey());
+			}
+		}
+
+		if (pending.isEmpty()) {
+			LOG.info("No changes for " + pdfFile);
+		}
+
+		// the update is built in memory, so it can be dropped without a trace
+		update.write('\n');
+		try {
+			while (!pending.isEmpty()) {
+				final COSBase object = pending.remove();
+				COSObjectKey key = objectKeys.get(object);
+				if (key == null) {
+					key = newKeys.get(object);
+				}
+
+				offsets.put(key, originalLength + update.size());
+				write(update, key.getNumber() + " " + key.getGeneration() + " obj\n");
+				writer.write(object, update);
+				write(update, "\nendobj\n");
+			}
+		} catch (final StreamObjectException e) {
+			LOG.info("Changes of " + pdfFile + " contain a stream object, saving it completely.");
+			return false;
+		}
+
+		final long xrefOffset = originalLength + update.size();
+		writeXref(update, offsets);
+		writeTrailer(update, xrefOffset);
+
+		appendUpdate(outFile, update);
+		return true;
+	}
+
+	/**
+	 * Writes the cross reference section for the given object offsets.
+	 */
+	private void writeXref(final @Nonnull ByteArrayOutputStream update,
+			               final @Nonnull SortedMap<COSObjectKey, Long> offsets) throws IOException {
+		write(update, "xref\n");
+
+		final COSObjectKey[] keys = offsets.keySet().toArray(new COSObjectKey[offsets.size()]);
+		int start = 0;
+		while (start < keys.length) {
+			// find the end of the consecutive object numbers
+			int end = start + 1;
+			while (end < keys.length && keys[end].getNumber() == keys[end - 1].getNumber() + 1) {
+				++end;
+			}
+
+			write(update, keys[start].getNumber() + " " + (end - start) + "\n");
+			for (int index = start; index < end; ++index) {
+				write(update, String.format(Locale.ROOT, "%010d %05d n\r\n", offsets.get(keys[index]), keys[index].getGeneration()));
+			}
+
+			start = end;
+		}
+	}
+
+	/**
+	 * Writes the trailer of the update.
+	 */
+	private void writeTrailer(final @Nonnull ByteArrayOutputStream update, final long xrefOffset) throws IOException {
+		final COSDictionary original = document.getDocument().getTrailer();
+		final COSDictionary trailer = new COSDictionary();
+
+		trailer.setLong(COSName.SIZE, highestObjectNumber + 1);
+		trailer.setItem(COSName.ROOT, original.getItem(COSName.ROOT));
+		if (original.getItem(COSName.INFO) != null) {
+			trailer.setItem(COSName.INFO, original.getItem(COSName.INFO));
+		}
+		if (original.getItem(COSName.ID) != null) {
+			trailer.setItem(COSName.ID, original.getItem(COSName.ID));
+		}
+		trailer.setLong(COSName.PREV, previousXref);
+
+		write(update, "trailer\n");
+		new ObjectWriter(null, null).write(trailer, update);
+		write(update, "\nstartxref\n" + xrefOffset + "\n%%EOF\n");
+	}
+
+	/**
+	 * Writes the original file (if necessary) and the update to
+	 *   {@code outFile}.
+	 */
+	private void appendUpdate(final @Nonnull File outFile, final @Nonnull ByteArrayOutputStream update) throws IOException {
+		final boolean inPlace = outFile.getCanonicalFile().equals(pdfFile.getCanonicalFile());
+
+		if (!inPlace) {
+			copy(pdfFile, outFile);
+		}
+
+		final FileOutputStream output = new FileOutputStream(outFile, true);
+		try {
+			update.writeTo(output);
+		} finally {
+			output.close();
+		}
+
+		LOG.info("Appended " + update.size() + " bytes to " + outFile);
+	}
+
+	/**
+	 * Copies {@code source} to {@code target}.
+	 */
+	private static void copy(final @Nonnull File source, final @Nonnull File target) throws IOException {
+		final FileInputStream input = new FileInputStream(source);
+		try {
+			final FileOutputStream output = new FileOutputStream(target);
+			try {
+				final FileChannel inChannel = input.getChannel();
+				final FileChannel outChannel = output.getChannel();
+				final long size = inChannel.size();
+
+				long position = 0;
+				while (position < size) {
+					position += inChannel.transferTo(position, size - position, outChannel);
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Searches the offset of the last cross reference table of
+	 *   {@code pdfFile}.
+	 *   
+	 * @return The offset or -1 if there is none or the file uses a cross
+	 *   reference stream.
+	 */
+	static long findXref(final @Nonnull File pdfFile) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(pdfFile, "r");
+
+		try {
+			final int tailSize = (int) Math.min(TAIL_SIZE, file.length());
+			final byte[] tail = new byte[tailSize];
+			file.seek(file.length() - tailSize);
+			file.readFully(tail);
+
+			final int keyword = lastIndexOf(tail, STARTXREF);
+			if (keyword < 0) {
+				return -1;
+			}
+
+			// parse the offset following the keyword
+			long offset = -1;
+			for (int index = keyword + STARTXREF.length; index < tail.length; ++index) {
+				final byte current = tail[index];
+
+				if (current >= '0' && current <= '9') {
+					offset = (offset < 0 ? 0 : offset * 10) + (current - '0');
+				} else if (offset >= 0) {
+					break;
+				}
+			}
+
+			if (offset < 0 || offset >= file.length()) {
+				return -1;
+			}
+
+			// only classic cross reference tables are supported
+			final byte[] start = new byte[XREF.length];
+			file.seek(offset);
+			file.readFully(start);
+
+			return Arrays.equals(start, XREF) ? offset : -1;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return The last position of {@code pattern} in {@code data} or -1.
+	 */
+	private static int lastIndexOf(final @Nonnull byte[] data, final @Nonnull byte[] pattern) {
+		search: for (int index = data.length - pattern.length; index >= 0; --index) {
+			for (int offset = 0; offset < pattern.length; ++offset) {
+				if (data[index + offset] != pattern[offset]) {
+					continue search;
+				}
+			}
+
+			return index;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Serializes {@code object} for comparison. New objects will be written
+	 *   as an unresolved reference.
+	 */
+	private @Nonnull byte[] serialize(final @Nonnull COSBase object) {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		try {
+			new ObjectWriter(null, null).write(object, buffer);
+		} catch (final IOException e) {
+			throw new IllegalStateException("Cannot serialize to memory", e);
+		}
+
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Writes a string in the PDF encoding.
+	 */
+	private static void write(final @Nonnull OutputStream output, final @Nonnull String text) throws IOException {
+		output.write(text.getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * @return The object referenced by {@code object}.
+	 */
+	private static @Nullable COSBase dereference(final @Nullable COSBase object) {
+		return object instanceof COSObject ? ((COSObject) object).getObject() : object;
+	}
+
+	/**
+	 * Writes the body of an object. References to objects of the original
+	 *   file will be kept, new dictionaries and streams become indirect
+	 *   objects with a fresh number. Without numbering, e.g. for snapshots
+	 *   and the trailer, dictionaries are written inline.
+	 */
+	private class ObjectWriter {
+		/**
+		 * Queue for new objects or {@code null} if new objects shall not get
+		 *   a number.
+		 */
+		private final Queue<COSBase> pending;
+
+		/**
+		 * Numbers of new objects.
+		 */
+		private final Map<COSBase, COSObjectKey> newKeys;
+
+		/**
+		 * Dictionaries without a number that are currently written inline.
+		 */
+		private final Set<COSBase> inlineDictionaries = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+
+		ObjectWriter(final @Nullable Queue<COSBase> pending, final @Nullable Map<COSBase, COSObjectKey> newKeys) {
+			this.pending = pending;
+			this.newKeys = newKeys;
+		}
+
+		/**
+		 * Writes {@code object} inline.
+		 */
+		void write(final @Nonnull COSBase object, final @Nonnull OutputStream output) throws IOException {
+			if (object instanceof COSStream) {
+				throw new StreamObjectException();
+			} else if (object instanceof COSDictionary) {
+				final COSDictionary dictionary = (COSDictionary) object;
+
+				IncrementalUpdate.write(output, "<<");
+				for (final Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+					final COSBase value = entry.getValue();
+					if (value == null) {
+						continue;
+					}
+
+					entry.getKey().writePDF(output);
+					output.write(' ');
+					writeValue(value, output);
+					output.write('\n');
+				}
+				IncrementalUpdate.write(output, ">>");
+			} else if (object instanceof COSArray) {
+				output.write('[');
+
+				boolean first = true;
+				for (final COSBase value : (COSArray) object) {
+					if (!first) {
+						output.write(' ');
+					}
+
+					first = false;
+					writeValue(value, output);
+				}
+
+				output.write(']');
+			} else if (object instanceof COSName) {
+				((COSName) object).writePDF(output);
+			} else if (object instanceof COSString) {
+				((COSString) object).writePDF(output);
+			} else if (object instanceof COSInteger) {
+				((COSInteger) object).writePDF(output);
+			} else if (object instanceof COSFloat) {
+				((COSFloat) object).writePDF(output);
+			} else if (object instanceof COSBoolean) {
+				((COSBoolean) object).writePDF(output);
+			} else if (object instanceof COSNull) {
+				((COSNull) object).writePDF(output);
+			} else if (object instanceof COSObject) {
+				writeValue(object, output);
+			} else {
+				throw new IOException("Unknown object type " + object.getClass().getName());
+			}
+		}
+
+		/**
+		 * Writes a value within a dictionary or array. Indirect objects will be
+		 *   written as a reference.
+		 */
+		private void writeValue(final @Nullable COSBase value, final @Nonnull OutputStream output) throws IOException {
+			if (value == null) {
+				COSNull.NULL.writePDF(output);
+				return;
+			}
+
+			if (value instanceof COSObject) {
+				final COSObject reference = (COSObject) value;
+				IncrementalUpdate.write(output, reference.getObjectNumber().longValue() + " "
+						+ reference.getGenerationNumber().longValue() + " R");
+				return;
+			}
+
+			COSObjectKey key = objectKeys.get(value);
+			if (key == null && (value instanceof COSDictionary)) {
+				key = newKey(value);
+
+				if (key == null) {
+					writeInline((COSDictionary) value, output);
+					return;
+				}
+			}
+
+			if (key != null) {
+				IncrementalUpdate.write(output, key.getNumber() + " " + key.getGeneration() + " R");
+			} else {
+				write(value, output);
+			}
+		}
+
+		/**
+		 * Writes a dictionary without a number inline, so changes of direct
+		 *   dictionaries show up in the snapshots. Streams and dictionaries
+		 *   referring back to themselves are written as placeholder.
+		 */
+		private void writeInline(final @Nonnull COSDictionary dictionary, final @Nonnull OutputStream output) throws IOException {
+			if (dictionary instanceof COSStream || !inlineDictionaries.add(dictionary)) {
+				IncrementalUpdate.write(output, "? ? R");
+				return;
+			}
+
+			try {
+				write(dictionary, output);
+			} finally {
+				inlineDictionaries.remove(dictionary);
+			}
+		}
+
+		/**
+		 * Assigns a number to a new object and queues it for writing.
+		 *
+		 * @return The new key or {@code null} if new objects are not numbered.
+		 */
+		private @Nullable COSObjectKey newKey(final @Nonnull COSBase object) {
+			if (newKeys == null) {
+				return null;
+			}
+
+			COSObjectKey key = newKeys.get(object);
+			if (key == null) {
+				key = new COSObjectKey(++highestObjectNumber, 0);
+				newKeys.put(object, key);
+				pending.add(object);
+			}
+
+			return key;
+		}
+	}
+}
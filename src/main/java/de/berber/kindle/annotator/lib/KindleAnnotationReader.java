@@ -15,26 +15,34 @@
  */
 package de.berber.kindle.annotator.lib;
 
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.List;
-import java.util.Map;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
-import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.log4j.Logger;
 
 /**
- * Reader for Kindle annotation files (PDR extension).
+ * Reader for Kindle annotation files (PDR extension). The file is read into
+ *   a single buffer (PDR files above {@link #MAP_THRESHOLD} bytes are memory
+ *   mapped) and all fields are decoded by offset. Unused fields are skipped
+ *   without copying them, only the comment texts are decoded. Each record is
+ *   reported to a {@link PdrVisitor} as soon as it is decoded.
  * 
  * @author Bernhard J. Berger
  */
@@ -44,6 +52,61 @@ public class KindleAnnotationReader {
 	 */
 	private static final int MAGIC_VALUE = 0xDEADCABB;
 
+	/**
+	 * PDR files larger than this will be memory mapped. Smaller files are
+	 *   read into a per-thread buffer, because mapping them costs more than
+	 *   it saves.
+	 */
+	private static final int MAP_THRESHOLD = 64 * 1024;
+
+	/**
+	 * Minimal sizes of the records in bytes, with empty strings. The record
+	 *   counts announced to visitors are limited by them, so a corrupt count
+	 *   never makes a visitor allocate more than the file can contain.
+	 */
+	private static final int MIN_BOOKMARK_SIZE = 1 + 4 + 2;
+	private static final int MIN_MARKING_SIZE = 1 + 2 * (4 + 2 + 2 + 4 + 8 + 8) + 2;
+	private static final int MIN_COMMENT_SIZE = 1 + 4 + 2 + 8 + 8 + 2 + 2;
+
+	/**
+	 * Encoding of the strings stored in a PDR file.
+	 */
+	private static final Charset PDR_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Read buffer for small PDR files. Each worker thread keeps its own
+	 *   buffer, which will be reused for all files it reads.
+	 */
+	private static final ThreadLocal<ByteBuffer> READ_BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(4 * 1024);
+		}
+	};
+
+	/**
+	 * Decoder for comment texts, shared by all readers of a thread.
+	 */
+	private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<CharsetDecoder>() {
+		@Override
+		protected CharsetDecoder initialValue() {
+			return PDR_CHARSET.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	/**
+	 * Target buffer of the comment decoder, shared by all readers of a
+	 *   thread.
+	 */
+	private static final ThreadLocal<CharBuffer> DECODE_BUFFER = new ThreadLocal<CharBuffer>() {
+		@Override
+		protected CharBuffer initialValue() {
+			return CharBuffer.allocate(256);
+		}
+	};
+
 	/**
 	 * The log instance
 	 */
@@ -56,10 +119,14 @@ public class KindleAnnotationReader {
 	private final File pdrFile;
 
 	/**
-	 * PDR stream
+	 * Content of the PDR file.
+	 */
+	private ByteBuffer pdrBuffer;
+
+	/**
+	 * Offset of the next field within {@link #pdrBuffer}.
 	 */
-	private FileInputStream fileStream;
-	private DataInputStream pdrStream;
+	private int position;
 
 	/**
 	 * Output stream if we are in debug mode.
@@ -67,25 +134,27 @@ public class KindleAnnotationReader {
 	private OutputStream debugStream = null;
 
 	/**
-	 * configuration object
+	 * The annotator settings.
 	 */
-	private final CompositeConfiguration cc;
+	private final Settings settings;
 
 	/**
 	 * Creates a new annotation reader for PDR files generated by the kindle
 	 * device.
 	 * 
+	 * @param settings
+	 *            The annotator settings.
 	 * @param pdfFile
 	 *            The pdf file you want to read annotations for.
 	 */
-	public KindleAnnotationReader(final @Nonnull CompositeConfiguration cc,
+	public KindleAnnotationReader(final @Nonnull Settings settings,
 			final @Nonnull File pdfFile) {
 		assert pdfFile.toString().endsWith(".pdf");
 
 		pdrFile = new File(pdfFile.toString().substring(0,
 				pdfFile.toString().length() - 1)
 				+ "r");
-		this.cc = cc;
+		this.settings = settings;
 
 		if (!pdrFile.exists()) {
 			LOG.error("Cannot find PDR-file for " + pdfFile);
@@ -104,7 +173,7 @@ public class KindleAnnotationReader {
 	 * Checks if debugging is enabled.
 	 */
 	private boolean isDebuggingEnabled() {
-		return cc.getBoolean("dumpDebugFile", false);
+		return settings.isDumpDebugFile();
 	}
 
 	/**
@@ -114,223 +183,267 @@ public class KindleAnnotationReader {
 	 */
 	public @Nonnull
 	List<Annotation> read() {
-		final List<Annotation> result = new LinkedList<Annotation>();
+		final AnnotationCollector collector = new AnnotationCollector(settings);
+
+		read(collector);
+
+		return collector.getAnnotations();
+	}
+
+	/**
+	 * Reads the pdr file and reports each record to {@code visitor} as soon
+	 *   as it is decoded.
+	 * 
+	 * @param visitor The visitor to inform.
+	 * 
+	 * @return {@code true} if the file was read completely.
+	 */
+	public boolean read(final @Nonnull PdrVisitor visitor) {
+		try {
+			return readRecords(visitor);
+		} finally {
+			visitor.onEnd();
+		}
+	}
 
+	/**
+	 * Counts the records of the pdr file without decoding them. The records
+	 *   have to be walked through nevertheless, since their size depends on
+	 *   the contained strings.
+	 * 
+	 * @return The record counts or {@code null} if the file cannot be read.
+	 */
+	public @Nullable PdrSummary scan() {
+		if (!pdrFile.exists() || !pdrFile.canRead()) {
+			return null;
+		}
+
+		try {
+			pdrBuffer = loadPdrFile();
+			position = 0;
+
+			if (readUnsigned32() != MAGIC_VALUE) {
+				return null;
+			}
+			skipBytes(1 + 4); // unknown data and last opened page
+
+			final int numberOfBookmarks = readUnsigned32();
+			for (int i = 0; i < numberOfBookmarks; ++i) {
+				skipBytes(1 + 4); // unknown data and page number
+				skipPascalString(); // page name
+			}
+
+			skipBytes(20); // skipping unknown data
+
+			final int numberOfMarkings = readInt();
+			for (int i = 0; i < numberOfMarkings; ++i) {
+				for (int end = 0; end < 2; ++end) {
+					// unknown data before the start, page number
+					skipBytes(end == 0 ? 1 + 4 : 4);
+					skipPascalString(); // page name
+					skipPascalString(); // pdfloc entry
+					skipBytes(4 + 8 + 8); // unknown data, x and y
+				}
+				skipBytes(2); // skipping unknown data
+			}
+
+			final int numberOfComments = readInt();
+			for (int i = 0; i < numberOfComments; ++i) {
+				skipBytes(1 + 4); // unknown data and page number
+				skipPascalString(); // page name
+				skipBytes(8 + 8); // x and y
+				skipPascalString(); // pdfloc entry
+				skipPascalString(); // comment
+			}
+
+			if (numberOfBookmarks < 0 || numberOfMarkings < 0 || numberOfComments < 0) {
+				return null;
+			}
+
+			return new PdrSummary(numberOfBookmarks, numberOfMarkings, numberOfComments);
+		} catch (IOException e) {
+			LOG.error("IO error occured while scanning " + pdrFile);
+		} catch (IndexOutOfBoundsException e) {
+			LOG.error("Unexpected end of pdr-file " + pdrFile);
+		} finally {
+			pdrBuffer = null;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Decodes all records of the pdr file.
+	 */
+	private boolean readRecords(final @Nonnull PdrVisitor visitor) {
 		if (!pdrFile.exists()) {
-			return result;
+			return false;
 		}
 
 		if (!pdrFile.canRead()) {
 			LOG.error("Cannnot read PDR-file " + pdrFile);
-			return result;
+			return false;
 		}
 
 		try {
-			fileStream = new FileInputStream(pdrFile);
-			pdrStream = new DataInputStream(fileStream);
+			pdrBuffer = loadPdrFile();
+			position = 0;
 
 			final int magic = readUnsigned32();
 			if (magic != MAGIC_VALUE) {
 				LOG.error("Magic file header is wrong "
 						+ Integer.toHexString(magic));
-				return result;
+				return false;
 			}
 
 			writeDebug("[Magic String]\n");
 
 			skipBytes(1);
-			@SuppressWarnings("unused")
 			int lastOpenedPage = readUnsigned32();
 			writeDebug("\n[Last opened page]\n");
+			visitor.onHeader(lastOpenedPage);
 
-			int numberOfBookmarks = readUnsigned32();
+			int numberOfBookmarks = readCount();
 			LOG.info("Number of bookmarks " + numberOfBookmarks);
+			visitor.onBookmarkCount(getPossibleCount(numberOfBookmarks, MIN_BOOKMARK_SIZE));
 
 			for (int i = 0; i < numberOfBookmarks; ++i) {
 				skipBytes(1); // skipping unknown data
-				int page = pdrStream.readInt(); // reading page number
+				int page = readInt(); // reading page number
 				writeDebug(" [page]");
-				readPascalString(); // page name
+				skipPascalString(); // page name
 				writeDebug(" [page name]\n");
 
-				result.add(new Bookmark(cc, page));
+				visitor.onBookmark(page);
 			}
 
 			skipBytes(20); // skipping unknown data
 
-			final int numberOfMarkings = pdrStream.readInt();
+			final int numberOfMarkings = readCount();
 			LOG.info("Number of markings " + numberOfMarkings);
 			writeDebug("\n[Number of markings " + numberOfMarkings + "]\n");
+			visitor.onMarkingCount(getPossibleCount(numberOfMarkings, MIN_MARKING_SIZE));
 
 			for (int i = 0; i < numberOfMarkings; ++i) {
 				// read start
 				skipBytes(1); // skipping unknown data
-				int page1 = pdrStream.readInt(); // reading page number
+				int page1 = readInt(); // reading page number
 				writeDebug(" [page]");
-				readPascalString(); // page name
+				skipPascalString(); // page name
 				writeDebug(" [page name]");
-				readPascalString(); // skipping pdfloc entry
+				skipPascalString(); // skipping pdfloc entry
 				writeDebug(" [pdfloc] ");
-				writeDebug("[" + pdrStream.readFloat() + "]");
-				// skipBytes(4); // skipping unknown data
-				double x1 = pdrStream.readDouble(), // start x
-				y1 = pdrStream.readDouble(); // start y
+				skipFloat(); // skipping unknown data
+				double x1 = readDouble(), // start x
+				y1 = readDouble(); // start y
 				writeDebug(" [x1]");
 				writeDebug(" [y1]");
 
 				// read end
-				int page2 = pdrStream.readInt(); // reading page number
+				int page2 = readInt(); // reading page number
 				writeDebug(" [page]");
-				readPascalString(); // page name
+				skipPascalString(); // page name
 				writeDebug(" [page name]");
-				readPascalString(); // skipping pdfloc entry
+				skipPascalString(); // skipping pdfloc entry
 				writeDebug(" [pdfloc] ");
-				writeDebug("[" + pdrStream.readFloat() + "]");
-				// qskipBytes(4); // skipping unknown data
-				double x2 = pdrStream.readDouble(), // end x
-				y2 = pdrStream.readDouble(); // end y
+				skipFloat(); // skipping unknown data
+				double x2 = readDouble(), // end x
+				y2 = readDouble(); // end y
 				writeDebug(" [x2]");
 				writeDebug(" [y2] ");
 				skipBytes(2); // skipping unknown data
 				writeDebug("\n");
 
-				result.add(new Marking(cc, page1, x1, y1, page2, x2, y2));
+				visitor.onMarking(page1, x1, y1, page2, x2, y2);
 			}
 
-			int numberOfComments = pdrStream.readInt();
+			int numberOfComments = readCount();
 			LOG.info("Number of comments " + numberOfComments);
 			writeDebug("\n[Number of comments " + numberOfComments + "]\n");
+			visitor.onCommentCount(getPossibleCount(numberOfComments, MIN_COMMENT_SIZE));
 
 			for (int i = 0; i < numberOfComments; ++i) {
 				skipBytes(1); // skipping unknown data
-				int page = pdrStream.readInt(); // reading page number
+				int page = readInt(); // reading page number
 				writeDebug(" [page]");
-				readPascalString(); // page name
+				skipPascalString(); // page name
 				writeDebug(" [page name]");
-				double x = pdrStream.readDouble(), // reading x
-				y = pdrStream.readDouble(); // reading y
+				double x = readDouble(), // reading x
+				y = readDouble(); // reading y
 				writeDebug(" [x]");
 				writeDebug(" [y]");
 
-				readPascalString(); // skipping pdfloc entry
+				skipPascalString(); // skipping pdfloc entry
 				writeDebug(" [pdfloc]");
 				String content = readPascalString(); // reading comment
 				writeDebug(" [content]\n");
 
-				result.add(new Comment(cc, page, x, y, content));
+				visitor.onComment(page, x, y, content);
 			}
 
 			int finalEntry = readUnsigned32();
 
 			writeDebug("\n[Final entry " + finalEntry + "]");
 
-			LOG.info("Number of available bytes " + pdrStream.available());
+			LOG.info("Number of available bytes " + (pdrBuffer.limit() - position));
+			return true;
 		} catch (FileNotFoundException e) {
 			LOG.error("Cannot find pdr-file " + pdrFile);
 		} catch (IOException e) {
-			LOG.error("IO error occured while reading " + pdrFile);
+			LOG.error("IO error occured while reading " + pdrFile + ": " + e.getMessage());
+		} catch (IndexOutOfBoundsException e) {
+			LOG.error("Unexpected end of pdr-file " + pdrFile);
 		} finally {
-			closePdrStream();
+			pdrBuffer = null;
 			closeDebugStream();
 		}
 
-		mergeAnnotations(result);
-
-		return result;
+		return false;
 	}
 
 	/**
-	 * Merge comments and markings at the same position.
+	 * Reads the complete PDR file into a buffer. Large files will be mapped
+	 *   into memory, small files are copied into the thread's read buffer.
+	 *   
+	 * @return A buffer containing the complete PDR file.
 	 * 
-	 * @param annotations
-	 *            List of annotations
+	 * @throws IOException If there is an IO error.
 	 */
-	private void mergeAnnotations(final @Nonnull List<Annotation> annotations) {
-		final Map<Integer, Map<Double, Map<Double, List<Comment>>>> comments = new HashMap<Integer, Map<Double, Map<Double, List<Comment>>>>();
-
-		// fill the map Map<Page, Map<xPosition, Map<yPosition, List<Comment>>>>
-		for (final Annotation annotation : annotations) {
-			if (!(annotation instanceof Comment)) {
-				continue;
-			}
+	private @Nonnull ByteBuffer loadPdrFile() throws IOException {
+		final FileInputStream fileStream = new FileInputStream(pdrFile);
 
-			final Comment comment = (Comment) annotation;
-
-			// get or create page map for comment
-			Map<Double, Map<Double, List<Comment>>> pageMap = comments
-					.get(comment.getPage());
-			if (pageMap == null) {
-				pageMap = new HashMap<Double, Map<Double, List<Comment>>>();
-				comments.put(comment.getPage(), pageMap);
-			}
+		try {
+			final FileChannel channel = fileStream.getChannel();
+			final long size = channel.size();
 
-			// get or create x position map for comment within page
-			Map<Double, List<Comment>> xFactorMap = pageMap.get(comment
-					.getXPositionFactor());
-			if (xFactorMap == null) {
-				xFactorMap = new HashMap<Double, List<Comment>>();
-				pageMap.put(comment.getXPositionFactor(), xFactorMap);
+			if (size > MAP_THRESHOLD) {
+				// the mapping stays valid after closing the channel
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
 			}
 
-			// get or create y position list for comment within x map
-			List<Comment> yFactorList = xFactorMap.get(comment
-					.getYPositionFactor());
-			if (yFactorList == null) {
-				yFactorList = new LinkedList<Comment>();
-				xFactorMap.put(comment.getYPositionFactor(), yFactorList);
+			ByteBuffer buffer = READ_BUFFER.get();
+			if (buffer.capacity() < size) {
+				buffer = ByteBuffer.allocate((int) size);
+				READ_BUFFER.set(buffer);
 			}
 
-			// add the comment
-			yFactorList.add(comment);
-		}
-
-		// if we merge two annotations we have to kill one. These will be stored
-		// temporarily in the killSet.
-		final List<Annotation> killSet = new LinkedList<Annotation>();
+			buffer.clear();
+			buffer.limit((int) size);
 
-		// match markings with already collected comments
-		for (final Annotation annotation : annotations) {
-			if (!(annotation instanceof Marking)) {
-				continue;
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					break;
+				}
 			}
 
-			final Marking marking = (Marking) annotation;
-
+			buffer.flip();
+			return buffer;
+		} finally {
 			try {
-				final List<Comment> commentList = comments
-						.get(marking.getPage()).get(marking.getRightXPositionFactor())
-						.get(marking.getUpperYPositionFactor());
-				final Comment comment = commentList.remove(0);
-
-				marking.addComment(comment); // merge them
-				killSet.add(comment); // remove it later
-			} catch (NullPointerException e) {
-				// no matching element found
-			}
-		}
-
-		// remove all matched comments
-		annotations.removeAll(killSet);
-	}
-
-	/**
-	 * Close all PDR related file streams
-	 */
-	private void closePdrStream() {
-		try {
-			if (pdrStream != null) {
-				pdrStream.close();
-			}
-		} catch (IOException e) {
-			LOG.warn("Cannot close pdr stream.");
-		}
-
-		try {
-			if (fileStream != null) {
 				fileStream.close();
+			} catch (IOException e) {
+				LOG.warn("Cannot close pdr file stream.");
 			}
-		} catch (IOException e) {
-			LOG.warn("Cannot close pdr file stream.");
 		}
 	}
 
@@ -363,19 +476,65 @@ public class KindleAnnotationReader {
 	}
 
 	/**
-	 * Read a pascal string from input stream. A pascal stream is a string
-	 *   length marker followed by the content.
+	 * Read a pascal string from input. A pascal string is a string length
+	 *   marker followed by the content.
 	 *   
 	 * @return A string read from input
 	 * 
-	 * @throws IOException If there is an IO error.
+	 * @throws CharacterCodingException If the string cannot be decoded.
+	 */
+	private @Nonnull String readPascalString() throws CharacterCodingException {
+		final int length = readUnsigned16();
+		checkAvailable(length);
+
+		final ByteBuffer rawString = pdrBuffer.duplicate();
+		rawString.limit(position + length).position(position);
+		position += length;
+
+		final CharsetDecoder decoder = DECODER.get();
+		final int maxLength = (int) Math.ceil(length * decoder.maxCharsPerByte());
+
+		CharBuffer target = DECODE_BUFFER.get();
+		if (target.capacity() < maxLength) {
+			target = CharBuffer.allocate(maxLength);
+			DECODE_BUFFER.set(target);
+		}
+
+		target.clear();
+		decoder.reset();
+		CoderResult result = decoder.decode(rawString, target, true);
+		if (!result.isError()) {
+			result = decoder.flush(target);
+		}
+
+		if (result.isError()) {
+			result.throwException();
+		}
+
+		target.flip();
+		return target.toString();
+	}
+
+	/**
+	 * Skips a pascal string without decoding it.
 	 */
-	private @Nonnull String readPascalString() throws IOException {
-		int length = pdrStream.readShort();
-		byte[] rawString = new byte[length];
+	private void skipPascalString() {
+		final int length = readUnsigned16();
 
-		pdrStream.readFully(rawString);
-		return new String(rawString);
+		checkAvailable(length);
+		position += length;
+	}
+
+	/**
+	 * Skips a float value. In debug mode the value will be logged.
+	 */
+	private void skipFloat() {
+		if (debugStream != null) {
+			writeDebug("[" + pdrBuffer.getFloat(position) + "]");
+		}
+
+		checkAvailable(4);
+		position += 4;
 	}
 
 	/**
@@ -386,21 +545,19 @@ public class KindleAnnotationReader {
 	 * @throws IOException If there is an IO error.
 	 */
 	private void skipBytes(final @Nonnegative int byteCount) throws IOException {
-		// read data to a temporary buffer we will discard
-		byte skippedData[] = new byte[byteCount];
-		pdrStream.readFully(skippedData);
+		checkAvailable(byteCount);
 
 		// if there is a debug stream we will print each bytes hex value
 		if (debugStream != null) {
 			boolean first = true;
-			for (int index = 0; index < skippedData.length; ++index) {
+			for (int index = position; index < position + byteCount; ++index) {
 				if (first) {
 					first = false;
 				} else {
 					debugStream.write(" ".getBytes());
 				}
 
-				String hexString = Integer.toHexString(skippedData[index]);
+				String hexString = Integer.toHexString(pdrBuffer.get(index));
 				if (hexString.length() == 1) {
 					hexString = "0" + hexString;
 				} else if (hexString.startsWith("ffffff")) {
@@ -409,12 +566,74 @@ public class KindleAnnotationReader {
 				debugStream.write(hexString.getBytes());
 			}
 		}
+
+		position += byteCount;
+	}
+
+	/**
+	 * Ensures that there are at least {@code byteCount} bytes left.
+	 */
+	private void checkAvailable(final @Nonnegative int byteCount) {
+		if (pdrBuffer.limit() - position < byteCount) {
+			throw new IndexOutOfBoundsException("Cannot read " + byteCount
+					+ " bytes at offset " + position);
+		}
+	}
+
+	/**
+	 * Reads a record count.
+	 * 
+	 * @throws IOException If the count is negative.
+	 */
+	private int readCount() throws IOException {
+		final int count = readInt();
+		if (count < 0) {
+			throw new IOException("Invalid record count " + count);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Limits {@code count} to the number of records of at least
+	 *   {@code minimalSize} bytes that fit into the rest of the file. A
+	 *   larger count runs into the end of the file while reading the records.
+	 */
+	private int getPossibleCount(final @Nonnegative int count, final @Nonnegative int minimalSize) {
+		return Math.min(count, (pdrBuffer.limit() - position) / minimalSize);
+	}
+
+	/**
+	 * Read a signed 32 Bit int.
+	 */
+	private int readInt() {
+		final int value = pdrBuffer.getInt(position);
+		position += 4;
+		return value;
+	}
+
+	/**
+	 * Read a 64 Bit double.
+	 */
+	private double readDouble() {
+		final double value = pdrBuffer.getDouble(position);
+		position += 8;
+		return value;
+	}
+
+	/**
+	 * Read a unsigned 16 Bit int.
+	 */
+	private int readUnsigned16() {
+		final int value = pdrBuffer.getShort(position) & 0xFFFF;
+		position += 2;
+		return value;
 	}
 
 	/**
 	 * Read a unsigned 32 Bit int.
 	 */
-	private int readUnsigned32() throws IOException {
-		return pdrStream.readInt();
+	private int readUnsigned32() {
+		return readInt();
 	}
 }
@@ -15,17 +15,17 @@
  */
 package de.berber.kindle.annotator.lib;
 
+import java.io.IOException;
+
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
-import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.log4j.Logger;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.graphics.color.PDGamma;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationTextMarkup;
-import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
 
 /**
  * A marking is a colored area on a PDF page.
@@ -56,12 +56,12 @@ public class Marking extends Annotation {
 	 * A marking starts on {@code page1} at location {@code x1}/{@code y1} and
 	 *   ends on on {@code page2} at location {@code x2}/{@code y2}
 	 */
-	public Marking(final @Nonnull CompositeConfiguration cc,
+	public Marking(final @Nonnull Settings settings,
 			       final @Nonnegative int page1,
 			       double x1, double y1,
 			       final @Nonnegative int page2,
 			       double x2, double y2) {
-		super(cc, "markings", page1);
+		super(settings.getMarkingStyle(), page1);
 		this.page2 = page2;
 		
 		// check factor values
@@ -77,17 +77,17 @@ public class Marking extends Annotation {
 	}
 
 	@Override
-	protected PDAnnotation toPDAnnotation(final PDDocumentOutline documentOutline, final PDPage page)  {
+	protected PDAnnotation toPDAnnotation(final @Nonnull AnnotationContext context, final @Nonnull PDPage page)  {
 		LOG.info("Creating marking " + leftXPositionFactor + "/" + lowerYPositionFactor + " -> " + rightXPositionFactor + "/" + upperYPositionFactor);
 
 		// create highlighted area
-		final PDGamma pdColor = getColor();
+		final PDGamma pdColor = getColor(context);
 		// final PDFont font = PDType1Font.HELVETICA_BOLD;
 		// float textHeight = font.getFontHeight("Hg".getBytes(), 0, 2);
 		
 		final PDAnnotationTextMarkup txtMark = new PDAnnotationTextMarkup(PDAnnotationTextMarkup.SUB_TYPE_HIGHLIGHT);
 		txtMark.setColour(pdColor);
-		txtMark.setConstantOpacity(opacity);
+		txtMark.setConstantOpacity(style.getOpacity());
 		
 		if(comment != null) {
 			// set comment if available
@@ -95,23 +95,46 @@ public class Marking extends Annotation {
 		}
 
 		// Set the rectangle containing the markup
-		final PDRectangle cropBox = page.getTrimBox();
+		final PDRectangle position = getPosition(context.getTrimBox(page));
+		txtMark.setRectangle(position);
+		txtMark.setQuadPoints(getQuadPoints(position));
 		
+		return txtMark;
+	}
+	
+	@Override
+	void toXFDF(final @Nonnull XfdfWriter writer, final @Nonnull PDRectangle trimBox) throws IOException {
+		final PDRectangle position = getPosition(trimBox);
+
+		writer.writeHighlight(getPage(), style, position, getQuadPoints(position),
+				comment != null ? comment.getText() : null);
+	}
+
+	/**
+	 * Computes the highlighted area on a page with the trim box
+	 *   {@code cropBox}.
+	 */
+	@Nonnull PDRectangle getPosition(final @Nonnull PDRectangle cropBox) {
 		final PDRectangle position = new PDRectangle();
-        position.setLowerLeftX ((float)(cropBox.getLowerLeftX() + leftXPositionFactor * (cropBox.getUpperRightX() - cropBox.getLowerLeftX())));
-        position.setUpperRightX((float)(cropBox.getLowerLeftX() + rightXPositionFactor * (cropBox.getUpperRightX() - cropBox.getLowerLeftX())));
+		position.setLowerLeftX ((float)(cropBox.getLowerLeftX() + leftXPositionFactor * (cropBox.getUpperRightX() - cropBox.getLowerLeftX())));
+		position.setUpperRightX((float)(cropBox.getLowerLeftX() + rightXPositionFactor * (cropBox.getUpperRightX() - cropBox.getLowerLeftX())));
 
-        position.setLowerLeftY ((float)(cropBox.getUpperRightY() - (lowerYPositionFactor + ((upperYPositionFactor - lowerYPositionFactor == 0.0) ? 0.025 : 0.00)) * (cropBox.getUpperRightY() - cropBox.getLowerLeftY())));
-        position.setUpperRightY((float)(cropBox.getUpperRightY() - (upperYPositionFactor) * (cropBox.getUpperRightY() - cropBox.getLowerLeftY())));
+		position.setLowerLeftY ((float)(cropBox.getUpperRightY() - (lowerYPositionFactor + ((upperYPositionFactor - lowerYPositionFactor == 0.0) ? 0.025 : 0.00)) * (cropBox.getUpperRightY() - cropBox.getLowerLeftY())));
+		position.setUpperRightY((float)(cropBox.getUpperRightY() - (upperYPositionFactor) * (cropBox.getUpperRightY() - cropBox.getLowerLeftY())));
 
-		txtMark.setRectangle(position);
+		return position;
+	}
+
+	/**
+	 * Returns the points forming the four corners of {@code position}.
+	 */
+	static @Nonnull float[] getQuadPoints(final @Nonnull PDRectangle position) {
 		// work out the points forming the four corners of the annotations
 		// set out in anti clockwise form (Completely wraps the text)
 		// OK, the below doesn't match that description.
 		// It's what acrobat 7 does and displays properly!
+		final float[] quads = new float[8];
 
-        float[] quads = new float[8];
-        
 		quads[0] = position.getLowerLeftX();   // x1
 		quads[1] = position.getUpperRightY();  // y1
 		quads[2] = position.getUpperRightX();  // x2
@@ -121,9 +144,7 @@ public class Marking extends Annotation {
 		quads[6] = position.getUpperRightX();  // x4
 		quads[7] = position.getLowerLeftY();   // y5
 
-		txtMark.setQuadPoints(quads);
-		
-		return txtMark;
+		return quads;
 	}
 	
 	/**
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.util.PDFTextStripperByArea;
+
+/**
+ * Extracts the text of a PDF-file under markings. The area of a marking is
+ *   the same as the one highlighted by {@link PDFAnnotator}.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class MarkingTextExtractor {
+	/**
+	 * The PDF-file.
+	 */
+	private final File pdfFile;
+
+	public MarkingTextExtractor(final @Nonnull File pdfFile) {
+		this.pdfFile = pdfFile;
+	}
+
+	/**
+	 * Loads the document and extracts the text under each marking. Each page
+	 *   is processed once.
+	 * 
+	 * @return The texts in the order of {@code markings}, empty for markings
+	 *   on missing pages.
+	 */
+	public @Nonnull String[] extract(final @Nonnull List<Marking> markings) throws IOException {
+		final String[] result = new String[markings.size()];
+		Arrays.fill(result, "");
+		
+		if(markings.isEmpty()) {
+			return result;
+		}
+		
+		// process the markings page by page
+		final List<Integer> order = new ArrayList<Integer>(markings.size());
+		for(int index = 0; index < markings.size(); ++index) {
+			order.add(index);
+		}
+		
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(final Integer first, final Integer second) {
+				return markings.get(first).getPage() - markings.get(second).getPage();
+			}
+		});
+		
+		final PDDocument document = PDDocument.load(pdfFile);
+		try {
+			final PageTree pageTree = new PageTree(document);
+			
+			int start = 0;
+			while(start < order.size()) {
+				final int pageNumber = markings.get(order.get(start)).getPage();
+				
+				int end = start + 1;
+				while(end < order.size() && markings.get(order.get(end)).getPage() == pageNumber) {
+					++end;
+				}
+				
+				final PDPage page = pageTree.getPage(pageNumber);
+				if(page != null) {
+					extract(page, markings, order.subList(start, end), result);
+				}
+				
+				start = end;
+			}
+		} finally {
+			document.close();
+		}
+		
+		return result;
+	}
+
+	/**
+	 * Extracts the text under the markings with the given {@code indices}, all
+	 *   of them on {@code page}.
+	 */
+	private void extract(final @Nonnull PDPage page, final @Nonnull List<Marking> markings,
+			final @Nonnull List<Integer> indices, final @Nonnull String[] result) throws IOException {
+		final PDRectangle trimBox = page.getTrimBox();
+		final PDRectangle mediaBox = page.findMediaBox() != null ? page.findMediaBox() : trimBox;
+		
+		// the text positions are measured from the upper edge of the page
+		final PDFTextStripperByArea stripper = new PDFTextStripperByArea();
+		for(final int index : indices) {
+			final PDRectangle position = markings.get(index).getPosition(trimBox);
+			final float left = Math.min(position.getLowerLeftX(), position.getUpperRightX());
+			final float right = Math.max(position.getLowerLeftX(), position.getUpperRightX());
+			final float bottom = Math.min(position.getLowerLeftY(), position.getUpperRightY());
+			final float top = Math.max(position.getLowerLeftY(), position.getUpperRightY());
+			
+			stripper.addRegion(Integer.toString(index),
+					new Rectangle2D.Float(left, mediaBox.getHeight() - top, right - left, top - bottom));
+		}
+		
+		stripper.extractRegions(page);
+		
+		for(final int index : indices) {
+			result[index] = stripper.getTextForRegion(Integer.toString(index)).trim().replaceAll("\\s+", " ");
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the comment matcher used by {@link AnnotationStore} with the
+ *   nested hash map merge it replaced. Markings and comments are placed at
+ *   random positions, half of the comments sit on the upper right corner of
+ *   a marking and a tenth of those is off by 1e-9, as produced by rounding.
+ *   Started by {@code matcher-benchmark.sh}.
+ * 
+ * The old merge removed the matched comments from the annotation list with
+ *   {@code List.removeAll} and a linked list, which is quadratic. The removal
+ *   is left out here, so only the matching itself is compared.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class MatcherBenchmark {
+	private static final int WARM_UP_RUNS = 5;
+	private static final int RUNS = 10;
+	private static final long SEED = 4711;
+
+	private final int numberOfMarkings;
+	private final int numberOfComments;
+	private final int numberOfPages;
+
+	private final int[] markingPages;
+	private final double[] markingX1, markingY1, markingX2, markingY2;
+	private final int[] commentPages;
+	private final double[] commentX, commentY;
+
+	public static void main(final String[] args) {
+		if (args.length == 3) {
+			new MatcherBenchmark(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2])).run();
+		} else {
+			new MatcherBenchmark(5000, 2500, 2000).run();
+			new MatcherBenchmark(200000, 100000, 2000).run();
+		}
+	}
+
+	private MatcherBenchmark(final int numberOfMarkings, final int numberOfComments, final int numberOfPages) {
+		this.numberOfMarkings = numberOfMarkings;
+		this.numberOfComments = numberOfComments;
+		this.numberOfPages = numberOfPages;
+
+		final Random random = new Random(SEED);
+		markingPages = new int[numberOfMarkings];
+		markingX1 = new double[numberOfMarkings];
+		markingY1 = new double[numberOfMarkings];
+		markingX2 = new double[numberOfMarkings];
+		markingY2 = new double[numberOfMarkings];
+
+		for (int index = 0; index < numberOfMarkings; ++index) {
+			markingPages[index] = random.nextInt(numberOfPages);
+			markingX1[index] = 0.1 + 0.4 * random.nextDouble();
+			markingY1[index] = 0.1 + 0.4 * random.nextDouble();
+			markingX2[index] = markingX1[index] + 0.3;
+			markingY2[index] = markingY1[index] + 0.02;
+		}
+
+		commentPages = new int[numberOfComments];
+		commentX = new double[numberOfComments];
+		commentY = new double[numberOfComments];
+
+		for (int index = 0; index < numberOfComments; ++index) {
+			if (index % 2 == 0 && numberOfMarkings > 0) {
+				final int marking = random.nextInt(numberOfMarkings);
+				final double offset = random.nextInt(10) == 0 ? 1e-9 : 0;
+
+				commentPages[index] = markingPages[marking];
+				commentX[index] = markingX2[marking] + offset;
+				commentY[index] = markingY2[marking];
+			} else {
+				commentPages[index] = random.nextInt(numberOfPages);
+				commentX[index] = 0.1 + 0.8 * random.nextDouble();
+				commentY[index] = 0.1 + 0.8 * random.nextDouble();
+			}
+		}
+	}
+
+	private void run() {
+		System.out.println(numberOfMarkings + " markings, " + numberOfComments + " comments on "
+				+ numberOfPages + " pages:");
+
+		final long[] oldTimes = new long[RUNS];
+		final long[] newTimes = new long[RUNS];
+		int oldMerged = 0, newMerged = 0;
+
+		for (int run = -WARM_UP_RUNS; run < RUNS; ++run) {
+			final List<Annotation> annotations = createAnnotations();
+			long start = System.nanoTime();
+			oldMerged = mergeOld(annotations);
+			final long oldTime = System.nanoTime() - start;
+
+			final AnnotationStore store = fillStore();
+			start = System.nanoTime();
+			store.onEnd();
+			final long newTime = System.nanoTime() - start;
+			newMerged = countMerged(store);
+
+			if (run >= 0) {
+				oldTimes[run] = oldTime;
+				newTimes[run] = newTime;
+			}
+		}
+
+		print("old hash map merge", oldTimes, oldMerged);
+		print("comment matcher", newTimes, newMerged);
+	}
+
+	private List<Annotation> createAnnotations() {
+		final List<Annotation> annotations = new ArrayList<Annotation>(numberOfMarkings + numberOfComments);
+
+		for (int index = 0; index < numberOfMarkings; ++index) {
+			annotations.add(new Marking(Settings.DEFAULT, markingPages[index], markingX1[index], markingY1[index],
+					markingPages[index], markingX2[index], markingY2[index]));
+		}
+
+		for (int index = 0; index < numberOfComments; ++index) {
+			annotations.add(new Comment(Settings.DEFAULT, commentPages[index], commentX[index], commentY[index], "Note"));
+		}
+
+		return annotations;
+	}
+
+	private AnnotationStore fillStore() {
+		final AnnotationStore store = new AnnotationStore(Settings.DEFAULT);
+
+		store.onMarkingCount(numberOfMarkings);
+		for (int index = 0; index < numberOfMarkings; ++index) {
+			store.onMarking(markingPages[index], markingX1[index], markingY1[index],
+					markingPages[index], markingX2[index], markingY2[index]);
+		}
+
+		store.onCommentCount(numberOfComments);
+		for (int index = 0; index < numberOfComments; ++index) {
+			store.onComment(commentPages[index], commentX[index], commentY[index], "Note");
+		}
+
+		return store;
+	}
+
+	private static int countMerged(final AnnotationStore store) {
+		int result = 0;
+		for (int index = 0; index < store.getNumberOfMarkings(); ++index) {
+			if (store.getMarkingComment(index) != AnnotationStore.NO_COMMENT) {
+				++result;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * The matching of the old merge.
+	 * 
+	 * @return The number of merged comments.
+	 */
+	private static int mergeOld(final List<Annotation> annotations) {
+		final Map<Integer, Map<Double, Map<Double, List<Comment>>>> comments = new HashMap<Integer, Map<Double, Map<Double, List<Comment>>>>();
+
+		for (final Annotation annotation : annotations) {
+			if (!(annotation instanceof Comment)) {
+				continue;
+			}
+
+			final Comment comment = (Comment) annotation;
+
+			Map<Double, Map<Double, List<Comment>>> pageMap = comments.get(comment.getPage());
+			if (pageMap == null) {
+				pageMap = new HashMap<Double, Map<Double, List<Comment>>>();
+				comments.put(comment.getPage(), pageMap);
+			}
+
+			Map<Double, List<Comment>> xFactorMap = pageMap.get(comment.getXPositionFactor());
+			if (xFactorMap == null) {
+				xFactorMap = new HashMap<Double, List<Comment>>();
+				pageMap.put(comment.getXPositionFactor(), xFactorMap);
+			}
+
+			List<Comment> yFactorList = xFactorMap.get(comment.getYPositionFactor());
+			if (yFactorList == null) {
+				yFactorList = new LinkedList<Comment>();
+				xFactorMap.put(comment.getYPositionFactor(), yFactorList);
+			}
+
+			yFactorList.add(comment);
+		}
+
+		final Set<Annotation> killSet = Collections.newSetFromMap(new IdentityHashMap<Annotation, Boolean>());
+
+		for (final Annotation annotation : annotations) {
+			if (!(annotation instanceof Marking)) {
+				continue;
+			}
+
+			final Marking marking = (Marking) annotation;
+
+			try {
+				final List<Comment> commentList = comments
+						.get(marking.getPage()).get(marking.getRightXPositionFactor())
+						.get(marking.getUpperYPositionFactor());
+				final Comment comment = commentList.remove(0);
+
+				marking.addComment(comment);
+				killSet.add(comment);
+			} catch (NullPointerException e) {
+				// no matching element found
+			} catch (IndexOutOfBoundsException e) {
+				// all comments at this position are taken
+			}
+		}
+
+		return killSet.size();
+	}
+
+	private static void print(final String name, final long[] times, final int merged) {
+		final long[] sorted = times.clone();
+		Arrays.sort(sorted);
+
+		System.out.printf("  %-20s min %8.1f ms  median %8.1f ms  %7d merged%n", name,
+				sorted[0] / 1e6, sorted[sorted.length / 2] / 1e6, merged);
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link PdrVisitor} that writes each record as a note as soon as it is
+ *   decoded, without collecting the annotations or opening the PDF file.
+ *   Page numbers are one-based, positions are the factors stored in the PDR
+ *   file.
+ * 
+ * @author Bernhard J. Berger
+ */
+public class NotesWriter implements PdrVisitor {
+	/**
+	 * Supported output formats.
+	 */
+	public static enum Format {
+		/**
+		 * One JSON object per note and line.
+		 */
+		JSONL,
+		
+		/**
+		 * One row per note with a header line.
+		 */
+		CSV,
+		
+		/**
+		 * A list of notes for each book.
+		 */
+		MARKDOWN;
+		
+		/**
+		 * @return The text to write before all notes.
+		 */
+		public @Nonnull String getHeader() {
+			return this == CSV ? "book,type,page,x,y,end_page,end_x,end_y,text\n" : "";
+		}
+	}
+	
+	/**
+	 * Target of the notes.
+	 */
+	private final Appendable out;
+	
+	/**
+	 * The output format.
+	 */
+	private final Format format;
+	
+	/**
+	 * Name of the book the notes belong to.
+	 */
+	private final String book;
+	
+	/**
+	 * Number of notes written so far.
+	 */
+	private int numberOfNotes = 0;
+	
+	/**
+	 * The first error while writing.
+	 */
+	private IOException error = null;
+
+	/**
+	 * Creates a writer for the notes of {@code book}.
+	 */
+	public NotesWriter(final @Nonnull Appendable out, final @Nonnull Format format, final @Nonnull String book) {
+		this.out = out;
+		this.format = format;
+		this.book = book;
+	}
+	
+	/**
+	 * @return The number of notes written.
+	 */
+	public @Nonnegative int getNumberOfNotes() {
+		return numberOfNotes;
+	}
+	
+	/**
+	 * @throws IOException The first error that occurred while writing.
+	 */
+	public void checkError() throws IOException {
+		if(error != null) {
+			throw error;
+		}
+	}
+
+	public void onHeader(final int lastOpenedPage) {
+		// nothing to do
+	}
+
+	public void onBookmarkCount(final @Nonnegative int numberOfBookmarks) {
+		// nothing to do
+	}
+
+	public void onBookmark(final @Nonnegative int page) {
+		switch(format) {
+		case JSONL:
+			writeNote("{\"book\": " + Quoting.quoteJSON(book) + ", \"type\": \"bookmark\", \"page\": " + (page + 1) + "}\n");
+			break;
+		case CSV:
+			writeNote(Quoting.quoteCSV(book) + ",bookmark," + (page + 1) + ",,,,,,\n");
+			break;
+		case MARKDOWN:
+			writeNote("- Bookmark on page " + (page + 1) + "\n");
+			break;
+		}
+	}
+
+	public void onMarkingCount(final @Nonnegative int numberOfMarkings) {
+		// nothing to do
+	}
+
+	public void onMarking(final @Nonnegative int page1, final double x1, final double y1,
+			              final @Nonnegative int page2, final double x2, final double y2) {
+		switch(format) {
+		case JSONL:
+			writeNote("{\"book\": " + Quoting.quoteJSON(book) + ", \"type\": \"marking\", \"page\": " + (page1 + 1)
+					+ ", \"x\": " + format(x1) + ", \"y\": " + format(y1) + ", \"end_page\": " + (page2 + 1)
+					+ ", \"end_x\": " + format(x2) + ", \"end_y\": " + format(y2) + "}\n");
+			break;
+		case CSV:
+			writeNote(Quoting.quoteCSV(book) + ",marking," + (page1 + 1) + "," + format(x1) + "," + format(y1)
+					+ "," + (page2 + 1) + "," + format(x2) + "," + format(y2) + ",\n");
+			break;
+		case MARKDOWN:
+			writeNote("- Marking on page " + (page1 + 1) + (page1 == page2 ? "" : " to page " + (page2 + 1)) + "\n");
+			break;
+		}
+	}
+
+	public void onCommentCount(final @Nonnegative int numberOfComments) {
+		// nothing to do
+	}
+
+	public void onComment(final @Nonnegative int page, final double x, final double y,
+			              final @Nonnull String text) {
+		switch(format) {
+		case JSONL:
+			writeNote("{\"book\": " + Quoting.quoteJSON(book) + ", \"type\": \"comment\", \"page\": " + (page + 1)
+					+ ", \"x\": " + format(x) + ", \"y\": " + format(y) + ", \"text\": " + Quoting.quoteJSON(text) + "}\n");
+			break;
+		case CSV:
+			writeNote(Quoting.quoteCSV(book) + ",comment," + (page + 1) + "," + format(x) + "," + format(y) + ",,,,"
+					+ Quoting.quoteCSV(text) + "\n");
+			break;
+		case MARKDOWN:
+			writeNote("- Comment on page " + (page + 1) + ": " + text.replace("\n", "\n  ") + "\n");
+			break;
+		}
+	}
+
+	public void onEnd() {
+		if(format == Format.MARKDOWN && numberOfNotes > 0) {
+			write("\n");
+		}
+	}
+	
+	/**
+	 * Writes a note. In Markdown the first note of a book is preceded by the
+	 *   name of the book, so books without notes do not show up.
+	 */
+	private void writeNote(final @Nonnull String note) {
+		if(format == Format.MARKDOWN && numberOfNotes == 0) {
+			write("## " + book + "\n\n");
+		}
+		
+		write(note);
+		numberOfNotes += 1;
+	}
+	
+	private void write(final @Nonnull String text) {
+		if(error != null) {
+			return;
+		}
+		
+		try {
+			out.append(text);
+		} catch(IOException e) {
+			error = e;
+		}
+	}
+
+	private static @Nonnull String format(final double value) {
+		return Double.toString(value);
+	}
+}
@@ -17,19 +17,39 @@ package de.berber.kindle.annotator.lib;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.List;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
 
-import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.log4j.Logger;
 import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.io.RandomAccess;
+import org.apache.pdfbox.io.RandomAccessFile;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 
 /**
  * The PDF annotator annotates a single PDF-file with the contents found in its
- *   associated PDR-file.
+ *   associated PDR-file. The work can be done at once using {@link #run()} or
+ *   step by step, possibly by different threads, in the order
+ *   {@link #readAnnotations()}, {@link #loadDocument()}, {@link #annotate()}
+ *   and {@link #write()}. Either way {@link #close()} releases the document.
+ * 
+ * If {@link Settings#isXfdfOutput()} is set the document is not loaded. The
+ *   annotations are written to an XFDF file next to the output file and only
+ *   the page boxes are read from the PDF-file.
  * 
  * @author Bernhard J. Berger
  */
@@ -38,6 +58,50 @@ public class PDFAnnotator {
 	 * The log instance
 	 */
 	private final static Logger LOG = Logger.getLogger(PDFAnnotator.class);
+
+	/**
+	 * Estimated heap bytes per byte of the PDF-file. Loaded documents need
+	 *   about four times their file size, in low-memory mode the stream
+	 *   contents are kept in a scratch file.
+	 */
+	private static final int HEAP_PER_PDF_BYTE = 4;
+	private static final int LOW_MEMORY_HEAP_PER_PDF_BYTE = 1;
+
+	/**
+	 * Estimated heap bytes per added annotation.
+	 */
+	private static final int HEAP_PER_ANNOTATION = 2 * 1024;
+
+	/**
+	 * Estimated heap bytes of an empty document.
+	 */
+	private static final long BASE_HEAP = 1024 * 1024;
+
+	/**
+	 * Scratch files that have not been closed yet. They are deleted when the
+	 *   JVM exits in the middle of a conversion. Unlike
+	 *   {@link File#deleteOnExit()} closed files leave the set, so long
+	 *   running daemons do not collect an entry per conversion.
+	 */
+	private static final class OpenScratchFiles {
+		private static final Set<File> FILES = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+		static {
+			Runtime.getRuntime().addShutdownHook(new Thread("scratch-cleanup") {
+				@Override
+				public void run() {
+					for(final File file : FILES) {
+						file.delete();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Encoding of XFDF files.
+	 */
+	private static final Charset XFDF_CHARSET = Charset.forName("UTF-8");
 	
 	/**
 	 * Input PDF-file.
@@ -50,64 +114,233 @@ public class PDFAnnotator {
 	private final File outFile;
 	
 	/**
-	 * Configuration object.
+	 * The annotator settings.
 	 */
-	private final CompositeConfiguration cc;
+	private final Settings settings;
+
+	/**
+	 * Annotations read from the PDR-file.
+	 */
+	private AnnotationStore annotations = null;
+
+	/**
+	 * Number of annotations by type, available after reading them.
+	 */
+	private int numberOfBookmarks = 0;
+	private int numberOfMarkings = 0;
+	private int numberOfComments = 0;
+
+	/**
+	 * The loaded PDF document.
+	 */
+	private PDDocument document = null;
+
+	/**
+	 * Change tracking if the document is saved incrementally.
+	 */
+	private IncrementalUpdate update = null;
+
+	/**
+	 * Scratch file buffering the stream contents in low-memory mode.
+	 */
+	private File scratchFile = null;
+	private RandomAccess scratch = null;
+
+	/**
+	 * The page boxes of the document if an XFDF file is written.
+	 */
+	private PageBoxReader pageBoxes = null;
+
+	/**
+	 * Contents of the XFDF file, available after {@link #annotate()}.
+	 */
+	private String xfdf = null;
 
 	/**
 	 * Creates a new PDF annotator object and sets its data.
 	 */
-	public PDFAnnotator(final CompositeConfiguration cc, final String pdfFilename, final String outFilename) {
+	public PDFAnnotator(final Settings settings, final String pdfFilename, final String outFilename) {
 		this.pdfFile = new File(pdfFilename);
 		this.outFile = new File(outFilename);
-		this.cc = cc;
+		this.settings = settings;
 		
 		
 		assert pdfFile.exists() && pdfFile.isFile() && pdfFile.canRead();
 		assert !outFile.exists() || outFile.canWrite();
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Annotates the PDF file in one go.
+	 * 
+	 * @return {@code false} if an error occurred.
+	 */
 	public boolean run() {
-		// read all annotations
-		final List<Annotation> annotations = new KindleAnnotationReader(cc, pdfFile).read();
+		try {
+			if(!readAnnotations()) {
+				return true;
+			}
+			
+			if(!loadDocument()) {
+				return false;
+			}
+			
+			annotate();
+			
+			return write();
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * First step: reads all annotations of the PDR file.
+	 * 
+	 * @return {@code true} if there are annotations to add.
+	 */
+	public boolean readAnnotations() {
+		annotations = new AnnotationStore(settings);
+		new KindleAnnotationReader(settings, pdfFile).read(annotations);
+		
+		numberOfBookmarks = annotations.getNumberOfBookmarks();
+		numberOfMarkings = annotations.getNumberOfMarkings();
+		numberOfComments = annotations.getNumberOfComments();
+		
+		return !annotations.isEmpty();
+	}
+
+	/**
+	 * @return The number of bookmarks read by {@link #readAnnotations()}.
+	 */
+	public @Nonnegative int getNumberOfBookmarks() {
+		return numberOfBookmarks;
+	}
+
+	/**
+	 * @return The number of markings read by {@link #readAnnotations()}.
+	 */
+	public @Nonnegative int getNumberOfMarkings() {
+		return numberOfMarkings;
+	}
+
+	/**
+	 * @return The number of comments read by {@link #readAnnotations()}.
+	 */
+	public @Nonnegative int getNumberOfComments() {
+		return numberOfComments;
+	}
+
+	/**
+	 * Estimates the heap needed to load and annotate the document. The
+	 *   estimate is available after {@link #readAnnotations()}.
+	 * 
+	 * @return The estimated number of bytes.
+	 */
+	public long getEstimatedMemory() {
+		assert annotations != null;
 		
-		if(annotations.size() == 0) {
-			return true;
+		final long numberOfAnnotations = (long) numberOfBookmarks + numberOfMarkings + numberOfComments;
+		if(settings.isXfdfOutput()) {
+			return BASE_HEAP + numberOfAnnotations * HEAP_PER_ANNOTATION;
 		}
+
+		final int heapPerPdfByte = settings.isLowMemory() ? LOW_MEMORY_HEAP_PER_PDF_BYTE : HEAP_PER_PDF_BYTE;
 		
-		PDDocument document = null;
-		// annotate pdf
-		try {
-			 document = PDDocument.load(pdfFile);
+		return BASE_HEAP + pdfFile.length() * heapPerPdfByte + numberOfAnnotations * HEAP_PER_ANNOTATION;
+	}
 
-			//inDocument.decrypt(pass);
-			// get outline for bookmarks
-			PDDocumentOutline documentOutline = document.getDocumentCatalog().getDocumentOutline();
-			
-			if(documentOutline == null) {
-				// if there is no document outline we have to create a new one.
-				documentOutline = new PDDocumentOutline();
-				document.getDocumentCatalog().setDocumentOutline(documentOutline);
-			}
+	/**
+	 * Second step: loads the PDF document.
+	 * 
+	 * @return {@code false} if an error occurred.
+	 */
+	public boolean loadDocument() {
+		assert annotations != null && document == null && pageBoxes == null;
 		
-			assert documentOutline != null;
+		try {
+			if(settings.isXfdfOutput()) {
+				// the document stays untouched, only its page boxes are needed
+				pageBoxes = new PageBoxReader(pdfFile);
+				return true;
+			}
 			
-			// convert annotations for each page
-			int pageNumber = 0;
-			for(PDPage page : (List<PDPage>)document.getDocumentCatalog().getAllPages()) {
-				for(final Annotation dxAnn : annotations) {
-					dxAnn.toPDAnnotation(pageNumber, documentOutline, page);
-				}
-				
-				pageNumber++;
+			if(settings.isLowMemory()) {
+				// stream contents are kept in a scratch file instead of the heap
+				scratchFile = File.createTempFile("kindle-annotator", ".scratch", getScratchDirectory());
+				OpenScratchFiles.FILES.add(scratchFile);
+				scratch = new RandomAccessFile(scratchFile, "rw");
+				document = PDDocument.load(pdfFile, scratch);
+			} else {
+				document = PDDocument.load(pdfFile);
 			}
 
-			//inDocument.setAllSecurityToBeRemoved(true);
-			document.save(outFile.toString());	
+			// keep the original bytes and append the changes if possible
+			update = settings.isIncrementalUpdate() ? IncrementalUpdate.prepare(document, pdfFile) : null;
 		} catch(FileNotFoundException e) {
 			LOG.error("Could not find input file " + pdfFile);
 			return false;
+		} catch(IOException e) {
+			LOG.error("IOError while reading input file " + pdfFile);
+			return false;
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Third step: adds the annotations to the loaded document.
+	 */
+	public void annotate() {
+		assert document != null || pageBoxes != null;
+		
+		if(pageBoxes != null) {
+			xfdf = createXfdf();
+			annotations = null;
+			return;
+		}
+		
+		//inDocument.decrypt(pass);
+		final AnnotationContext context = new AnnotationContext(document, update);
+		
+		// convert annotations for each annotated page
+		final PageBuckets buckets = new PageBuckets(annotations, context.getNumberOfPages());
+		
+		for(int pageNumber = 0; pageNumber < context.getNumberOfPages(); ++pageNumber) {
+			if(buckets.isEmpty(pageNumber)) {
+				continue;
+			}
+			
+			final PDPage page = context.getPage(pageNumber);
+			if(page == null) {
+				continue;
+			}
+			
+			for(final Annotation dxAnn : buckets.getAnnotations(pageNumber)) {
+				dxAnn.toPDAnnotation(pageNumber, context, page);
+			}
+		}
+		
+		// the annotations are part of the document now
+		annotations = null;
+	}
+
+	/**
+	 * Fourth step: writes the annotated document.
+	 * 
+	 * @return {@code false} if an error occurred.
+	 */
+	public boolean write() {
+		assert document != null || pageBoxes != null;
+		
+		if(pageBoxes != null) {
+			return writeXfdf();
+		}
+		
+		try {
+			//inDocument.setAllSecurityToBeRemoved(true);
+			// an incremental update falls back to a full save if necessary
+			if(update == null || !update.write(outFile)) {
+				document.save(outFile.toString());
+			}
 		} catch(IOException e) {
 			LOG.error("IOError while writing result file " + outFile);
 			return false;
@@ -115,16 +348,155 @@ public class PDFAnnotator {
 			LOG.error("PDFBox error while storing result file " + outFile);
 			return false;
 		}
-		finally {
-			if(document != null) {
-				try {
-					document.close();
-				} catch (IOException e) {
-					LOG.error("Error while closing PDF document " + pdfFile);
+		
+		return true;
+	}
+
+	/**
+	 * Releases the document and the scratch file. Has to be called after the
+	 *   last step, even if a step failed.
+	 */
+	public void close() {
+		if(document != null) {
+			try {
+				document.close();
+			} catch (IOException e) {
+				LOG.error("Error while closing PDF document " + pdfFile);
+			}
+		} else if(scratch != null) {
+			try {
+				scratch.close();
+			} catch (IOException e) {
+				LOG.error("Error while closing scratch file " + scratchFile);
+			}
+		}
+		
+		if(scratchFile != null) {
+			if(!scratchFile.delete()) {
+				LOG.warn("Could not delete scratch file " + scratchFile);
+			}
+			OpenScratchFiles.FILES.remove(scratchFile);
+		}
+		
+		if(pageBoxes != null) {
+			pageBoxes.close();
+		}
+		
+		annotations = null;
+		pageBoxes = null;
+		xfdf = null;
+		document = null;
+		update = null;
+		scratch = null;
+		scratchFile = null;
+	}
+
+	/**
+	 * Converts the annotations to the contents of an XFDF file.
+	 * 
+	 * @return The contents or {@code null} if an error occurred.
+	 */
+	private String createXfdf() {
+		final StringWriter buffer = new StringWriter();
+		
+		try {
+			final XfdfWriter writer = new XfdfWriter(buffer, getXfdfReference());
+			final PageBuckets buckets = new PageBuckets(annotations, pageBoxes.getNumberOfPages());
+			
+			for(int pageNumber = 0; pageNumber < pageBoxes.getNumberOfPages(); ++pageNumber) {
+				if(buckets.isEmpty(pageNumber)) {
+					continue;
+				}
+				
+				final PDRectangle trimBox = pageBoxes.getTrimBox(pageNumber);
+				if(trimBox == null) {
+					continue;
 				}
+				
+				for(final Annotation annotation : buckets.getAnnotations(pageNumber)) {
+					annotation.toXFDF(writer, trimBox);
+				}
+			}
+			
+			writer.finish();
+		} catch(IOException e) {
+			LOG.error("IOError while reading input file " + pdfFile);
+			return null;
+		}
+		
+		return buffer.toString();
+	}
+
+	/**
+	 * Writes the XFDF file created by {@link #annotate()}.
+	 * 
+	 * @return {@code false} if an error occurred.
+	 */
+	private boolean writeXfdf() {
+		if(xfdf == null) {
+			return false;
+		}
+		
+		final File xfdfFile = getXfdfFile(outFile);
+		try {
+			final Writer output = new OutputStreamWriter(new FileOutputStream(xfdfFile), XFDF_CHARSET);
+			try {
+				output.write(xfdf);
+			} finally {
+				output.close();
 			}
+		} catch(IOException e) {
+			LOG.error("IOError while writing result file " + xfdfFile);
+			return false;
 		}
 		
 		return true;
 	}
+
+	/**
+	 * Returns the XFDF file written next to {@code outFile}. The extension
+	 *   <code>.pdf</code> is replaced by <code>.xfdf</code>.
+	 */
+	public static @Nonnull File getXfdfFile(final @Nonnull File outFile) {
+		final String name = outFile.getName();
+		final String baseName = name.toLowerCase(Locale.ROOT).endsWith(".pdf")
+				? name.substring(0, name.length() - 4) : name;
+		
+		return new File(outFile.getAbsoluteFile().getParentFile(), baseName + ".xfdf");
+	}
+
+	/**
+	 * Returns the reference from the XFDF file to the input file, relative to
+	 *   the XFDF file if possible.
+	 */
+	private @Nonnull String getXfdfReference() {
+		final Path pdfPath = pdfFile.getAbsoluteFile().toPath().normalize();
+		
+		try {
+			final Path directory = getXfdfFile(outFile).getParentFile().toPath().normalize();
+			
+			return directory.relativize(pdfPath).toString().replace(File.separatorChar, '/');
+		} catch(IllegalArgumentException e) {
+			// different roots
+			return pdfPath.toString().replace(File.separatorChar, '/');
+		}
+	}
+
+	/**
+	 * Returns the directory for scratch files or <code>null</code> if the
+	 *   default temporary directory shall be used.
+	 */
+	private File getScratchDirectory() {
+		final File directory = settings.getScratchDirectory();
+		if(directory == null) {
+			return null;
+		}
+		
+		if(!directory.isDirectory() || !directory.canWrite()) {
+			LOG.warn("Scratch directory " + directory + " is not writable, using default temporary directory");
+			return null;
+		}
+		
+		return directory;
+	}
 }
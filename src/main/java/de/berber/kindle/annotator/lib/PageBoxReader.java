@@ -0,0 +1,554 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.pdfparser.BaseParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * Reads the page boxes of a PDF file without loading the document. Only the
+ *   cross reference table, the document catalog and the page tree nodes on
+ *   the way to a requested page are parsed, all other objects are never
+ *   touched.
+ * 
+ * Files using cross reference streams or having a broken cross reference
+ *   table are loaded completely instead.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class PageBoxReader implements PageTree.ObjectLoader {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(PageBoxReader.class);
+
+	/**
+	 * Size of an entry of a cross reference table.
+	 */
+	private static final int ENTRY_SIZE = 20;
+
+	/**
+	 * Number of bytes read for a subsection header.
+	 */
+	private static final int HEADER_SIZE = 64;
+
+	/**
+	 * Size of the buffered part of the file. The objects of the page tree are
+	 *   usually stored close to each other.
+	 */
+	private static final int WINDOW_SIZE = 64 * 1024;
+
+	/**
+	 * Maximal number of bytes handed to the parser at once. The parser reads
+	 *   ahead, but page tree objects are small.
+	 */
+	private static final int CHUNK_SIZE = 1024;
+
+	private static final COSName XREF_STM = COSName.getPDFName("XRefStm");
+
+	/**
+	 * A subsection of a cross reference table.
+	 */
+	private static final class Subsection {
+		/**
+		 * Number of the first object in the subsection.
+		 */
+		private final long first;
+
+		/**
+		 * Number of objects in the subsection.
+		 */
+		private final long count;
+
+		/**
+		 * Offset of the first entry.
+		 */
+		private final long offset;
+
+		/**
+		 * Size of an entry, broken files use 19 instead of 20 bytes.
+		 */
+		private final int entrySize;
+
+		private Subsection(final long first, final long count, final long offset, final int entrySize) {
+			this.first = first;
+			this.count = count;
+			this.offset = offset;
+			this.entrySize = entrySize;
+		}
+	}
+
+	/**
+	 * Reads the file through the window starting at an offset.
+	 */
+	private final class WindowInputStream extends InputStream {
+		private long position;
+
+		private WindowInputStream(final long position) {
+			this.position = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] buffer = new byte[1];
+
+			return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			final int result = readWindow(position, buffer, offset, Math.min(length, CHUNK_SIZE));
+			if (result > 0) {
+				position += result;
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Parses single objects of the file.
+	 */
+	private final class ObjectParser extends BaseParser {
+		private ObjectParser(final long offset) throws IOException {
+			super(new WindowInputStream(offset));
+			setDocument(objects);
+		}
+
+		/**
+		 * Parses the trailer dictionary following the keyword.
+		 */
+		private @Nonnull COSDictionary readTrailer() throws IOException {
+			skipSpaces();
+			readExpectedString("trailer");
+			skipSpaces();
+
+			return parseCOSDictionary();
+		}
+
+		/**
+		 * Parses the indirect object {@code number}.
+		 */
+		private @Nullable COSBase readObject(final long number) throws IOException {
+			final int actualNumber = readInt();
+			if (actualNumber != number) {
+				throw new IOException("Expected object " + number + " but found object " + actualNumber);
+			}
+
+			readInt(); // generation
+			skipSpaces();
+			readExpectedString("obj");
+
+			return parseDirObject();
+		}
+	}
+
+	/**
+	 * The PDF file.
+	 */
+	private final File pdfFile;
+
+	/**
+	 * The opened file or {@code null} if the document is loaded.
+	 */
+	private RandomAccessFile file = null;
+
+	/**
+	 * Buffered part of the file starting at {@link #windowStart}.
+	 */
+	private final byte[] window = new byte[WINDOW_SIZE];
+	private long windowStart = 0;
+	private int windowLength = 0;
+
+	/**
+	 * Pool of the parsed objects.
+	 */
+	private COSDocument objects = null;
+
+	/**
+	 * Subsections of all cross reference tables, newest first.
+	 */
+	private final List<Subsection> subsections = new ArrayList<Subsection>();
+
+	/**
+	 * The loaded document if the file cannot be read lazily.
+	 */
+	private PDDocument document = null;
+
+	/**
+	 * The page tree of the document.
+	 */
+	private PageTree pageTree = null;
+
+	/**
+	 * Set if an object could not be read.
+	 */
+	private boolean failed = false;
+
+	/**
+	 * Opens {@code pdfFile} and reads its page tree root.
+	 */
+	PageBoxReader(final @Nonnull File pdfFile) throws IOException {
+		this.pdfFile = pdfFile;
+
+		final long xref = IncrementalUpdate.findXref(pdfFile);
+		if (xref >= 0) {
+			try {
+				openLazily(xref);
+				return;
+			} catch (IOException e) {
+				LOG.info("Cannot read cross reference table of " + pdfFile + ", loading the document: " + e.getMessage());
+				close();
+			}
+		}
+
+		loadDocument();
+	}
+
+	/**
+	 * @return The number of pages in the document.
+	 */
+	@Nonnegative int getNumberOfPages() {
+		return pageTree.getNumberOfPages();
+	}
+
+	/**
+	 * Looks up the trim box of the page with the zero-based index
+	 *   {@code pageNumber}. Like {@link org.apache.pdfbox.pdmodel.PDPage#getTrimBox()}
+	 *   the lookup falls back to the inherited crop and media boxes.
+	 * 
+	 * @return The trim box or {@code null} if there is no such page.
+	 */
+	@Nullable PDRectangle getTrimBox(final @Nonnegative int pageNumber) throws IOException {
+		final PDRectangle result = findTrimBox(pageNumber);
+
+		if (result != null || !failed || document != null) {
+			return result;
+		}
+
+		LOG.info("Cross reference table of " + pdfFile + " is broken, loading the document");
+		close();
+		loadDocument();
+
+		return findTrimBox(pageNumber);
+	}
+
+	/**
+	 * Releases the file or the loaded document.
+	 */
+	void close() {
+		try {
+			if (file != null) {
+				file.close();
+			}
+
+			if (objects != null) {
+				objects.close();
+			}
+
+			if (document != null) {
+				document.close();
+			}
+		} catch (IOException e) {
+			LOG.error("Error while closing PDF document " + pdfFile);
+		}
+
+		file = null;
+		objects = null;
+		document = null;
+		pageTree = null;
+		subsections.clear();
+	}
+
+	public @Nullable COSBase load(final @Nonnull COSObject reference) throws IOException {
+		try {
+			final long number = reference.getObjectNumber().longValue();
+			final long offset = getObjectOffset(number);
+
+			return offset < 0 ? null : new ObjectParser(offset).readObject(number);
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the cross reference tables starting with the one at {@code xref}
+	 *   and the root of the page tree.
+	 */
+	private void openLazily(final long xref) throws IOException {
+		file = new RandomAccessFile(pdfFile, "r");
+		windowLength = 0;
+		objects = new COSDocument(new RandomAccessBuffer(), false);
+
+		COSBase root = null;
+		final Set<Long> visited = new HashSet<Long>();
+
+		for (long offset = xref; offset >= 0 && visited.add(offset);) {
+			final COSDictionary trailer = readXrefTable(offset);
+
+			if (trailer.getItem(XREF_STM) != null) {
+				throw new IOException("cross reference streams are not supported");
+			}
+
+			if (root == null) {
+				root = trailer.getItem(COSName.ROOT);
+			}
+
+			final COSBase previous = trailer.getItem(COSName.PREV);
+			offset = previous instanceof COSNumber ? ((COSNumber) previous).longValue() : -1;
+		}
+
+		final COSBase catalog = dereference(root);
+		final COSBase pages = catalog instanceof COSDictionary
+				? dereference(((COSDictionary) catalog).getItem(COSName.PAGES)) : null;
+
+		if (!(pages instanceof COSDictionary)) {
+			throw new IOException("missing page tree");
+		}
+
+		pageTree = new PageTree((COSDictionary) pages, this);
+	}
+
+	/**
+	 * Loads the complete document.
+	 */
+	private void loadDocument() throws IOException {
+		document = PDDocument.load(pdfFile);
+		pageTree = new PageTree(document);
+	}
+
+	/**
+	 * Collects the subsections of the cross reference table at
+	 *   {@code offset}.
+	 * 
+	 * @return The trailer of the table.
+	 */
+	private @Nonnull COSDictionary readXrefTable(final long offset) throws IOException {
+		long position = offset;
+
+		final byte[] keyword = read(position, 4);
+		if (keyword.length < 4 || keyword[0] != 'x' || keyword[1] != 'r' || keyword[2] != 'e' || keyword[3] != 'f') {
+			throw new IOException("no cross reference table at offset " + offset);
+		}
+		position += keyword.length;
+
+		while (true) {
+			final byte[] header = read(position, HEADER_SIZE);
+
+			int index = skipWhitespace(header, 0);
+			if (index < header.length && header[index] == 't') {
+				return new ObjectParser(position + index).readTrailer();
+			}
+
+			// subsection header: number of the first object and object count
+			long first = 0;
+			for (; index < header.length && isDigit(header[index]); ++index) {
+				first = first * 10 + (header[index] - '0');
+			}
+
+			index = skipWhitespace(header, index);
+			long count = -1;
+			for (; index < header.length && isDigit(header[index]); ++index) {
+				count = (count < 0 ? 0 : count * 10) + (header[index] - '0');
+			}
+
+			index = skipWhitespace(header, index);
+			if (count < 0 || index >= header.length) {
+				throw new IOException("broken cross reference table at offset " + offset);
+			}
+
+			final long entries = position + index;
+			final byte[] entry = read(entries, ENTRY_SIZE);
+			final int entrySize = entry.length == ENTRY_SIZE && !isWhitespace(entry[ENTRY_SIZE - 1])
+					? ENTRY_SIZE - 1 : ENTRY_SIZE;
+
+			subsections.add(new Subsection(first, count, entries, entrySize));
+			position = entries + count * entrySize;
+		}
+	}
+
+	/**
+	 * Looks up the offset of object {@code number}.
+	 * 
+	 * @return The offset or -1 if the object is not in use.
+	 */
+	private long getObjectOffset(final long number) throws IOException {
+		for (final Subsection subsection : subsections) {
+			if (number < subsection.first || number >= subsection.first + subsection.count) {
+				continue;
+			}
+
+			final byte[] entry = read(subsection.offset + (number - subsection.first) * subsection.entrySize, ENTRY_SIZE - 2);
+			if (entry.length < ENTRY_SIZE - 2 || entry[ENTRY_SIZE - 3] != 'n') {
+				return -1;
+			}
+
+			long offset = 0;
+			for (int index = 0; index < 10; ++index) {
+				if (!isDigit(entry[index])) {
+					throw new IOException("broken cross reference entry of object " + number);
+				}
+
+				offset = offset * 10 + (entry[index] - '0');
+			}
+
+			return offset;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Looks up the trim box of a page without falling back to the loaded
+	 *   document.
+	 */
+	private @Nullable PDRectangle findTrimBox(final @Nonnegative int pageNumber) {
+		final COSDictionary page = pageTree.getPageDictionary(pageNumber);
+		if (page == null) {
+			return null;
+		}
+
+		COSBase box = pageTree.resolve(page.getItem(COSName.TRIM_BOX));
+		if (!(box instanceof COSArray)) {
+			box = pageTree.getInheritableAttribute(page, COSName.CROP_BOX);
+		}
+
+		if (!(box instanceof COSArray)) {
+			box = pageTree.getInheritableAttribute(page, COSName.MEDIA_BOX);
+		}
+
+		if (!(box instanceof COSArray) || ((COSArray) box).size() < 4) {
+			LOG.warn("Page " + pageNumber + " of " + pdfFile + " has no media box");
+			return null;
+		}
+
+		final COSArray coordinates = new COSArray();
+		for (final COSBase coordinate : (COSArray) box) {
+			final COSBase value = pageTree.resolve(coordinate);
+			if (!(value instanceof COSNumber)) {
+				LOG.warn("Page " + pageNumber + " of " + pdfFile + " has a broken page box");
+				return null;
+			}
+
+			coordinates.add(value);
+		}
+
+		return new PDRectangle(coordinates);
+	}
+
+	/**
+	 * Reads up to {@code length} bytes at {@code position}.
+	 * 
+	 * @return The bytes, less than {@code length} at the end of the file.
+	 */
+	private @Nonnull byte[] read(final long position, final @Nonnegative int length) throws IOException {
+		final byte[] buffer = new byte[length];
+
+		int size = 0;
+		while (size < length) {
+			final int count = readWindow(position + size, buffer, size, length - size);
+			if (count < 0) {
+				final byte[] result = new byte[size];
+				System.arraycopy(buffer, 0, result, 0, size);
+				return result;
+			}
+
+			size += count;
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Copies up to {@code length} bytes at {@code position} from the window,
+	 *   the window is moved if it does not contain {@code position}.
+	 * 
+	 * @return The number of copied bytes or -1 at the end of the file.
+	 */
+	private int readWindow(final long position, final @Nonnull byte[] buffer, final int offset, final int length) throws IOException {
+		if (position < windowStart || position >= windowStart + windowLength) {
+			file.seek(position);
+			windowStart = position;
+			windowLength = Math.max(0, file.read(window));
+		}
+
+		final int available = (int) (windowStart + windowLength - position);
+		if (available <= 0) {
+			return -1;
+		}
+
+		final int result = Math.min(length, available);
+		System.arraycopy(window, (int) (position - windowStart), buffer, offset, result);
+
+		return result;
+	}
+
+	/**
+	 * Dereferences {@code object} while the page tree does not exist yet.
+	 */
+	private @Nullable COSBase dereference(final @Nullable COSBase object) throws IOException {
+		if (!(object instanceof COSObject)) {
+			return object;
+		}
+
+		final COSObject reference = (COSObject) object;
+		if (reference.getObject() == null) {
+			reference.setObject(load(reference));
+		}
+
+		return reference.getObject();
+	}
+
+	private static int skipWhitespace(final @Nonnull byte[] data, int index) {
+		while (index < data.length && isWhitespace(data[index])) {
+			++index;
+		}
+
+		return index;
+	}
+
+	private static boolean isWhitespace(final byte value) {
+		return value == ' ' || value == '\r' || value == '\n' || value == '\t' || value == '\f' || value == 0;
+	}
+
+	private static boolean isDigit(final byte value) {
+		return value >= '0' && value <= '9';
+	}
+}
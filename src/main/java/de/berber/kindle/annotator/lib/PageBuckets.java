@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Groups the annotations of an {@link AnnotationStore} by page. Each page
+ *   has a bucket in a single index array, the buckets are filled by a
+ *   counting sort. Within a page the annotations keep the order of
+ *   {@link AnnotationStore#toAnnotations()}.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class PageBuckets {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(PageBuckets.class);
+
+	/**
+	 * The upper bits of an entry store the kind of annotation, the lower bits
+	 *   its index within the store.
+	 */
+	private static final int KIND_SHIFT = 30;
+	private static final int INDEX_MASK = (1 << KIND_SHIFT) - 1;
+	private static final int BOOKMARK = 0;
+	private static final int MARKING = 1;
+	private static final int COMMENT = 2;
+
+	/**
+	 * The store containing the annotations.
+	 */
+	private final AnnotationStore store;
+
+	/**
+	 * The bucket of page {@code p} is located between {@code pageStart[p]}
+	 *   and {@code pageStart[p + 1]} in {@link #entries}.
+	 */
+	private final int[] pageStart;
+
+	/**
+	 * Annotation entries sorted by page.
+	 */
+	private final int[] entries;
+
+	/**
+	 * Groups the annotations of {@code store} for a document with
+	 *   {@code numberOfPages} pages. Annotations for missing pages will be
+	 *   dropped.
+	 */
+	PageBuckets(final @Nonnull AnnotationStore store, final @Nonnegative int numberOfPages) {
+		this.store = store;
+		this.pageStart = new int[numberOfPages + 1];
+
+		// count annotations per page, shifted by one for the prefix sum
+		int dropped = 0;
+		for (int index = 0; index < store.getNumberOfBookmarks(); ++index) {
+			dropped += count(store.getBookmarkPage(index));
+		}
+
+		for (int index = 0; index < store.getNumberOfMarkings(); ++index) {
+			dropped += count(store.getMarkingPage(index));
+		}
+
+		for (int index = 0; index < store.getNumberOfComments(); ++index) {
+			if (!store.isCommentMerged(index)) {
+				dropped += count(store.getCommentPage(index));
+			}
+		}
+
+		if (dropped > 0) {
+			LOG.warn("Dropping " + dropped + " annotations for pages beyond page " + numberOfPages);
+		}
+
+		for (int page = 0; page < numberOfPages; ++page) {
+			pageStart[page + 1] += pageStart[page];
+		}
+
+		// fill the buckets, fill[p] is the next free slot of page p
+		entries = new int[pageStart[numberOfPages]];
+		final int[] fill = new int[numberOfPages];
+		System.arraycopy(pageStart, 0, fill, 0, numberOfPages);
+
+		for (int index = 0; index < store.getNumberOfBookmarks(); ++index) {
+			add(fill, store.getBookmarkPage(index), BOOKMARK, index);
+		}
+
+		for (int index = 0; index < store.getNumberOfMarkings(); ++index) {
+			add(fill, store.getMarkingPage(index), MARKING, index);
+		}
+
+		for (int index = 0; index < store.getNumberOfComments(); ++index) {
+			if (!store.isCommentMerged(index)) {
+				add(fill, store.getCommentPage(index), COMMENT, index);
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if there are no annotations on {@code page}.
+	 */
+	boolean isEmpty(final @Nonnegative int page) {
+		return pageStart[page] == pageStart[page + 1];
+	}
+
+	/**
+	 * Creates the annotation objects for {@code page}.
+	 */
+	@Nonnull List<Annotation> getAnnotations(final @Nonnegative int page) {
+		final List<Annotation> result = new ArrayList<Annotation>(pageStart[page + 1] - pageStart[page]);
+
+		for (int position = pageStart[page]; position < pageStart[page + 1]; ++position) {
+			final int index = entries[position] & INDEX_MASK;
+
+			switch (entries[position] >>> KIND_SHIFT) {
+			case BOOKMARK:
+				result.add(store.getBookmark(index));
+				break;
+
+			case MARKING:
+				result.add(store.getMarking(index));
+				break;
+
+			case COMMENT:
+				result.add(store.getComment(index));
+				break;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Counts an annotation on {@code page}.
+	 * 
+	 * @return 1 if the page does not exist, 0 otherwise.
+	 */
+	private int count(final int page) {
+		if (page < 0 || page + 1 >= pageStart.length) {
+			return 1;
+		}
+
+		pageStart[page + 1] += 1;
+		return 0;
+	}
+
+	/**
+	 * Adds an annotation to the bucket of {@code page}.
+	 */
+	private void add(final @Nonnull int[] fill, final int page, final int kind, final @Nonnegative int index) {
+		if (page < 0 || page >= fill.length) {
+			return;
+		}
+
+		entries[fill[page]++] = (kind << KIND_SHIFT) | index;
+	}
+}
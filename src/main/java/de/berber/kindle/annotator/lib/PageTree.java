@@ -0,0 +1,256 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Random access to the pages of a document. Instead of collecting all pages
+ *   a lookup descends the page tree and skips complete subtrees using their
+ *   page count.
+ * 
+ * Indirect objects which are not loaded yet are requested from an
+ *   {@link ObjectLoader}, so the tree can be used without loading the
+ *   whole document.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class PageTree {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(PageTree.class);
+
+	/**
+	 * Maximal number of levels searched for an inherited attribute.
+	 */
+	private static final int MAX_DEPTH = 64;
+
+	/**
+	 * Loads the objects of a document on demand.
+	 */
+	interface ObjectLoader {
+		/**
+		 * Loads the object {@code reference} points to.
+		 * 
+		 * @return The object or {@code null} if it does not exist.
+		 */
+		@Nullable COSBase load(@Nonnull COSObject reference) throws IOException;
+	}
+
+	/**
+	 * Root node of the page tree.
+	 */
+	private final COSDictionary root;
+
+	/**
+	 * Loader for missing objects or {@code null} if all objects are loaded.
+	 */
+	private final ObjectLoader loader;
+
+	/**
+	 * Number of pages in the document.
+	 */
+	private final int numberOfPages;
+
+	/**
+	 * Creates a page tree for {@code document}.
+	 */
+	PageTree(final @Nonnull PDDocument document) {
+		this(document.getDocumentCatalog().getPages().getDictionary(), null);
+	}
+
+	/**
+	 * Creates a page tree for the {@code root} node, missing objects are
+	 *   loaded using {@code loader}.
+	 */
+	PageTree(final @Nonnull COSDictionary root, final @Nullable ObjectLoader loader) {
+		this.root = root;
+		this.loader = loader;
+		this.numberOfPages = countPages(root);
+	}
+
+	/**
+	 * @return The number of pages in the document.
+	 */
+	@Nonnegative int getNumberOfPages() {
+		return numberOfPages;
+	}
+
+	/**
+	 * Looks up the page with the zero-based index {@code pageNumber}.
+	 * 
+	 * @return The page or {@code null} if there is no such page.
+	 */
+	@Nullable PDPage getPage(final @Nonnegative int pageNumber) {
+		final COSDictionary page = getPageDictionary(pageNumber);
+
+		return page == null ? null : new PDPage(page);
+	}
+
+	/**
+	 * Looks up the dictionary of the page with the zero-based index
+	 *   {@code pageNumber}.
+	 * 
+	 * @return The dictionary or {@code null} if there is no such page.
+	 */
+	@Nullable COSDictionary getPageDictionary(final @Nonnegative int pageNumber) {
+		if (pageNumber >= numberOfPages) {
+			return null;
+		}
+
+		COSDictionary node = root;
+		int index = pageNumber;
+
+		descend: while (true) {
+			final COSBase kids = resolve(node.getItem(COSName.KIDS));
+			if (!(kids instanceof COSArray)) {
+				break;
+			}
+
+			for (final COSBase kidReference : (COSArray) kids) {
+				final COSBase kidObject = resolve(kidReference);
+				if (!(kidObject instanceof COSDictionary)) {
+					continue; // broken reference
+				}
+
+				final COSDictionary kid = (COSDictionary) kidObject;
+				if (isPageNode(kid)) {
+					final int count = countPages(kid);
+
+					if (index < count) {
+						node = kid;
+						continue descend;
+					}
+
+					index -= count;
+				} else if (index == 0) {
+					return kid;
+				} else {
+					--index;
+				}
+			}
+
+			break;
+		}
+
+		LOG.warn("Page tree does not contain page " + pageNumber);
+		return null;
+	}
+
+	/**
+	 * Looks up an attribute of {@code page} which may be inherited from the
+	 *   intermediate nodes above the page.
+	 * 
+	 * @return The attribute or {@code null} if no node defines it.
+	 */
+	@Nullable COSBase getInheritableAttribute(final @Nonnull COSDictionary page, final @Nonnull COSName key) {
+		COSDictionary node = page;
+
+		for (int depth = 0; depth < MAX_DEPTH; ++depth) {
+			final COSBase value = resolve(node.getItem(key));
+			if (value != null) {
+				return value;
+			}
+
+			final COSBase parent = resolve(node.getItem(COSName.PARENT));
+			if (!(parent instanceof COSDictionary)) {
+				break;
+			}
+
+			node = (COSDictionary) parent;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Dereferences {@code object} and loads it if necessary.
+	 * 
+	 * @return The direct object or {@code null} for missing objects.
+	 */
+	@Nullable COSBase resolve(final @Nullable COSBase object) {
+		if (!(object instanceof COSObject)) {
+			return object instanceof COSNull ? null : object;
+		}
+
+		final COSObject reference = (COSObject) object;
+		if (reference.getObject() == null && loader != null) {
+			try {
+				reference.setObject(loader.load(reference));
+			} catch (IOException e) {
+				LOG.warn("Cannot load object " + reference.getObjectNumber().intValue());
+			}
+		}
+
+		final COSBase result = reference.getObject();
+		return result instanceof COSNull ? null : result;
+	}
+
+	/**
+	 * Checks whether {@code node} is an intermediate node of the page tree.
+	 */
+	private boolean isPageNode(final @Nonnull COSDictionary node) {
+		return COSName.PAGES.equals(resolve(node.getItem(COSName.TYPE)))
+				|| resolve(node.getItem(COSName.KIDS)) != null;
+	}
+
+	/**
+	 * Returns the number of pages below {@code node}. If the node does not
+	 *   contain a page count the subtree will be counted.
+	 */
+	private int countPages(final @Nonnull COSDictionary node) {
+		final COSBase count = resolve(node.getItem(COSName.COUNT));
+		if (count instanceof COSNumber && ((COSNumber) count).intValue() >= 0) {
+			return ((COSNumber) count).intValue();
+		}
+
+		final COSBase kids = resolve(node.getItem(COSName.KIDS));
+		if (!(kids instanceof COSArray)) {
+			return 0;
+		}
+
+		int result = 0;
+		for (final COSBase kidReference : (COSArray) kids) {
+			final COSBase kid = resolve(kidReference);
+
+			if (!(kid instanceof COSDictionary)) {
+				continue;
+			} else if (isPageNode((COSDictionary) kid)) {
+				result += countPages((COSDictionary) kid);
+			} else {
+				result += 1;
+			}
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * The record counts of a PDR file as found by
+ *   {@link KindleAnnotationReader#scan()}.
+ * 
+ * @author Bernhard J. Berger
+ */
+public final class PdrSummary {
+	private final int numberOfBookmarks;
+	private final int numberOfMarkings;
+	private final int numberOfComments;
+
+	PdrSummary(final @Nonnegative int numberOfBookmarks,
+			final @Nonnegative int numberOfMarkings,
+			final @Nonnegative int numberOfComments) {
+		this.numberOfBookmarks = numberOfBookmarks;
+		this.numberOfMarkings = numberOfMarkings;
+		this.numberOfComments = numberOfComments;
+	}
+
+	public @Nonnegative int getNumberOfBookmarks() {
+		return numberOfBookmarks;
+	}
+
+	public @Nonnegative int getNumberOfMarkings() {
+		return numberOfMarkings;
+	}
+
+	public @Nonnegative int getNumberOfComments() {
+		return numberOfComments;
+	}
+
+	/**
+	 * @return The number of all records.
+	 */
+	public @Nonnegative long getNumberOfAnnotations() {
+		return (long) numberOfBookmarks + numberOfMarkings + numberOfComments;
+	}
+
+	@Override
+	public String toString() {
+		return "PdrSummary <" + numberOfBookmarks + " bookmarks, " + numberOfMarkings
+				+ " markings, " + numberOfComments + " comments>";
+	}
+}
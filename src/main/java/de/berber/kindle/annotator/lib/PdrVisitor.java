@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A PDR visitor will be informed about each record while the
+ *   {@link KindleAnnotationReader} decodes a PDR file. The records are reported
+ *   in file order: the header, all bookmarks, all markings and all comments.
+ *   Each group is announced by its number of records.
+ * 
+ * @author Bernhard J. Berger
+ */
+public interface PdrVisitor {
+	/**
+	 * Informs the visitor about a valid file header.
+	 * 
+	 * @param lastOpenedPage The page the reader displayed last.
+	 */
+	public void onHeader(final int lastOpenedPage);
+
+	/**
+	 * Informs the visitor about the number of bookmarks that will follow.
+	 */
+	public void onBookmarkCount(final @Nonnegative int numberOfBookmarks);
+
+	/**
+	 * Informs the visitor about a bookmark on {@code page}.
+	 */
+	public void onBookmark(final @Nonnegative int page);
+
+	/**
+	 * Informs the visitor about the number of markings that will follow.
+	 */
+	public void onMarkingCount(final @Nonnegative int numberOfMarkings);
+
+	/**
+	 * Informs the visitor about a marking that starts on {@code page1} at
+	 *   location {@code x1}/{@code y1} and ends on {@code page2} at location
+	 *   {@code x2}/{@code y2}.
+	 */
+	public void onMarking(final @Nonnegative int page1, final double x1, final double y1,
+			             final @Nonnegative int page2, final double x2, final double y2);
+
+	/**
+	 * Informs the visitor about the number of comments that will follow.
+	 */
+	public void onCommentCount(final @Nonnegative int numberOfComments);
+
+	/**
+	 * Informs the visitor about a comment on {@code page} at location
+	 *   {@code x}/{@code y}.
+	 */
+	public void onComment(final @Nonnegative int page, final double x, final double y,
+			              final @Nonnull String text);
+
+	/**
+	 * Informs the visitor that there are no more records. This will be
+	 *   called once for each read operation, even if the PDR file is missing
+	 *   or broken.
+	 */
+	public void onEnd();
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Quotes values for the CSV and JSON files written by the notes export and
+ *   the performance report.
+ * 
+ * @author Bernhard J. Berger
+ */
+public final class Quoting {
+	private Quoting() {
+	}
+
+	/**
+	 * @return {@code value} as a quoted CSV field. Line breaks are kept, they
+	 *   are allowed inside of quoted fields.
+	 */
+	public static @Nonnull String quoteCSV(final @Nonnull String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * @return {@code value} as a JSON string. Line feeds are written as
+	 *   {@code \n}, all other control characters as unicode escapes.
+	 */
+	public static @Nonnull String quoteJSON(final @Nonnull String value) {
+		final StringBuilder result = new StringBuilder("\"");
+		
+		for(int index = 0; index < value.length(); ++index) {
+			final char character = value.charAt(index);
+			
+			if(character == '"' || character == '\\') {
+				result.append('\\').append(character);
+			} else if(character == '\n') {
+				result.append("\\n");
+			} else if(character < 0x20) {
+				result.append(String.format(Locale.ROOT, "\\u%04x", (int) character));
+			} else {
+				result.append(character);
+			}
+		}
+		
+		return result.append('"').toString();
+	}
+}
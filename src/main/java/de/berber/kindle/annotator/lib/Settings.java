@@ -0,0 +1,318 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.io.File;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Immutable settings of the annotator. The settings are compiled once from
+ *   the configuration and shared by all threads. Use a {@link Builder} to
+ *   create them.
+ * 
+ * @author Bernhard J. Berger
+ */
+public final class Settings {
+	/**
+	 * Settings with all default values.
+	 */
+	public static final Settings DEFAULT = new Builder().build();
+
+	private final AnnotationStyle bookmarkStyle;
+	private final AnnotationStyle markingStyle;
+	private final AnnotationStyle commentStyle;
+	private final double commentMergeTolerance;
+	private final boolean dumpDebugFile;
+	private final boolean incrementalUpdate;
+	private final boolean xfdfOutput;
+	private final boolean lowMemory;
+	private final File scratchDirectory;
+	private final int readThreads;
+	private final int loadThreads;
+	private final int annotateThreads;
+	private final int writeThreads;
+	private final int stageQueueCapacity;
+	private final boolean virtualThreads;
+	private final long memoryBudget;
+
+	/**
+	 * Creates the settings from the values of {@code builder}.
+	 */
+	private Settings(final @Nonnull Builder builder) {
+		this.bookmarkStyle = builder.bookmarkStyle;
+		this.markingStyle = builder.markingStyle;
+		this.commentStyle = builder.commentStyle;
+		this.commentMergeTolerance = builder.commentMergeTolerance;
+		this.dumpDebugFile = builder.dumpDebugFile;
+		this.incrementalUpdate = builder.incrementalUpdate;
+		this.xfdfOutput = builder.xfdfOutput;
+		this.lowMemory = builder.lowMemory;
+		this.scratchDirectory = builder.scratchDirectory;
+		this.readThreads = builder.readThreads;
+		this.loadThreads = builder.loadThreads;
+		this.annotateThreads = builder.annotateThreads;
+		this.writeThreads = builder.writeThreads;
+		this.stageQueueCapacity = builder.stageQueueCapacity;
+		this.virtualThreads = builder.virtualThreads;
+		this.memoryBudget = builder.memoryBudget;
+	}
+
+	/**
+	 * @return The style of bookmarks.
+	 */
+	public @Nonnull AnnotationStyle getBookmarkStyle() {
+		return bookmarkStyle;
+	}
+
+	/**
+	 * @return The style of markings.
+	 */
+	public @Nonnull AnnotationStyle getMarkingStyle() {
+		return markingStyle;
+	}
+
+	/**
+	 * @return The style of comments.
+	 */
+	public @Nonnull AnnotationStyle getCommentStyle() {
+		return commentStyle;
+	}
+
+	/**
+	 * @return The maximal distance between the end of a marking and a
+	 *   comment that shall be merged into it.
+	 */
+	public double getCommentMergeTolerance() {
+		return commentMergeTolerance;
+	}
+
+	/**
+	 * @return {@code true} if PDR files shall be dumped for debugging.
+	 */
+	public boolean isDumpDebugFile() {
+		return dumpDebugFile;
+	}
+
+	/**
+	 * @return {@code true} if changes shall be appended to the original
+	 *   document.
+	 */
+	public boolean isIncrementalUpdate() {
+		return incrementalUpdate;
+	}
+
+	/**
+	 * @return {@code true} if the annotations shall be written to an XFDF
+	 *   file next to the output file instead of modifying the document.
+	 */
+	public boolean isXfdfOutput() {
+		return xfdfOutput;
+	}
+
+	/**
+	 * @return {@code true} if stream contents shall be buffered in a scratch
+	 *   file instead of the heap.
+	 */
+	public boolean isLowMemory() {
+		return lowMemory;
+	}
+
+	/**
+	 * @return The directory for scratch files or {@code null} if the default
+	 *   temporary directory shall be used.
+	 */
+	public @Nullable File getScratchDirectory() {
+		return scratchDirectory;
+	}
+
+	/**
+	 * @return The number of threads reading PDR files.
+	 */
+	public @Nonnegative int getReadThreads() {
+		return readThreads;
+	}
+
+	/**
+	 * @return The number of threads loading PDF documents.
+	 */
+	public @Nonnegative int getLoadThreads() {
+		return loadThreads;
+	}
+
+	/**
+	 * @return The number of threads adding annotations to documents.
+	 */
+	public @Nonnegative int getAnnotateThreads() {
+		return annotateThreads;
+	}
+
+	/**
+	 * @return The number of threads writing PDF documents.
+	 */
+	public @Nonnegative int getWriteThreads() {
+		return writeThreads;
+	}
+
+	/**
+	 * @return The maximal number of documents waiting in front of a stage.
+	 */
+	public @Nonnegative int getStageQueueCapacity() {
+		return stageQueueCapacity;
+	}
+
+	/**
+	 * @return {@code true} if the I/O stages shall use virtual threads if
+	 *   available.
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * @return The number of heap bytes concurrent conversions may use.
+	 */
+	public @Nonnegative long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Collects the values of new {@link Settings}. All values are initialized
+	 *   with their defaults.
+	 */
+	public static final class Builder {
+		private AnnotationStyle bookmarkStyle = AnnotationStyle.DEFAULT;
+		private AnnotationStyle markingStyle = AnnotationStyle.DEFAULT;
+		private AnnotationStyle commentStyle = AnnotationStyle.DEFAULT;
+		private double commentMergeTolerance = CommentMatcher.DEFAULT_TOLERANCE;
+		private boolean dumpDebugFile = false;
+		private boolean incrementalUpdate = false;
+		private boolean xfdfOutput = false;
+		private boolean lowMemory = false;
+		private File scratchDirectory = null;
+		private int readThreads = 2;
+		private int loadThreads = Runtime.getRuntime().availableProcessors();
+		private int annotateThreads = Runtime.getRuntime().availableProcessors();
+		private int writeThreads = 2;
+		private int stageQueueCapacity = 2;
+		private boolean virtualThreads = false;
+		private long memoryBudget = Runtime.getRuntime().maxMemory() / 10 * 6;
+
+		public @Nonnull Builder setBookmarkStyle(final @Nonnull AnnotationStyle bookmarkStyle) {
+			this.bookmarkStyle = bookmarkStyle;
+			return this;
+		}
+
+		public @Nonnull Builder setMarkingStyle(final @Nonnull AnnotationStyle markingStyle) {
+			this.markingStyle = markingStyle;
+			return this;
+		}
+
+		public @Nonnull Builder setCommentStyle(final @Nonnull AnnotationStyle commentStyle) {
+			this.commentStyle = commentStyle;
+			return this;
+		}
+
+		public @Nonnull Builder setCommentMergeTolerance(final double commentMergeTolerance) {
+			this.commentMergeTolerance = commentMergeTolerance;
+			return this;
+		}
+
+		public @Nonnull Builder setDumpDebugFile(final boolean dumpDebugFile) {
+			this.dumpDebugFile = dumpDebugFile;
+			return this;
+		}
+
+		public @Nonnull Builder setIncrementalUpdate(final boolean incrementalUpdate) {
+			this.incrementalUpdate = incrementalUpdate;
+			return this;
+		}
+
+		public @Nonnull Builder setXfdfOutput(final boolean xfdfOutput) {
+			this.xfdfOutput = xfdfOutput;
+			return this;
+		}
+
+		public @Nonnull Builder setLowMemory(final boolean lowMemory) {
+			this.lowMemory = lowMemory;
+			return this;
+		}
+
+		public @Nonnull Builder setScratchDirectory(final @Nullable File scratchDirectory) {
+			this.scratchDirectory = scratchDirectory;
+			return this;
+		}
+
+		public @Nonnull Builder setReadThreads(final @Nonnegative int readThreads) {
+			this.readThreads = checkPositive(readThreads, "readThreads");
+			return this;
+		}
+
+		public @Nonnull Builder setLoadThreads(final @Nonnegative int loadThreads) {
+			this.loadThreads = checkPositive(loadThreads, "loadThreads");
+			return this;
+		}
+
+		public @Nonnull Builder setAnnotateThreads(final @Nonnegative int annotateThreads) {
+			this.annotateThreads = checkPositive(annotateThreads, "annotateThreads");
+			return this;
+		}
+
+		public @Nonnull Builder setWriteThreads(final @Nonnegative int writeThreads) {
+			this.writeThreads = checkPositive(writeThreads, "writeThreads");
+			return this;
+		}
+
+		public @Nonnull Builder setStageQueueCapacity(final @Nonnegative int stageQueueCapacity) {
+			this.stageQueueCapacity = checkPositive(stageQueueCapacity, "stageQueueCapacity");
+			return this;
+		}
+
+		public @Nonnull Builder setVirtualThreads(final boolean virtualThreads) {
+			this.virtualThreads = virtualThreads;
+			return this;
+		}
+
+		public @Nonnull Builder setMemoryBudget(final @Nonnegative long memoryBudget) {
+			if(memoryBudget <= 0) {
+				throw new IllegalArgumentException("memoryBudget has to be positive: " + memoryBudget);
+			}
+			
+			this.memoryBudget = memoryBudget;
+			return this;
+		}
+
+		/**
+		 * @return New settings with the values of the builder.
+		 */
+		public @Nonnull Settings build() {
+			return new Settings(this);
+		}
+
+		/**
+		 * @throws IllegalArgumentException If {@code value} is not positive.
+		 */
+		private static int checkPositive(final int value, final @Nonnull String name) {
+			if(value <= 0) {
+				throw new IllegalArgumentException(name + " has to be positive: " + value);
+			}
+			
+			return value;
+		}
+	}
+}
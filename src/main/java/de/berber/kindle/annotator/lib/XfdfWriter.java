@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.lib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * Writes annotations as XFDF file. An XFDF file refers to the annotated PDF
+ *   file and can be imported by most PDF viewers, the PDF file itself stays
+ *   untouched.
+ * 
+ * The annotations are named after their position in the file, importing an
+ *   updated file again replaces the previously imported annotations.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class XfdfWriter {
+	/**
+	 * Icons of text annotations.
+	 */
+	static final String ICON_COMMENT = "Comment";
+	static final String ICON_BOOKMARK = "Key";
+
+	/**
+	 * Prefix of the annotation names.
+	 */
+	private static final String NAME_PREFIX = "kindle-annotator-";
+
+	/**
+	 * The destination of the XFDF data.
+	 */
+	private final Writer output;
+
+	/**
+	 * Formats coordinates without exponent and with a bounded precision.
+	 */
+	private final DecimalFormat numberFormat = new DecimalFormat("0.###", DecimalFormatSymbols.getInstance(Locale.ROOT));
+
+	/**
+	 * Number of annotations written so far.
+	 */
+	private int numberOfAnnotations = 0;
+
+	/**
+	 * Creates a new writer and writes the file header.
+	 * 
+	 * @param output The destination of the XFDF data.
+	 * @param href Reference to the annotated PDF file.
+	 */
+	XfdfWriter(final @Nonnull Writer output, final @Nonnull String href) throws IOException {
+		this.output = output;
+
+		output.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		output.write("<xfdf xmlns=\"http://ns.adobe.com/xfdf/\" xml:space=\"preserve\">\n");
+		output.write("<f href=\"");
+		writeEscaped(href);
+		output.write("\"/>\n");
+		output.write("<annots>\n");
+	}
+
+	/**
+	 * Writes a highlight annotation.
+	 * 
+	 * @param page The zero-based page number.
+	 * @param quadPoints The corners of the highlighted area.
+	 * @param contents The text of the annotation or {@code null}.
+	 */
+	void writeHighlight(final @Nonnegative int page, final @Nonnull AnnotationStyle style,
+			final @Nonnull PDRectangle position, final @Nonnull float[] quadPoints,
+			final @Nullable String contents) throws IOException {
+		writeStart("highlight", page, style, position);
+		output.write(" opacity=\"");
+		output.write(numberFormat.format(style.getOpacity()));
+		output.write("\" coords=\"");
+		writeNumbers(quadPoints);
+		output.write("\"");
+		writeEnd("highlight", contents);
+	}
+
+	/**
+	 * Writes a text annotation.
+	 * 
+	 * @param page The zero-based page number.
+	 * @param contents The text of the annotation.
+	 * @param icon The icon of the annotation.
+	 */
+	void writeText(final @Nonnegative int page, final @Nonnull AnnotationStyle style,
+			final @Nonnull PDRectangle position, final @Nonnull String contents,
+			final @Nonnull String icon) throws IOException {
+		writeStart("text", page, style, position);
+		output.write(" icon=\"");
+		output.write(icon);
+		output.write("\"");
+		writeEnd("text", contents);
+	}
+
+	/**
+	 * Writes the end of the file and flushes the output. The output will not
+	 *   be closed.
+	 */
+	void finish() throws IOException {
+		output.write("</annots>\n");
+		output.write("</xfdf>\n");
+		output.flush();
+	}
+
+	/**
+	 * @return The number of annotations written so far.
+	 */
+	@Nonnegative int getNumberOfAnnotations() {
+		return numberOfAnnotations;
+	}
+
+	/**
+	 * Writes the opening tag of an annotation up to its specific attributes.
+	 *   XFDF expects the rectangle as left, bottom, right and top coordinate.
+	 */
+	private void writeStart(final @Nonnull String element, final @Nonnegative int page,
+			final @Nonnull AnnotationStyle style, final @Nonnull PDRectangle position) throws IOException {
+		output.write("<");
+		output.write(element);
+		output.write(" name=\"");
+		output.write(NAME_PREFIX);
+		output.write(Integer.toString(numberOfAnnotations++));
+		output.write("\" page=\"");
+		output.write(Integer.toString(page));
+		output.write("\" color=\"");
+		output.write(style.getColor());
+		output.write("\" rect=\"");
+		writeNumbers(new float[] {
+				Math.min(position.getLowerLeftX(), position.getUpperRightX()),
+				Math.min(position.getLowerLeftY(), position.getUpperRightY()),
+				Math.max(position.getLowerLeftX(), position.getUpperRightX()),
+				Math.max(position.getLowerLeftY(), position.getUpperRightY()) });
+		output.write("\"");
+	}
+
+	/**
+	 * Closes the opening tag, writes the text of the annotation and closes
+	 *   the element.
+	 */
+	private void writeEnd(final @Nonnull String element, final @Nullable String contents) throws IOException {
+		if(contents == null) {
+			output.write("/>\n");
+			return;
+		}
+
+		output.write("><contents>");
+		writeEscaped(contents);
+		output.write("</contents></");
+		output.write(element);
+		output.write(">\n");
+	}
+
+	/**
+	 * Writes a comma separated list of numbers.
+	 */
+	private void writeNumbers(final @Nonnull float[] numbers) throws IOException {
+		for(int index = 0; index < numbers.length; ++index) {
+			if(index > 0) {
+				output.write(',');
+			}
+
+			output.write(numberFormat.format(numbers[index]));
+		}
+	}
+
+	/**
+	 * Writes {@code text} as XML character data. Characters which are not
+	 *   allowed in XML documents are dropped.
+	 */
+	private void writeEscaped(final @Nonnull String text) throws IOException {
+		for(int index = 0; index < text.length(); ++index) {
+			final char current = text.charAt(index);
+
+			switch(current) {
+			case '&':
+				output.write("&amp;");
+				break;
+
+			case '<':
+				output.write("&lt;");
+				break;
+
+			case '>':
+				output.write("&gt;");
+				break;
+
+			case '"':
+				output.write("&quot;");
+				break;
+
+			case '\t':
+			case '\n':
+			case '\r':
+				output.write(current);
+				break;
+
+			default:
+				if(current >= 0x20 && current != 0xFFFE && current != 0xFFFF) {
+					output.write(current);
+				}
+			}
+		}
+	}
+}
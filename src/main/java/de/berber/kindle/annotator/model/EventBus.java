@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers the notifications of the model on a dispatcher thread, so the
+ *   threads changing the model never run listener code. Events are published
+ *   to a bounded ring buffer and delivered in batches in the order they were
+ *   published. A publisher waits while the buffer is full.
+ *   
+ * Events published by listeners, that is by the dispatcher itself, never
+ *   wait. They are delivered before the next batch. A dispatcher that has
+ *   been idle for a while terminates, so models that are no longer used do
+ *   not keep their thread.
+ * 
+ * @author Bernhard J. Berger
+ */
+final class EventBus implements Runnable {
+	/**
+	 * The log instance
+	 */
+	private final static Logger LOG = Logger.getLogger(EventBus.class);
+	
+	/**
+	 * Default number of events that may wait for delivery.
+	 */
+	static final int DEFAULT_CAPACITY = 1024;
+	
+	/**
+	 * Milliseconds an idle dispatcher waits for events before it terminates.
+	 */
+	private static final long IDLE_TIMEOUT = 10000;
+	
+	/**
+	 * Name of the dispatcher thread.
+	 */
+	private final String name;
+	
+	/**
+	 * The ring buffer.
+	 */
+	private final Runnable[] events;
+	
+	/**
+	 * Position of the next event to deliver.
+	 */
+	private int head = 0;
+	
+	/**
+	 * Number of events in the ring buffer.
+	 */
+	private int size = 0;
+	
+	/**
+	 * Events published by the dispatcher thread.
+	 */
+	private final ArrayDeque<Runnable> dispatcherEvents = new ArrayDeque<Runnable>();
+	
+	/**
+	 * The dispatcher thread, it is started with the first event.
+	 */
+	private Thread dispatcher = null;
+
+	/**
+	 * Creates a new event bus.
+	 * 
+	 * @param name Name of the dispatcher thread.
+	 * @param capacity Number of events that may wait for delivery.
+	 */
+	EventBus(final @Nonnull String name, final @Nonnegative int capacity) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		
+		this.name = name;
+		this.events = new Runnable[capacity];
+	}
+
+	/**
+	 * Publishes {@code event}, it will be run by the dispatcher thread.
+	 */
+	synchronized void publish(final @Nonnull Runnable event) {
+		if(Thread.currentThread() == dispatcher) {
+			dispatcherEvents.add(event);
+			return;
+		}
+		
+		if(dispatcher == null) {
+			dispatcher = new Thread(this, name);
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+		
+		boolean interrupted = false;
+		while(size == events.length) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// an event must not get lost
+				interrupted = true;
+			}
+		}
+		
+		events[(head + size) % events.length] = event;
+		size += 1;
+		
+		if(size == 1) {
+			notifyAll();
+		}
+		
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Delivers the events.
+	 */
+	public void run() {
+		final List<Runnable> batch = new ArrayList<Runnable>(events.length);
+		
+		while(true) {
+			synchronized(this) {
+				final long idleSince = System.currentTimeMillis();
+				while(size == 0 && dispatcherEvents.isEmpty()) {
+					final long remaining = IDLE_TIMEOUT - (System.currentTimeMillis() - idleSince);
+					if(remaining <= 0) {
+						// the next event starts a new dispatcher
+						dispatcher = null;
+						return;
+					}
+					
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						LOG.error("Event dispatcher was interrupted");
+						dispatcher = null;
+						return;
+					}
+				}
+				
+				batch.addAll(dispatcherEvents);
+				dispatcherEvents.clear();
+				
+				final boolean wasFull = size == events.length;
+				while(size > 0) {
+					batch.add(events[head]);
+					events[head] = null;
+					head = (head + 1) % events.length;
+					size -= 1;
+				}
+				
+				if(wasFull) {
+					notifyAll();
+				}
+			}
+			
+			for(final Runnable event : batch) {
+				try {
+					event.run();
+				} catch (RuntimeException e) {
+					LOG.error("Listener failed", e);
+				}
+			}
+			batch.clear();
+		}
+	}
+}
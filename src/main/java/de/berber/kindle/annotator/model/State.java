@@ -25,5 +25,12 @@ public enum State {
 	RUNNING,
 	FINISHED,
 	ABORTED,
-	ERROR
+	ERROR;
+
+	/**
+	 * @return {@code true} if the task does not run anymore.
+	 */
+	public boolean isFinal() {
+		return this == FINISHED || this == ABORTED || this == ERROR;
+	}
 }
@@ -16,8 +16,12 @@
 package de.berber.kindle.annotator.model;
 
 import java.io.File;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
 
 import org.apache.log4j.Logger;
 
@@ -46,22 +50,63 @@ public class Task {
 	/**
 	 * Current task state (initial state is waiting)
 	 */
-	private State state = State.WAITING;
+	private volatile State state = State.WAITING;
+
+	/**
+	 * Time in milliseconds the task started running the last time.
+	 */
+	private volatile long startTime = 0;
+
+	/**
+	 * Position of the task in its working list.
+	 */
+	private int index = -1;
+
+	/**
+	 * Delivers the state changes to the listeners.
+	 */
+	private final EventBus events;
+
+	/**
+	 * Performance figures of the conversion.
+	 */
+	private final TaskStatistics statistics = new TaskStatistics();
+
+	/**
+	 * Completed with the first final state of the task.
+	 */
+	private final CompletableFuture<State> completion = new CompletableFuture<State>();
+
+	/**
+	 * The completion handed out to clients, completing it does not affect
+	 *   the task.
+	 */
+	private final CompletableFuture<State> publicCompletion = completion.thenApply(new Function<State, State>() {
+		public State apply(final State state) {
+			return state;
+		}
+	});
+
+	/**
+	 * Sizes, modification times and hashes of the files of the last
+	 *   successful conversion, determined by the worker finishing it.
+	 */
+	private volatile String fileStates = null;
 	
 	/**
 	 * Create a new task for conversion of {@code inputFile} to
-	 *   {@code outputFile}.
+	 *   {@code outputFile}. State changes are delivered by {@code events}.
 	 */
-	public Task(final File inputFile, final File outputFile) {
+	Task(final File inputFile, final File outputFile, final EventBus events) {
 		this.inputFile  = inputFile;
 		this.outputFile = outputFile;
-		
+		this.events     = events;
 	}
 	
 	/**
 	 * Set of listeners.
 	 */
-	private Set<TaskListener> listeners = new HashSet<TaskListener>();
+	private final Set<TaskListener> listeners = new CopyOnWriteArraySet<TaskListener>();
 	
 	/**
 	 * Adds a new listener to the set of listeners.
@@ -70,9 +115,7 @@ public class Task {
 	 */
 	public final void addListener(final TaskListener listener) {
 		LOG.info("Adding listener " + listener + " for task " + this);
-		synchronized(listeners) {
-			listeners.add(listener);
-		}
+		listeners.add(listener);
 	}
 	
 	/**
@@ -82,9 +125,7 @@ public class Task {
 	 */
 	public final void removeListener(final TaskListener listener) {
 		LOG.info("Removing listener " + listener + " from task " + this);
-		synchronized(listeners) {
-			listeners.remove(listener);
-		}
+		listeners.remove(listener);
 	}
 
 	/**
@@ -95,26 +136,98 @@ public class Task {
 	}
 
 	/**
-	 * Change the task state to {@code state}.
+	 * Change the task state to {@code state}. The listeners are informed
+	 *   later on the event dispatcher thread.
 	 * 
 	 * @param state The new state
 	 */
-	public synchronized final void setState(final State state) {
+	public final void setState(final State state) {
 		LOG.info("Setting state for " + this + " to " + state);
 		
-		if(state == getState()) {
-			return; // no state change necessary
+		final State oldState;
+		synchronized(this) {
+			if(state == getState()) {
+				return; // no state change necessary
+			}
+			
+			oldState = getState();
+			this.state = state;
+			
+			if(state == State.RUNNING) {
+				startTime = System.currentTimeMillis();
+				statistics.start();
+			} else if(state.isFinal()) {
+				statistics.finish();
+			}
 		}
 		
-		final State oldState = getState();
-		this.state = state;
-		
-		synchronized(listeners) {
-			for(TaskListener listener : listeners) {
-				listener.stateChange(this, oldState, state);
+		events.publish(new Runnable() {
+			public void run() {
+				for(TaskListener listener : listeners) {
+					listener.stateChange(Task.this, oldState, state);
+				}
+				
+				if(state.isFinal()) {
+					completion.complete(state);
+				}
 			}
-		}
+		});
+	}
+
+	/**
+	 * @return The states of the converted files recorded by
+	 *   {@link #setFileStates} or {@code null} if they are unknown.
+	 */
+	public final @Nullable String getFileStates() {
+		return fileStates;
+	}
+
+	/**
+	 * Records the states of the converted files. Workers do this before
+	 *   the task is finished, so the listeners do not have to examine the
+	 *   files on the event dispatcher thread.
+	 */
+	public final void setFileStates(final @Nullable String fileStates) {
+		this.fileStates = fileStates;
+	}
+
+	/**
+	 * @return The performance figures of the conversion.
+	 */
+	public final TaskStatistics getStatistics() {
+		return statistics;
+	}
 
+	/**
+	 * @return The time in milliseconds the task started running the last
+	 *   time or {@code 0} if it never ran.
+	 */
+	public final long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return A future that is completed with the first final state of the
+	 *   task, after all listeners have been informed. Dependent actions run
+	 *   on the event dispatcher thread unless they are asynchronous.
+	 */
+	public final CompletableFuture<State> getCompletion() {
+		return publicCompletion;
+	}
+
+	/**
+	 * @return The position of the task in its working list or {@code -1} if
+	 *   it has not been added yet.
+	 */
+	public final int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Sets the position of the task in its working list.
+	 */
+	final void setIndex(final int index) {
+		this.index = index;
 	}
 
 	/**
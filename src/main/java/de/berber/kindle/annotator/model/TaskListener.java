@@ -19,6 +19,8 @@ import javax.annotation.Nonnull;
 
 /**
  * Registered task listeners will be informed about state changes of a task.
+ *   Listeners are called on the event dispatcher thread of the working list
+ *   and must not wait for other tasks.
  *
  * @author Bernhard J. Berger
  */
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011, Bernhard J. Berger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.berber.kindle.annotator.model;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Performance figures of a single task: the time spent in each phase of the
+ *   conversion, the number of bytes read and written and the number of
+ *   annotations by type. The figures are collected by the worker threads,
+ *   start and end are set by the state changes of the task.
+ * 
+ * @author Bernhard J. Berger
+ */
+public final class TaskStatistics {
+	/**
+	 * The phases of a conversion.
+	 */
+	public static enum Phase {
+		PARSE,
+		LOAD,
+		ANNOTATE,
+		SAVE
+	}
+
+	/**
+	 * Time spent in each phase in nanoseconds.
+	 */
+	private final long[] phaseNanos = new long[Phase.values().length];
+	
+	/**
+	 * Start of the conversion, {@code 0} if it never started.
+	 */
+	private long startNanos = 0;
+	
+	/**
+	 * End of the conversion, {@code 0} if it did not end yet.
+	 */
+	private long endNanos = 0;
+	
+	/**
+	 * Size of the PDF and PDR file.
+	 */
+	private long inputBytes = 0;
+	
+	/**
+	 * Size of the written file.
+	 */
+	private long outputBytes = 0;
+	
+	private int numberOfBookmarks = 0;
+	private int numberOfMarkings = 0;
+	private int numberOfComments = 0;
+
+	TaskStatistics() {
+	}
+
+	/**
+	 * The conversion starts now.
+	 */
+	synchronized void start() {
+		startNanos = System.nanoTime();
+		endNanos = 0;
+	}
+
+	/**
+	 * The conversion ends now, if it started at all.
+	 */
+	synchronized void finish() {
+		if(startNanos != 0) {
+			endNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Adds {@code nanos} to the time spent in {@code phase}.
+	 */
+	public synchronized void addTime(final @Nonnull Phase phase, final @Nonnegative long nanos) {
+		phaseNanos[phase.ordinal()] += nanos;
+	}
+
+	public synchronized void setInputBytes(final @Nonnegative long inputBytes) {
+		this.inputBytes = inputBytes;
+	}
+
+	public synchronized void setOutputBytes(final @Nonnegative long outputBytes) {
+		this.outputBytes = outputBytes;
+	}
+
+	public synchronized void setNumberOfAnnotations(final @Nonnegative int bookmarks,
+			final @Nonnegative int markings, final @Nonnegative int comments) {
+		this.numberOfBookmarks = bookmarks;
+		this.numberOfMarkings = markings;
+		this.numberOfComments = comments;
+	}
+
+	/**
+	 * @return {@code true} if the conversion started and ended.
+	 */
+	public synchronized boolean isComplete() {
+		return startNanos != 0 && endNanos != 0;
+	}
+
+	/**
+	 * @return The time spent in {@code phase} in nanoseconds.
+	 */
+	public synchronized long getTime(final @Nonnull Phase phase) {
+		return phaseNanos[phase.ordinal()];
+	}
+
+	/**
+	 * @return The time from start to end of the conversion in nanoseconds,
+	 *   including the time waiting between the phases.
+	 */
+	public synchronized long getTotalTime() {
+		return isComplete() ? endNanos - startNanos : 0;
+	}
+
+	/**
+	 * @return Start of the conversion as {@link System#nanoTime()}.
+	 */
+	public synchronized long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * @return End of the conversion as {@link System#nanoTime()}.
+	 */
+	public synchronized long getEndNanos() {
+		return endNanos;
+	}
+
+	public synchronized long getInputBytes() {
+		return inputBytes;
+	}
+
+	public synchronized long getOutputBytes() {
+		return outputBytes;
+	}
+
+	public synchronized int getNumberOfBookmarks() {
+		return numberOfBookmarks;
+	}
+
+	public synchronized int getNumberOfMarkings() {
+		return numberOfMarkings;
+	}
+
+	public synchronized int getNumberOfComments() {
+		return numberOfComments;
+	}
+
+	public synchronized int getNumberOfAnnotations() {
+		return numberOfBookmarks + numberOfMarkings + numberOfComments;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder result = new StringBuilder();
+		for(final Phase phase : Phase.values()) {
+			result.append(phase.name().toLowerCase()).append(' ')
+			      .append(phaseNanos[phase.ordinal()] / 1000000).append(" ms, ");
+		}
+		result.append("total ").append(getTotalTime() / 1000000).append(" ms, ")
+		      .append(inputBytes).append(" bytes in, ")
+		      .append(outputBytes).append(" bytes out, ")
+		      .append(getNumberOfAnnotations()).append(" annotations");
+		
+		return result.toString();
+	}
+}
@@ -16,19 +16,24 @@
 package de.berber.kindle.annotator.model;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.log4j.Logger;
 
 /**
  * The list of current conversion tasks. The WorkingList is the central
- * synchronization point of all concurrent threads.
+ * synchronization point of all concurrent threads. Tasks are only appended
+ * and get a stable index, adding tasks and changing their states does not
+ * take a lock. All listeners of the working list and of its tasks are
+ * informed on a single event dispatcher thread.
  * 
  * @author Bernhard J. Berger
  */
@@ -39,25 +44,148 @@ public class WorkingList implements TaskListener {
 	private final static Logger LOG = Logger.getLogger(WorkingList.class);	
 	
 	/**
-	 * List of current tasks. Assume a work list size of 100 entries to
-	 * avoid resizing.
+	 * Tasks are stored in chunks of {@code 1 << CHUNK_BITS} tasks.
 	 */
-	private List<Task> tasks = new ArrayList<Task>(100);
+	private static final int CHUNK_BITS = 12;
 	
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	
+	/**
+	 * Maximum number of chunks, the list holds up to 16M tasks.
+	 */
+	private static final int MAX_CHUNKS = 1 << 12;
+
 	/**
-	 * Number of unfinished tasks, we still monitor.
+	 * Append-only storage of the tasks. A task at an index below
+	 * {@code size} is completely stored and never changes. Clearing the
+	 * working list replaces the storage.
 	 */
-	private int numberOfUnfinishedTasks = 0;
+	private static final class Storage {
+		private final AtomicReferenceArray<AtomicReferenceArray<Task>> chunks =
+				new AtomicReferenceArray<AtomicReferenceArray<Task>>(MAX_CHUNKS);
+		
+		/**
+		 * The next free index.
+		 */
+		private final AtomicInteger nextIndex = new AtomicInteger();
+		
+		/**
+		 * Number of published tasks. All slots below are filled.
+		 */
+		private final AtomicInteger size = new AtomicInteger();
+
+		/**
+		 * Number of unfinished tasks, we still monitor.
+		 */
+		private final AtomicInteger numberOfUnfinishedTasks = new AtomicInteger();
+
+		/**
+		 * Number of tasks that ended with an error or were aborted.
+		 */
+		private final AtomicInteger numberOfFailedTasks = new AtomicInteger();
+		
+		/**
+		 * Appends {@code task} and sets its index. The task is published as
+		 * soon as all tasks with a lower index are stored, by whichever adder
+		 * stores the last of them. Adders never wait for each other.
+		 */
+		void add(final @Nonnull Task task) {
+			// an index is only taken if there is room, so there are no gaps
+			int index;
+			do {
+				index = nextIndex.get();
+				if(index >= CHUNK_SIZE * MAX_CHUNKS) {
+					throw new IllegalStateException("Too many tasks");
+				}
+			} while(!nextIndex.compareAndSet(index, index + 1));
+			
+			final int chunkIndex = index >>> CHUNK_BITS;
+			AtomicReferenceArray<Task> chunk = chunks.get(chunkIndex);
+			if(chunk == null) {
+				chunks.compareAndSet(chunkIndex, null, new AtomicReferenceArray<Task>(CHUNK_SIZE));
+				chunk = chunks.get(chunkIndex);
+			}
+			
+			task.setIndex(index);
+			chunk.set(index & (CHUNK_SIZE - 1), task);
+			
+			// publish all consecutive stored tasks, including ours if possible
+			int published = size.get();
+			while(published < nextIndex.get() && getSlot(published) != null) {
+				size.compareAndSet(published, published + 1);
+				published = size.get();
+			}
+		}
+		
+		int getSize() {
+			return size.get();
+		}
+		
+		Task get(final @Nonnegative int index) {
+			assert index >= 0 && index < size.get();
+			
+			return getSlot(index);
+		}
+		
+		/**
+		 * @return {@code true} if {@code task} belongs to this storage. The
+		 *   task may not be published yet.
+		 */
+		boolean contains(final @Nonnull Task task) {
+			final int index = task.getIndex();
+			
+			return index >= 0 && index < nextIndex.get() && getSlot(index) == task;
+		}
+		
+		/**
+		 * @return The task stored at {@code index} or {@code null} if it is
+		 *   not stored yet.
+		 */
+		private Task getSlot(final @Nonnegative int index) {
+			final AtomicReferenceArray<Task> chunk = chunks.get(index >>> CHUNK_BITS);
+			
+			return chunk == null ? null : chunk.get(index & (CHUNK_SIZE - 1));
+		}
+	}
+	
+	/**
+	 * The current tasks.
+	 */
+	private volatile Storage tasks = new Storage();
 	
 	/**
 	 * Number of parallel collectors
 	 */
-	private int numberOfCollectors = 0;
+	private final AtomicInteger numberOfCollectors = new AtomicInteger();
+
+	/**
+	 * Delivers the notifications of the working list and its tasks.
+	 */
+	private final EventBus events = new EventBus("WorkingList events", EventBus.DEFAULT_CAPACITY);
 
 	/**
 	 * Set of listeners interested in changes of the data model.
 	 */
-	private Set<WorkingListListener> listeners = new HashSet<WorkingListListener>();
+	private final Set<WorkingListListener> listeners = new CopyOnWriteArraySet<WorkingListListener>();
+
+	/**
+	 * Completed when the current work is done. A new future is created as
+	 * soon as new work arrives after it has been completed. Guarded by the
+	 * working list.
+	 */
+	private CompletableFuture<Void> completion = new CompletableFuture<Void>();
+
+	/**
+	 * Incremented whenever new work arrives. A completion found for an older
+	 * generation is outdated. Guarded by the working list.
+	 */
+	private long generation = 0;
+
+	/**
+	 * The generation whose completion has been announced. Guarded by the
+	 * working list.
+	 */
+	private long completedGeneration = -1;
 
 	/**
 	 * Adds a new listener to the set of listeners.
@@ -66,9 +194,7 @@ public class WorkingList implements TaskListener {
 	 */
 	public final void addListener(final WorkingListListener listener) {
 		LOG.info("Adding listener: " + listener);
-		synchronized(listeners) {
-			listeners.add(listener);
-		}
+		listeners.add(listener);
 	}
 	
 	/**
@@ -78,9 +204,7 @@ public class WorkingList implements TaskListener {
 	 */
 	public final void removeListener(final WorkingListListener listener) {
 		LOG.info("Removing listener: " + listener);
-		synchronized(listeners) {
-			listeners.remove(listener);
-		}
+		listeners.remove(listener);
 	}
 
 	/**
@@ -90,55 +214,96 @@ public class WorkingList implements TaskListener {
 	 * @param outputFile Target file.
 	 */
 	public final void addTask(final File inputFile, final File outputFile) {
-		final Task task = new Task(inputFile, outputFile);
+		addTask(inputFile, outputFile, null);
+	}
+
+	/**
+	 * Adds a new task to the working list. The {@code taskListener} is
+	 *   registered before anyone else gets to know the task and will
+	 *   therefore see all of its state changes.
+	 * 
+	 * @param inputFile Source file.
+	 * @param outputFile Target file.
+	 * @param taskListener Additional listener for the task or {@code null}.
+	 */
+	public final void addTask(final File inputFile, final File outputFile, final @Nullable TaskListener taskListener) {
+		final Task task = new Task(inputFile, outputFile, events);
 		LOG.info("Adding task: " + task);
 		
-		synchronized (tasks) {
-			tasks.add(task);
-			numberOfUnfinishedTasks += 1;
-
-			// listen for state changes to keep numberOfUnfinishedTasks up to
-			// date.
-			task.addListener(this);
+		if(taskListener != null) {
+			task.addListener(taskListener);
 		}
 		
-		synchronized(listeners) {
-			for(WorkingListListener listener : listeners) {
-				listener.taskAdded(task);
+		final Storage storage = tasks;
+		storage.numberOfUnfinishedTasks.incrementAndGet();
+		startWork();
+
+		// listen for state changes to keep numberOfUnfinishedTasks up to
+		// date.
+		task.addListener(this);
+		storage.add(task);
+		
+		events.publish(new Runnable() {
+			public void run() {
+				for(WorkingListListener listener : listeners) {
+					listener.taskAdded(task);
+				}
 			}
-		}
+		});
 	}
 
 	/**
 	 * Clear the working list (remove all tasks).
 	 */
 	public final void clear() {
-		synchronized(tasks) {
-			tasks.clear();
-			numberOfUnfinishedTasks = 0;
-		}
+		tasks = new Storage();
 		
-		synchronized(listeners) {
-			for(WorkingListListener listener : listeners) {
-				listener.modelCleared();
+		events.publish(new Runnable() {
+			public void run() {
+				for(WorkingListListener listener : listeners) {
+					listener.modelCleared();
+				}
 			}
-		}
+		});
 	}
 
 	/**
 	 * A collector notifies the working list about its existence.
 	 */
-	public synchronized void collectorStarts() {
-		numberOfCollectors  += 1;
+	public void collectorStarts() {
+		numberOfCollectors.incrementAndGet();
+		startWork();
+	}
+
+	/**
+	 * Returns a future that is completed as soon as all collectors are
+	 * finished, all tasks are completed and the listeners know about it. If
+	 * the work has been completed and no new work arrived, the returned
+	 * future is completed already. Before any work arrived, it is completed
+	 * after the first work is done.
+	 */
+	public synchronized CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	/**
+	 * New work arrived, outdating completions that are about to be
+	 * announced. The work has to be counted before, so {@link #checkFinished}
+	 * cannot find the new generation finished.
+	 */
+	private synchronized void startWork() {
+		if(completedGeneration == generation) {
+			// the future belongs to the announced completion
+			completion = new CompletableFuture<Void>();
+		}
+		generation += 1;
 	}
 	
 	/**
 	 * A collector has finished its operations.
 	 */
 	public final void collectorFinished() {
-		synchronized(this) {
-			numberOfCollectors -= 1;
-		}
+		numberOfCollectors.decrementAndGet();
 		checkFinished();
 	}
 
@@ -146,13 +311,33 @@ public class WorkingList implements TaskListener {
 	 * Check if all collectors are finished and the tasks has been completed.
 	 */
 	private void checkFinished() {
-		if(numberOfCollectors == 0 && numberOfUnfinishedTasks == 0) {
-			synchronized(listeners) {
+		final long finishedGeneration;
+		synchronized(this) {
+			if(numberOfCollectors.get() != 0 || tasks.numberOfUnfinishedTasks.get() != 0) {
+				return;
+			}
+			finishedGeneration = generation;
+		}
+		
+		events.publish(new Runnable() {
+			public void run() {
+				final CompletableFuture<Void> finishedWork;
+				synchronized(WorkingList.this) {
+					if(finishedGeneration != generation || completedGeneration == generation) {
+						// new work arrived or the completion has been announced
+						return;
+					}
+					completedGeneration = generation;
+					finishedWork = completion;
+				}
+				
 				for(WorkingListListener listener : listeners) {
 					listener.completedWorklist();
 				}
+				
+				finishedWork.complete(null);
 			}
-		}
+		});
 	}
 
 	/**
@@ -161,38 +346,68 @@ public class WorkingList implements TaskListener {
 	public void stateChange(final @Nonnull Task task,
 			                final @Nonnull State oldState,
 			                final @Nonnull State newState) {
-		boolean sourceIsFinished = oldState == State.FINISHED
-				|| oldState == State.ABORTED
-				|| oldState == State.ERROR;
-		boolean targetIsFinished = newState == State.FINISHED
-				|| newState == State.ABORTED
-				|| newState == State.ERROR;
-
-		synchronized (tasks) {
-			if (sourceIsFinished && !targetIsFinished) {
-				numberOfUnfinishedTasks += 1;
-			} else if (!sourceIsFinished && targetIsFinished) {
-				numberOfUnfinishedTasks -= 1;
-			}
+		final Storage storage = tasks;
+		if(!storage.contains(task)) {
+			// the task has been cleared
+			return;
+		}
+		
+		boolean sourceIsFinished = oldState.isFinal();
+		boolean targetIsFinished = newState.isFinal();
+
+		if (sourceIsFinished && !targetIsFinished) {
+			storage.numberOfUnfinishedTasks.incrementAndGet();
+			startWork();
+		} else if (!sourceIsFinished && targetIsFinished) {
+			storage.numberOfUnfinishedTasks.decrementAndGet();
+		}
+		
+		if (isFailure(oldState) && !isFailure(newState)) {
+			storage.numberOfFailedTasks.decrementAndGet();
+		} else if (!isFailure(oldState) && isFailure(newState)) {
+			storage.numberOfFailedTasks.incrementAndGet();
 		}
 		
 		checkFinished();
 	}
 
+	private static boolean isFailure(final @Nonnull State state) {
+		return state == State.ERROR || state == State.ABORTED;
+	}
+
 	public int getNumberOfTasks() {
-		return tasks.size();
+		return tasks.getSize();
+	}
+
+	/**
+	 * @return The number of tasks that are finished, failed or aborted.
+	 */
+	public int getNumberOfCompletedTasks() {
+		final Storage storage = tasks;
+		
+		// unfinished tasks are counted before they are published
+		return Math.max(0, storage.getSize() - storage.numberOfUnfinishedTasks.get());
+	}
+
+	/**
+	 * @return The number of tasks that ended with an error or were aborted.
+	 */
+	public int getNumberOfFailedTasks() {
+		return tasks.numberOfFailedTasks.get();
 	}
 	
 	public @Nonnull Task getTask(final @Nonnegative int index) {
-		assert index >= 0 && index < tasks.size();
-		
 		return tasks.get(index);
 	}
 
+	/**
+	 * @return The index of {@code task}, which is stable as long as the
+	 *   working list is not cleared.
+	 */
 	public int indexOf(final @Nonnull Task task) {
 		assert tasks.contains(task);
 		
-		return tasks.indexOf(task);
+		return task.getIndex();
 	}
 
 }
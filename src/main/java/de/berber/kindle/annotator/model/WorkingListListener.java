@@ -19,6 +19,8 @@ import javax.annotation.Nonnull;
 
 /**
  * A working list listener listens for events produced by the working list.
+ *   Listeners are called on the event dispatcher thread of the working list
+ *   and must not wait for other tasks.
  *
  * @author Bernhard J. Berger
  */
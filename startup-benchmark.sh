@@ -0,0 +1,47 @@
+#!/bin/sh
+# Measures the time of single conversions started with the main class, with
+# the headless entry point and with the headless entry point using the archive
+# created by appcds.sh, if there is one. Run it in the release directory.
+#
+#   ./startup-benchmark.sh book.pdf [runs]
+
+if [ $# -lt 1 ]; then
+	echo "Usage: $0 <PDF file with a PDR file> [runs]"
+	exit 1
+fi
+
+SAMPLE=`cd \`dirname "$1"\` && pwd`/`basename "$1"`
+RUNS=${2:-10}
+cd `dirname $0`
+JAR=`pwd`/`ls kindle-annotator-*.jar | head -n 1`
+WORK=`mktemp -d`
+
+measure() {
+	NAME=$1
+	shift
+	TOTAL=0
+	MIN=
+	
+	# warm up the file system cache
+	java "$@" -f -i "$SAMPLE" -o $WORK > /dev/null 2>&1
+	
+	for RUN in `seq $RUNS`; do
+		START=`date +%s%N`
+		java "$@" -f -i "$SAMPLE" -o $WORK > /dev/null 2>&1
+		TIME=$(( (`date +%s%N` - START) / 1000000 ))
+		TOTAL=$(( TOTAL + TIME ))
+		if [ -z "$MIN" ] || [ $TIME -lt $MIN ]; then
+			MIN=$TIME
+		fi
+	done
+	
+	echo "$NAME: $(( TOTAL / RUNS )) ms average, $MIN ms minimum"
+}
+
+measure "main class, --nogui" -cp $JAR de.berber.kindle.annotator.Main -n
+measure "headless" -cp $JAR de.berber.kindle.annotator.HeadlessMain
+if [ -f kindle-annotator.jsa ]; then
+	measure "headless with AppCDS" -XX:SharedArchiveFile=`pwd`/kindle-annotator.jsa -cp $JAR de.berber.kindle.annotator.HeadlessMain
+fi
+
+rm -rf $WORK